@@ -0,0 +1,64 @@
+#!/usr/bin/env bash
+#
+# Compares the startup time of the fat jar with the AppCDS (-Pcds) and native image (-Pnative) builds.
+# Every variant runs a one-line shell script N times and the wall clock time from the process start to its exit is
+# reported. Variants that haven't been built are skipped.
+#
+#   ./mvnw clean package && ./mvnw package -Pcds     # fat jar + CDS archive (JDK 13+)
+#   ./mvnw package -Pnative                          # native image (GraalVM 21)
+#   ./src/etc/startup-benchmark.sh [runs] [command]
+#
+set -euo pipefail
+
+RUNS=${1:-10}
+COMMAND=${2:-help}
+BASE_DIR="$(cd "$(dirname "$0")/../.." && pwd)"
+TARGET="$BASE_DIR/target"
+MAIN_CLASS=io.datalake.coap.coapshell.CoapShellApplication
+
+SCRIPT=$(mktemp)
+trap 'rm -f "$SCRIPT"' EXIT
+echo "$COMMAND" > "$SCRIPT"
+
+now_ms() {
+	date +%s%N | cut -b1-13
+}
+
+bench() {
+	local name=$1
+	shift
+	local min= max=0 total=0
+	for ((i = 0; i < RUNS; i++)); do
+		local start end elapsed
+		start=$(now_ms)
+		"$@" "@$SCRIPT" > /dev/null 2>&1
+		end=$(now_ms)
+		elapsed=$((end - start))
+		total=$((total + elapsed))
+		((elapsed > max)) && max=$elapsed
+		[[ -z "$min" || $elapsed -lt $min ]] && min=$elapsed
+	done
+	printf "%-12s %8d %8d %8d\n" "$name" "$min" "$((total / RUNS))" "$max"
+}
+
+printf "%-12s %8s %8s %8s   (%d runs of '%s')\n" "build" "min[ms]" "avg[ms]" "max[ms]" "$RUNS" "$COMMAND"
+
+# the native profile keeps the fat jar under the exec classifier
+FAT_JAR=$(ls "$TARGET"/coap-shell-*-exec.jar 2>/dev/null | head -1 || true)
+if [[ -z "$FAT_JAR" ]]; then
+	FAT_JAR=$(ls "$TARGET"/coap-shell-*.jar 2>/dev/null | grep -v -e '-cds.jar' | head -1 || true)
+fi
+if [[ -n "$FAT_JAR" ]]; then
+	bench "fat-jar" java -jar "$FAT_JAR"
+fi
+
+if [[ -f "$TARGET/cds/coap-shell.jsa" ]]; then
+	CDS_CP="$(ls "$TARGET"/cds/*-cds.jar):$TARGET/cds/lib/*"
+	bench "exploded" java -cp "$CDS_CP" $MAIN_CLASS
+	bench "cds" java -XX:SharedArchiveFile="$TARGET/cds/coap-shell.jsa" -cp "$CDS_CP" $MAIN_CLASS
+	bench "cds+c1" java -XX:SharedArchiveFile="$TARGET/cds/coap-shell.jsa" -XX:TieredStopAtLevel=1 -cp "$CDS_CP" $MAIN_CLASS
+fi
+
+if [[ -x "$TARGET/coap-shell" ]]; then
+	bench "native" "$TARGET/coap-shell"
+fi
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell;
+
+/**
+ * Change of the shell connection, published by the CoAP commands. Listeners subscribe to the changes they depend on,
+ * e.g. {@code @EventListener} for {@link Connected} and {@link Disconnected} only, or to all changes with this type.
+ *
+ * The events are delivered synchronously on the command thread. Listeners with expensive reactions (e.g. tearing
+ * down an endpoint) hand them to the {@code coapEventExecutor}, which runs them in the background unless
+ * {@code coap.async-events} is disabled.
+ *
+ * @author Christian Tzolov
+ */
+public abstract class CoapConnectionEvent {
+
+	private final CoapConnectionStatus previous;
+	private final CoapConnectionStatus status;
+
+	protected CoapConnectionEvent(CoapConnectionStatus previous, CoapConnectionStatus status) {
+		this.previous = previous;
+		this.status = status;
+	}
+
+	/**
+	 * @return the status before the change
+	 */
+	public CoapConnectionStatus getPrevious() {
+		return previous;
+	}
+
+	/**
+	 * @return the status after the change
+	 */
+	public CoapConnectionStatus getStatus() {
+		return status;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " " + status;
+	}
+
+	/**
+	 * New connection, which replaces the previous one if any.
+	 */
+	public static final class Connected extends CoapConnectionEvent {
+		public Connected(CoapConnectionStatus previous, CoapConnectionStatus status) {
+			super(previous, status);
+		}
+	}
+
+	public static final class Disconnected extends CoapConnectionEvent {
+		public Disconnected(CoapConnectionStatus previous) {
+			super(previous, CoapConnectionStatus.DISCONNECTED);
+		}
+	}
+
+	/**
+	 * Switch between CON and NON requests.
+	 */
+	public static final class ModeChanged extends CoapConnectionEvent {
+		public ModeChanged(CoapConnectionStatus previous, CoapConnectionStatus status) {
+			super(previous, status);
+		}
+	}
+
+	public static final class ObserveStarted extends CoapConnectionEvent {
+		public ObserveStarted(CoapConnectionStatus previous, CoapConnectionStatus status) {
+			super(previous, status);
+		}
+	}
+
+	public static final class ObserveStopped extends CoapConnectionEvent {
+		public ObserveStopped(CoapConnectionStatus previous, CoapConnectionStatus status) {
+			super(previous, status);
+		}
+	}
+}
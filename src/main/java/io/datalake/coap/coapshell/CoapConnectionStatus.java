@@ -17,76 +17,70 @@
 package io.datalake.coap.coapshell;
 
 /**
+ * Immutable state of the shell connection. Every change creates a new status, carried by a
+ * {@link CoapConnectionEvent}.
+ *
  * @author Christian Tzolov
  */
-public class CoapConnectionStatus {
+public final class CoapConnectionStatus {
 
 	public enum RequestMode {con, non}
 
-	private String baseUri;
-	private RequestMode mode;
-	private String observedUri;
-	private String identity;
-	private String secret;
+	public static final CoapConnectionStatus DISCONNECTED = new CoapConnectionStatus(null, RequestMode.con, null, null, null);
 
-	public String getBaseUri() {
-		return baseUri;
-	}
+	private final String baseUri;
+	private final RequestMode mode;
+	private final String observedUri;
+	private final String identity;
+	private final String secret;
 
-	public CoapConnectionStatus setBaseUri(String baseUri) {
+	private CoapConnectionStatus(String baseUri, RequestMode mode, String observedUri, String identity, String secret) {
 		this.baseUri = baseUri;
-		return this;
+		this.mode = mode;
+		this.observedUri = observedUri;
+		this.identity = identity;
+		this.secret = secret;
+	}
+
+	/**
+	 * @return status of a new connection, in the CON mode and without observe
+	 */
+	public static CoapConnectionStatus connected(String baseUri, String identity, String secret) {
+		return new CoapConnectionStatus(baseUri, RequestMode.con, null, identity, secret);
+	}
+
+	public String getBaseUri() {
+		return baseUri;
 	}
 
 	public RequestMode getMode() {
 		return mode;
 	}
 
-	public CoapConnectionStatus setMode(RequestMode mode) {
-		this.mode = mode;
-		return this;
+	public CoapConnectionStatus withMode(RequestMode mode) {
+		return new CoapConnectionStatus(this.baseUri, mode, this.observedUri, this.identity, this.secret);
 	}
 
 	public boolean isObserveActivated() {
 		return this.observedUri != null;
 	}
 
-	public CoapConnectionStatus reset() {
-		this.baseUri = null;
-		this.mode = RequestMode.con;
-		this.observedUri = null;
-		this.identity = null;
-		this.secret = null;
-		return this;
-	}
-
 	public String getObservedUri() {
 		return observedUri;
 	}
 
-	public CoapConnectionStatus setObservedUri(String observedUri) {
-		this.observedUri = observedUri;
-		return this;
+	public CoapConnectionStatus withObservedUri(String observedUri) {
+		return new CoapConnectionStatus(this.baseUri, this.mode, observedUri, this.identity, this.secret);
 	}
 
 	public String getIdentity() {
 		return identity;
 	}
 
-	public CoapConnectionStatus setIdentity(String identity) {
-		this.identity = identity;
-		return this;
-	}
-
 	public String getSecret() {
 		return secret;
 	}
 
-	public CoapConnectionStatus setSecret(String secret) {
-		this.secret = secret;
-		return this;
-	}
-
 	@Override
 	public String toString() {
 		return String.format("[%s], [%s], [%s]", baseUri, mode,
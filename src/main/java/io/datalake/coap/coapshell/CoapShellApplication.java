@@ -16,6 +16,9 @@
 
 package io.datalake.coap.coapshell;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.ConfigurationProperties;
@@ -31,4 +34,20 @@ public class CoapShellApplication {
 	public static void main(String[] args) {
 		SpringApplication.run(CoapShellApplication.class, args);
 	}
+
+	/**
+	 * Runs the expensive reactions to {@link CoapConnectionEvent}s, one at a time in the event order. With
+	 * coap.async-events=false they run on the publishing command thread.
+	 */
+	@Bean
+	public Executor coapEventExecutor(CoapShellProperties properties) {
+		if (!properties.isAsyncEvents()) {
+			return Runnable::run;
+		}
+		return Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "coap-events");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
 }
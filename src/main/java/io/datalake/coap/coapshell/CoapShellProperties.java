@@ -15,6 +15,9 @@
  */
 package io.datalake.coap.coapshell;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import javax.validation.constraints.NotEmpty;
 import javax.validation.constraints.PositiveOrZero;
 
@@ -35,6 +38,44 @@ public class CoapShellProperties {
 
 	private int staleConnectionThreshold = 24 * 60 * 60; // 24 hours (sec)
 
+	/**
+	 * Opt-in log of the executed requests. The request payloads (possibly credentials or personal data) are only
+	 * recorded with historyPayloads, without them the replay sends the requests with empty payloads.
+	 */
+	private boolean historyEnabled = false;
+	private boolean historyPayloads = false;
+	private String historyFile = System.getProperty("user.home") + "/.coap-shell/history.jsonl";
+
+	/**
+	 * Encrypted file of the established DTLS sessions, resumed with abbreviated handshakes after a restart.
+	 * Without a password the file is encrypted with a random key kept next to it in a .key file.
+	 */
+	private boolean dtlsSessionCacheEnabled = true;
+	private String dtlsSessionCacheFile = System.getProperty("user.home") + "/.coap-shell/dtls-sessions";
+	private String dtlsSessionCachePassword;
+
+	/**
+	 * Whether the listeners of the connection events run their expensive reactions (e.g. the teardown of a replaced
+	 * DTLS endpoint) in the background instead of on the command thread.
+	 */
+	private boolean asyncEvents = true;
+
+	/**
+	 * Name of the transport profile used for the new connections.
+	 */
+	private String profile = TransportProfile.DEFAULT;
+
+	/**
+	 * Named transport profiles. Comes with the "default", "high-throughput" and "low-footprint" profiles, which
+	 * can be replaced or extended with coap.profiles.[name].* properties.
+	 */
+	private Map<String, TransportProfile> profiles = TransportProfile.builtIn();
+
+	/**
+	 * HTTP-to-CoAP proxy settings (coap.proxy.*).
+	 */
+	private Proxy proxy = new Proxy();
+
 	@NotEmpty
 	public String getTrustStoreLocation() {
 		return trustStoreLocation;
@@ -98,6 +139,89 @@ public class CoapShellProperties {
 		this.staleConnectionThreshold = staleConnectionThreshold;
 	}
 
+	public boolean isHistoryEnabled() {
+		return historyEnabled;
+	}
+
+	public void setHistoryEnabled(boolean historyEnabled) {
+		this.historyEnabled = historyEnabled;
+	}
+
+	public boolean isHistoryPayloads() {
+		return historyPayloads;
+	}
+
+	public void setHistoryPayloads(boolean historyPayloads) {
+		this.historyPayloads = historyPayloads;
+	}
+
+	@NotEmpty
+	public String getHistoryFile() {
+		return historyFile;
+	}
+
+	public void setHistoryFile(String historyFile) {
+		this.historyFile = historyFile;
+	}
+
+	public boolean isDtlsSessionCacheEnabled() {
+		return dtlsSessionCacheEnabled;
+	}
+
+	public void setDtlsSessionCacheEnabled(boolean dtlsSessionCacheEnabled) {
+		this.dtlsSessionCacheEnabled = dtlsSessionCacheEnabled;
+	}
+
+	@NotEmpty
+	public String getDtlsSessionCacheFile() {
+		return dtlsSessionCacheFile;
+	}
+
+	public void setDtlsSessionCacheFile(String dtlsSessionCacheFile) {
+		this.dtlsSessionCacheFile = dtlsSessionCacheFile;
+	}
+
+	public String getDtlsSessionCachePassword() {
+		return dtlsSessionCachePassword;
+	}
+
+	public void setDtlsSessionCachePassword(String dtlsSessionCachePassword) {
+		this.dtlsSessionCachePassword = dtlsSessionCachePassword;
+	}
+
+	public boolean isAsyncEvents() {
+		return asyncEvents;
+	}
+
+	public void setAsyncEvents(boolean asyncEvents) {
+		this.asyncEvents = asyncEvents;
+	}
+
+	@NotEmpty
+	public String getProfile() {
+		return profile;
+	}
+
+	public void setProfile(String profile) {
+		this.profile = profile;
+	}
+
+	public Map<String, TransportProfile> getProfiles() {
+		return profiles;
+	}
+
+	public void setProfiles(Map<String, TransportProfile> profiles) {
+		this.profiles = profiles;
+	}
+
+	public Proxy getProxy() {
+		return proxy;
+	}
+
+	public void setProxy(Proxy proxy) {
+		this.proxy = proxy;
+	}
+
 	@Override
 	public String toString() {
 		return "CoapShellProperties{" +
@@ -106,6 +230,289 @@ public class CoapShellProperties {
 				", keyStoreLocation='" + keyStoreLocation + '\'' +
 				", keyStorePassword='" + keyStorePassword + '\'' +
 				", keyStoreAlias='" + keyStoreAlias + '\'' +
+				", historyFile='" + historyFile + '\'' +
+				", profile='" + profile + '\'' +
 				'}';
 	}
+
+	/**
+	 * Endpoint and connector settings. Unset (null) values keep the Californium defaults.
+	 */
+	public static class TransportProfile {
+
+		public static final String DEFAULT = "default";
+		public static final String HIGH_THROUGHPUT = "high-throughput";
+		public static final String LOW_FOOTPRINT = "low-footprint";
+
+		private Integer protocolStageThreads;
+		private Integer networkStageReceiverThreads;
+		private Integer networkStageSenderThreads;
+		private Integer udpReceiveBufferSize;
+		private Integer udpSendBufferSize;
+		private Integer preferredBlockSize;
+		private Integer maxMessageSize;
+		private Long exchangeLifetime; // [ms]
+		private String deduplicator;
+		private Integer tcpConnectionIdleTimeout; // [sec]
+		private Long dtlsAutoResumeTimeout; // [ms]
+		private Integer dtlsMaxConnections;
+		private Integer dtlsConnectionThreads;
+		private Integer dtlsReceiverThreads;
+		private Integer dtlsConnectionIdLength; // draft CID (code point 53) of the shell side, 0 = empty, unset = no CID extension
+
+		static Map<String, TransportProfile> builtIn() {
+			Map<String, TransportProfile> profiles = new LinkedHashMap<>();
+
+			TransportProfile defaultProfile = new TransportProfile();
+			defaultProfile.setTcpConnectionIdleTimeout(60 * 30); // 30 min
+			defaultProfile.setDtlsAutoResumeTimeout(1000L * 60 * 30); // 30 min
+			defaultProfile.setDtlsMaxConnections(100);
+			defaultProfile.setDtlsConnectionThreads(0); // one per core, the record processing scales with the cores
+			profiles.put(DEFAULT, defaultProfile);
+
+			TransportProfile highThroughput = new TransportProfile();
+			highThroughput.setProtocolStageThreads(0); // one per core
+			highThroughput.setNetworkStageReceiverThreads(Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+			highThroughput.setNetworkStageSenderThreads(Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+			highThroughput.setUdpReceiveBufferSize(4 * 1024 * 1024);
+			highThroughput.setUdpSendBufferSize(4 * 1024 * 1024);
+			highThroughput.setPreferredBlockSize(1024);
+			highThroughput.setMaxMessageSize(1024);
+			highThroughput.setDeduplicator("DEDUPLICATOR_CROP_ROTATION");
+			highThroughput.setTcpConnectionIdleTimeout(60 * 30);
+			highThroughput.setDtlsAutoResumeTimeout(1000L * 60 * 30);
+			highThroughput.setDtlsMaxConnections(10000);
+			highThroughput.setDtlsConnectionThreads(0); // one per core
+			highThroughput.setDtlsReceiverThreads(Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+			profiles.put(HIGH_THROUGHPUT, highThroughput);
+
+			TransportProfile lowFootprint = new TransportProfile();
+			lowFootprint.setProtocolStageThreads(1);
+			lowFootprint.setNetworkStageReceiverThreads(1);
+			lowFootprint.setNetworkStageSenderThreads(1);
+			lowFootprint.setUdpReceiveBufferSize(64 * 1024);
+			lowFootprint.setUdpSendBufferSize(64 * 1024);
+			lowFootprint.setPreferredBlockSize(256);
+			lowFootprint.setMaxMessageSize(256);
+			lowFootprint.setExchangeLifetime(60 * 1000L); // 1 min
+			lowFootprint.setDeduplicator("DEDUPLICATOR_MARK_AND_SWEEP");
+			lowFootprint.setTcpConnectionIdleTimeout(60 * 5);
+			lowFootprint.setDtlsAutoResumeTimeout(1000L * 60 * 5);
+			lowFootprint.setDtlsMaxConnections(10);
+			lowFootprint.setDtlsConnectionThreads(1);
+			lowFootprint.setDtlsReceiverThreads(1);
+			profiles.put(LOW_FOOTPRINT, lowFootprint);
+
+			return profiles;
+		}
+
+		public Integer getProtocolStageThreads() {
+			return protocolStageThreads;
+		}
+
+		public void setProtocolStageThreads(Integer protocolStageThreads) {
+			this.protocolStageThreads = protocolStageThreads;
+		}
+
+		public Integer getNetworkStageReceiverThreads() {
+			return networkStageReceiverThreads;
+		}
+
+		public void setNetworkStageReceiverThreads(Integer networkStageReceiverThreads) {
+			this.networkStageReceiverThreads = networkStageReceiverThreads;
+		}
+
+		public Integer getNetworkStageSenderThreads() {
+			return networkStageSenderThreads;
+		}
+
+		public void setNetworkStageSenderThreads(Integer networkStageSenderThreads) {
+			this.networkStageSenderThreads = networkStageSenderThreads;
+		}
+
+		public Integer getUdpReceiveBufferSize() {
+			return udpReceiveBufferSize;
+		}
+
+		public void setUdpReceiveBufferSize(Integer udpReceiveBufferSize) {
+			this.udpReceiveBufferSize = udpReceiveBufferSize;
+		}
+
+		public Integer getUdpSendBufferSize() {
+			return udpSendBufferSize;
+		}
+
+		public void setUdpSendBufferSize(Integer udpSendBufferSize) {
+			this.udpSendBufferSize = udpSendBufferSize;
+		}
+
+		public Integer getPreferredBlockSize() {
+			return preferredBlockSize;
+		}
+
+		public void setPreferredBlockSize(Integer preferredBlockSize) {
+			this.preferredBlockSize = preferredBlockSize;
+		}
+
+		public Integer getMaxMessageSize() {
+			return maxMessageSize;
+		}
+
+		public void setMaxMessageSize(Integer maxMessageSize) {
+			this.maxMessageSize = maxMessageSize;
+		}
+
+		public Long getExchangeLifetime() {
+			return exchangeLifetime;
+		}
+
+		public void setExchangeLifetime(Long exchangeLifetime) {
+			this.exchangeLifetime = exchangeLifetime;
+		}
+
+		public String getDeduplicator() {
+			return deduplicator;
+		}
+
+		public void setDeduplicator(String deduplicator) {
+			this.deduplicator = deduplicator;
+		}
+
+		public Integer getTcpConnectionIdleTimeout() {
+			return tcpConnectionIdleTimeout;
+		}
+
+		public void setTcpConnectionIdleTimeout(Integer tcpConnectionIdleTimeout) {
+			this.tcpConnectionIdleTimeout = tcpConnectionIdleTimeout;
+		}
+
+		public Long getDtlsAutoResumeTimeout() {
+			return dtlsAutoResumeTimeout;
+		}
+
+		public void setDtlsAutoResumeTimeout(Long dtlsAutoResumeTimeout) {
+			this.dtlsAutoResumeTimeout = dtlsAutoResumeTimeout;
+		}
+
+		public Integer getDtlsMaxConnections() {
+			return dtlsMaxConnections;
+		}
+
+		public void setDtlsMaxConnections(Integer dtlsMaxConnections) {
+			this.dtlsMaxConnections = dtlsMaxConnections;
+		}
+
+		public Integer getDtlsConnectionThreads() {
+			return dtlsConnectionThreads;
+		}
+
+		public void setDtlsConnectionThreads(Integer dtlsConnectionThreads) {
+			this.dtlsConnectionThreads = dtlsConnectionThreads;
+		}
+
+		public Integer getDtlsReceiverThreads() {
+			return dtlsReceiverThreads;
+		}
+
+		public void setDtlsReceiverThreads(Integer dtlsReceiverThreads) {
+			this.dtlsReceiverThreads = dtlsReceiverThreads;
+		}
+
+		public Integer getDtlsConnectionIdLength() {
+			return dtlsConnectionIdLength;
+		}
+
+		public void setDtlsConnectionIdLength(Integer dtlsConnectionIdLength) {
+			this.dtlsConnectionIdLength = dtlsConnectionIdLength;
+		}
+	}
+
+	/**
+	 * HTTP-to-CoAP proxy. In headless mode the shell connects to the target server, serves the proxy and doesn't
+	 * start the interactive shell.
+	 */
+	public static class Proxy {
+
+		private boolean headless = false;
+		private String target;
+		private String identity;
+		private String secret;
+		private String bindAddress = "127.0.0.1";
+		private int port = 8080;
+		private int threads = 16;
+		private int maxSessions = 64;
+		private long timeout = 10000; // ms
+
+		public boolean isHeadless() {
+			return headless;
+		}
+
+		public void setHeadless(boolean headless) {
+			this.headless = headless;
+		}
+
+		public String getTarget() {
+			return target;
+		}
+
+		public void setTarget(String target) {
+			this.target = target;
+		}
+
+		public String getIdentity() {
+			return identity;
+		}
+
+		public void setIdentity(String identity) {
+			this.identity = identity;
+		}
+
+		public String getSecret() {
+			return secret;
+		}
+
+		public void setSecret(String secret) {
+			this.secret = secret;
+		}
+
+		public String getBindAddress() {
+			return bindAddress;
+		}
+
+		public void setBindAddress(String bindAddress) {
+			this.bindAddress = bindAddress;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public void setPort(int port) {
+			this.port = port;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		public void setThreads(int threads) {
+			this.threads = threads;
+		}
+
+		public int getMaxSessions() {
+			return maxSessions;
+		}
+
+		public void setMaxSessions(int maxSessions) {
+			this.maxSessions = maxSessions;
+		}
+
+		public long getTimeout() {
+			return timeout;
+		}
+
+		public void setTimeout(long timeout) {
+			this.timeout = timeout;
+		}
+	}
 }
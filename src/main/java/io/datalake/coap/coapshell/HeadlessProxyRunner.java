@@ -0,0 +1,60 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.datalake.coap.coapshell;
+
+import io.datalake.coap.coapshell.command.ProxyCommands;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.shell.jline.InteractiveShellApplicationRunner;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs the HTTP-to-CoAP proxy instead of the interactive shell when {@code coap.proxy.headless=true}. The proxy
+ * threads keep the application running until it is stopped.
+ *
+ * @author Christian Tzolov
+ */
+@Component
+@Order(InteractiveShellApplicationRunner.PRECEDENCE - 50)
+public class HeadlessProxyRunner implements ApplicationRunner {
+
+	private static final Logger logger = LoggerFactory.getLogger(HeadlessProxyRunner.class);
+
+	@Autowired
+	private CoapShellProperties properties;
+
+	@Autowired
+	private ConfigurableEnvironment environment;
+
+	@Autowired
+	private ProxyCommands proxyCommands;
+
+	@Override
+	public void run(ApplicationArguments args) throws Exception {
+		if (!this.properties.getProxy().isHeadless()) {
+			return;
+		}
+		InteractiveShellApplicationRunner.disable(this.environment);
+		logger.info(this.proxyCommands.startHeadless());
+	}
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.command;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.datalake.coap.coapshell.util.CoapDtlsSupport;
+import io.datalake.coap.coapshell.util.CoapTransportProfiles;
+import io.datalake.coap.coapshell.util.RequestWindow;
+import io.datalake.coap.coapshell.util.Row;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.elements.exception.ConnectorException;
+import org.eclipse.californium.scandium.DTLSConnector;
+import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
+import org.eclipse.californium.scandium.dtls.pskstore.AdvancedSinglePskStore;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.shell.standard.ShellCommandGroup;
+import org.springframework.shell.standard.ShellComponent;
+import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellOption;
+import org.springframework.shell.table.BeanListTableModel;
+import org.springframework.shell.table.BorderStyle;
+import org.springframework.shell.table.Table;
+import org.springframework.shell.table.TableBuilder;
+import org.springframework.shell.table.TableModel;
+import org.springframework.util.Assert;
+
+/**
+ * Measures the DTLS request throughput of the shell connector against a local, in-process DTLS server while the
+ * connector thread pools grow.
+ *
+ * @author Christian Tzolov
+ */
+@ShellComponent
+@ShellCommandGroup(CoapShellCommands.SHELL_CONNECTIVITY_GROUP)
+public class BenchCommands {
+
+	private static final String BENCH_IDENTITY = "bench";
+	private static final String BENCH_SECRET = "bench-secret";
+
+	@Autowired
+	private CoapDtlsSupport dtsl;
+
+	@Autowired
+	private CoapTransportProfiles profiles;
+
+	/**
+	 * Results of the last bench dtls run, one per thread count.
+	 */
+	private volatile List<Result> lastResults = Collections.emptyList();
+
+	@ShellMethod(key = "bench dtls", value = "Benchmark the DTLS request throughput against a local DTLS server for increasing connector thread counts")
+	public Table benchDtls(
+			@ShellOption(defaultValue = "1,2,4,0", help = "comma separated DTLS connection thread counts to test (0 = one per core)") String threads,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "DTLS receiver threads, defaults to the connection thread count") Integer receiverThreads,
+			@ShellOption(defaultValue = "5000", help = "number of requests per run") int requests,
+			@ShellOption(defaultValue = "64", help = "max number of concurrent requests") int concurrency,
+			@ShellOption(defaultValue = "64", help = "response payload size in bytes") int payloadSize,
+			@ShellOption(defaultValue = "60", help = "timeout per run in seconds") int timeout) throws ConnectorException, IOException, InterruptedException {
+
+		Assert.isTrue(requests > 0, "The number of requests must be positive");
+		byte[] payload = new byte[payloadSize];
+		Arrays.fill(payload, (byte) 'x');
+
+		CoapServer server = createServer(payload);
+		server.start();
+		try {
+			int port = server.getEndpoints().get(0).getAddress().getPort();
+			String uri = "coaps://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port + "/bench";
+
+			List<Result> results = new ArrayList<>();
+			List<Row> rows = new ArrayList<>();
+			for (String count : threads.split(",")) {
+				int connectionThreads = Integer.parseInt(count.trim());
+				Result result = run(uri, connectionThreads, (receiverThreads != null) ? receiverThreads : connectionThreads,
+						requests, concurrency, timeout);
+				results.add(result);
+				rows.add(row(result));
+			}
+			this.lastResults = results;
+
+			LinkedHashMap<String, Object> headers = new LinkedHashMap<>();
+			headers.put("column[0]", "Connection Threads");
+			headers.put("column[1]", "Receiver Threads");
+			headers.put("column[2]", "Requests");
+			headers.put("column[3]", "Failed");
+			headers.put("column[4]", "Duration [ms]");
+			headers.put("column[5]", "Throughput [req/s]");
+			headers.put("column[6]", "p50 [ms]");
+			headers.put("column[7]", "p99 [ms]");
+			TableModel model = new BeanListTableModel(rows, headers);
+			TableBuilder tableBuilder = new TableBuilder(model);
+			return tableBuilder.addHeaderAndVerticalsBorders(BorderStyle.fancy_light).build();
+		}
+		finally {
+			server.destroy();
+		}
+	}
+
+	public List<Result> getLastResults() {
+		return this.lastResults;
+	}
+
+	/**
+	 * In-process PSK DTLS server on the loopback interface with a single /bench resource. The server uses one
+	 * connection thread per core, so the client side is the bottleneck under test.
+	 */
+	private CoapServer createServer(byte[] payload) {
+		DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder()
+				.setAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))
+				.setAdvancedPskStore(new AdvancedSinglePskStore(BENCH_IDENTITY, BENCH_SECRET.getBytes(StandardCharsets.UTF_8)))
+				.setConnectionThreadCount(Runtime.getRuntime().availableProcessors())
+				.setReceiverThreadCount(Runtime.getRuntime().availableProcessors())
+				.setMaxConnections(100);
+
+		CoapServer server = new CoapServer(this.profiles.networkConfig());
+		server.addEndpoint(new CoapEndpoint.Builder()
+				.setNetworkConfig(this.profiles.networkConfig())
+				.setConnector(new DTLSConnector(builder.build())).build());
+		server.add(new CoapResource("bench") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond(ResponseCode.CONTENT, payload);
+			}
+		});
+		return server;
+	}
+
+	private Result run(String uri, int connectionThreads, int receiverThreads, int requests, int concurrency, int timeout)
+			throws ConnectorException, IOException, InterruptedException {
+
+		DTLSConnector connector = this.dtsl.createConnector(BENCH_IDENTITY, BENCH_SECRET, connectionThreads, receiverThreads);
+		Assert.notNull(connector, "Failed to create the DTLS connector");
+		CoapEndpoint endpoint = new CoapEndpoint.Builder()
+				.setNetworkConfig(this.profiles.networkConfig())
+				.setConnector(connector).build();
+		CoapClient client = new CoapClient(uri).setEndpoint(endpoint);
+
+		long[] latencies = new long[requests];
+		AtomicInteger completed = new AtomicInteger();
+		AtomicBoolean closed = new AtomicBoolean();
+		long[] sorted;
+		long duration;
+		try {
+			// the handshake is not part of the measurement
+			Assert.notNull(client.get(), "No response from the local DTLS server");
+
+			RequestWindow requestWindow = new RequestWindow(concurrency);
+			long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout);
+			long start = System.nanoTime();
+			for (int i = 0; i < requests; i++) {
+				if (!requestWindow.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+					break;
+				}
+				long sent = System.nanoTime();
+				client.advanced(new CoapHandler() {
+					@Override
+					public void onLoad(CoapResponse response) {
+						long latency = System.nanoTime() - sent;
+						synchronized (latencies) {
+							// a response after the timeout is not counted, the results are already taken
+							if (!closed.get()) {
+								latencies[completed.getAndIncrement()] = latency;
+							}
+						}
+						requestWindow.release();
+					}
+
+					@Override
+					public void onError() {
+						requestWindow.release();
+					}
+				}, Request.newGet().setURI(uri));
+			}
+			requestWindow.awaitCompletion(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			duration = System.nanoTime() - start;
+			synchronized (latencies) {
+				closed.set(true);
+				sorted = Arrays.copyOf(latencies, completed.get());
+			}
+		}
+		finally {
+			client.shutdown();
+			endpoint.destroy();
+		}
+
+		int done = sorted.length;
+		Arrays.sort(sorted);
+
+		return new Result(CoapTransportProfiles.threads(connectionThreads), CoapTransportProfiles.threads(receiverThreads),
+				requests, requests - done, TimeUnit.NANOSECONDS.toMillis(duration), done / (duration / 1e9),
+				(done > 0) ? sorted[(int) ((done - 1) * 0.50)] / 1e6 : null,
+				(done > 0) ? sorted[(int) ((done - 1) * 0.99)] / 1e6 : null);
+	}
+
+	private Row row(Result result) {
+		Row row = new Row();
+		row.getColumn().add("" + result.getConnectionThreads());
+		row.getColumn().add("" + result.getReceiverThreads());
+		row.getColumn().add("" + result.getRequests());
+		row.getColumn().add("" + result.getFailed());
+		row.getColumn().add("" + result.getDurationMillis());
+		row.getColumn().add(String.format("%.0f", result.getThroughput()));
+		row.getColumn().add((result.getP50Millis() != null) ? String.format("%.2f", result.getP50Millis()) : "-");
+		row.getColumn().add((result.getP99Millis() != null) ? String.format("%.2f", result.getP99Millis()) : "-");
+		return row;
+	}
+
+	/**
+	 * Numbers of one bench run, kept for the export.
+	 */
+	public static class Result {
+		private final int connectionThreads;
+		private final int receiverThreads;
+		private final int requests;
+		private final int failed;
+		private final long durationMillis;
+		private final double throughput;
+		private final Double p50Millis;
+		private final Double p99Millis;
+
+		Result(int connectionThreads, int receiverThreads, int requests, int failed, long durationMillis,
+				double throughput, Double p50Millis, Double p99Millis) {
+			this.connectionThreads = connectionThreads;
+			this.receiverThreads = receiverThreads;
+			this.requests = requests;
+			this.failed = failed;
+			this.durationMillis = durationMillis;
+			this.throughput = throughput;
+			this.p50Millis = p50Millis;
+			this.p99Millis = p99Millis;
+		}
+
+		public int getConnectionThreads() {
+			return connectionThreads;
+		}
+
+		public int getReceiverThreads() {
+			return receiverThreads;
+		}
+
+		public int getRequests() {
+			return requests;
+		}
+
+		public int getFailed() {
+			return failed;
+		}
+
+		public long getDurationMillis() {
+			return durationMillis;
+		}
+
+		/**
+		 * @return completed requests per second
+		 */
+		public double getThroughput() {
+			return throughput;
+		}
+
+		/**
+		 * @return median latency, null if no request completed
+		 */
+		public Double getP50Millis() {
+			return p50Millis;
+		}
+
+		/**
+		 * @return 99th percentile latency, null if no request completed
+		 */
+		public Double getP99Millis() {
+			return p99Millis;
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import io.datalake.coap.coapshell.util.PayloadCodec;
+import io.datalake.coap.coapshell.util.RequestWindow;
+import io.datalake.coap.coapshell.util.ResourceSnapshot;
+import io.datalake.coap.coapshell.util.Row;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.WebLink;
+import org.eclipse.californium.core.coap.LinkFormat;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.elements.exception.ConnectorException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.shell.Availability;
+import org.springframework.shell.standard.ShellCommandGroup;
+import org.springframework.shell.standard.ShellComponent;
+import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellMethodAvailability;
+import org.springframework.shell.standard.ShellOption;
+import org.springframework.shell.table.BeanListTableModel;
+import org.springframework.shell.table.BorderStyle;
+import org.springframework.shell.table.Table;
+import org.springframework.shell.table.TableBuilder;
+import org.springframework.shell.table.TableModel;
+import org.springframework.util.Assert;
+
+import static io.datalake.coap.coapshell.util.PrintUtils.green;
+import static io.datalake.coap.coapshell.util.PrintUtils.red;
+
+/**
+ * Walks the link tree of the connected server and snapshots the state of every resource.
+ *
+ * @author Christian Tzolov
+ */
+@ShellComponent
+@ShellCommandGroup(CoapShellCommands.SHELL_COAP_REST_COMMANDS_GROUP)
+public class CoapCrawlCommands {
+
+	@Autowired
+	private CoapShellCommands coapShellCommands;
+
+	@ShellMethod(key = "crawl", value = "Recursively GET all discovered resources and write a snapshot file")
+	@ShellMethodAvailability("crawlAvailabilityCheck")
+	public String crawl(
+			@ShellOption(help = "snapshot output file") File file,
+			@ShellOption(defaultValue = "8", help = "max number of concurrent requests") int window,
+			@ShellOption(defaultValue = "1000", help = "max number of resources to crawl") int maxResources,
+			@ShellOption(defaultValue = "30", help = "crawl timeout in seconds") int timeout) throws ConnectorException, IOException, InterruptedException {
+
+		Set<WebLink> rootLinks = this.coapShellCommands.newClient("/").discover();
+		Assert.notNull(rootLinks, "Empty discovery response!");
+
+		ResourceSnapshot snapshot = new ResourceSnapshot();
+		snapshot.setBaseUri(this.coapShellCommands.getBaseUri());
+		snapshot.setTimestamp(System.currentTimeMillis());
+
+		List<ResourceSnapshot.Entry> entries = Collections.synchronizedList(new ArrayList<>());
+		// set when the snapshot is taken, late responses are ignored
+		AtomicBoolean closed = new AtomicBoolean();
+		Set<String> visited = ConcurrentHashMap.newKeySet();
+		BlockingQueue<WebLink> todo = new LinkedBlockingQueue<>();
+		AtomicInteger inFlight = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		RequestWindow requestWindow = new RequestWindow(window);
+
+		enqueue(rootLinks, todo, visited, maxResources);
+
+		long start = System.currentTimeMillis();
+		long deadline = start + TimeUnit.SECONDS.toMillis(timeout);
+		while (System.currentTimeMillis() < deadline) {
+			WebLink link = todo.poll(50, TimeUnit.MILLISECONDS);
+			if (link == null) {
+				if (inFlight.get() == 0 && todo.isEmpty()) {
+					break;
+				}
+				continue;
+			}
+			if (!requestWindow.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+				todo.add(link); // not crawled, the crawl timed out
+				break;
+			}
+			inFlight.incrementAndGet();
+			String path = link.getURI();
+			Request request = this.coapShellCommands.newRequest(Request.newGet(), path);
+			this.coapShellCommands.newClient(path).advanced(new CoapHandler() {
+				@Override
+				public void onLoad(CoapResponse response) {
+					try {
+						if (!add(entries, closed, toEntry(path, response))) {
+							return;
+						}
+						if (response.isSuccess()
+								&& response.getOptions().getContentFormat() == MediaTypeRegistry.APPLICATION_LINK_FORMAT
+								&& !path.equals("/.well-known/core")) {
+							// link-format resources are sub-directories of the link tree
+							enqueue(LinkFormat.parse(response.getResponseText()), todo, visited, maxResources);
+						}
+					}
+					finally {
+						inFlight.decrementAndGet();
+						requestWindow.release();
+					}
+				}
+
+				@Override
+				public void onError() {
+					ResourceSnapshot.Entry entry = new ResourceSnapshot.Entry();
+					entry.setPath(path);
+					entry.setCode("ERROR");
+					if (add(entries, closed, entry)) {
+						failed.incrementAndGet();
+					}
+					inFlight.decrementAndGet();
+					requestWindow.release();
+				}
+			}, request);
+		}
+
+		boolean completed = todo.isEmpty() && requestWindow.awaitCompletion(
+				Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+		List<ResourceSnapshot.Entry> sorted;
+		synchronized (entries) {
+			closed.set(true);
+			sorted = new ArrayList<>(entries);
+		}
+		sorted.sort(Comparator.comparing(ResourceSnapshot.Entry::getPath));
+		snapshot.setEntries(sorted);
+		snapshot.write(file);
+
+		String summary = String.format("Crawled %d resources (%d failed) in %dms. Snapshot: %s",
+				sorted.size(), failed.get(), System.currentTimeMillis() - start, file.getAbsolutePath());
+		return completed ? green(summary) : red("Crawl timeout! " + summary);
+	}
+
+	/**
+	 * @return false if the entry is ignored because the snapshot is already taken
+	 */
+	private boolean add(List<ResourceSnapshot.Entry> entries, AtomicBoolean closed, ResourceSnapshot.Entry entry) {
+		synchronized (entries) {
+			if (closed.get()) {
+				return false;
+			}
+			entries.add(entry);
+			return true;
+		}
+	}
+
+	private void enqueue(Set<WebLink> links, BlockingQueue<WebLink> todo, Set<String> visited, int maxResources) {
+		for (WebLink link : links) {
+			if (visited.size() >= maxResources) {
+				return;
+			}
+			if (visited.add(link.getURI())) {
+				todo.add(link);
+			}
+		}
+	}
+
+	private ResourceSnapshot.Entry toEntry(String path, CoapResponse response) {
+		ResourceSnapshot.Entry entry = new ResourceSnapshot.Entry();
+		entry.setPath(path);
+		entry.setCode(response.getCode().toString());
+		entry.setContentFormat(response.getOptions().getContentFormat());
+		if (response.getOptions().getETagCount() > 0) {
+			entry.setEtag(PayloadCodec.toHex(response.getOptions().getETags().get(0)));
+		}
+		byte[] payload = response.getPayload();
+		entry.setSize((payload != null) ? payload.length : 0);
+		entry.setPayloadHash(PayloadCodec.sha256(payload));
+		Long rtt = response.advanced().getRTT();
+		entry.setRtt((rtt != null) ? rtt : -1);
+		return entry;
+	}
+
+	@ShellMethod(key = "diff", value = "Compare two crawl snapshots")
+	public Table diff(
+			@ShellOption(help = "base snapshot file") File base,
+			@ShellOption(help = "snapshot file to compare with the base") File other,
+			@ShellOption(defaultValue = "false", help = "also list the unchanged resources") boolean all) throws IOException {
+
+		Map<String, ResourceSnapshot.Entry> baseEntries = byPath(ResourceSnapshot.read(base));
+		Map<String, ResourceSnapshot.Entry> otherEntries = byPath(ResourceSnapshot.read(other));
+
+		List<Row> rows = new ArrayList<>();
+		for (ResourceSnapshot.Entry entry : baseEntries.values()) {
+			ResourceSnapshot.Entry otherEntry = otherEntries.get(entry.getPath());
+			if (otherEntry == null) {
+				rows.add(diffRow(entry.getPath(), "removed", entry, null));
+			}
+			else if (!sameState(entry, otherEntry)) {
+				rows.add(diffRow(entry.getPath(), "changed", entry, otherEntry));
+			}
+			else if (all) {
+				rows.add(diffRow(entry.getPath(), "", entry, otherEntry));
+			}
+		}
+		for (ResourceSnapshot.Entry otherEntry : otherEntries.values()) {
+			if (!baseEntries.containsKey(otherEntry.getPath())) {
+				rows.add(diffRow(otherEntry.getPath(), "added", null, otherEntry));
+			}
+		}
+
+		LinkedHashMap<String, Object> headers = new LinkedHashMap<>();
+		headers.put("column[0]", "Path");
+		headers.put("column[1]", "Change");
+		headers.put("column[2]", "Code");
+		headers.put("column[3]", "Content Type");
+		headers.put("column[4]", "ETag");
+		headers.put("column[5]", "Size [B]");
+		headers.put("column[6]", "RTT [ms]");
+		TableModel model = new BeanListTableModel(rows, headers);
+		TableBuilder tableBuilder = new TableBuilder(model);
+		return tableBuilder.addHeaderAndVerticalsBorders(BorderStyle.fancy_light).build();
+	}
+
+	private Map<String, ResourceSnapshot.Entry> byPath(ResourceSnapshot snapshot) {
+		return snapshot.getEntries().stream().collect(Collectors.toMap(ResourceSnapshot.Entry::getPath,
+				Function.identity(), (e1, e2) -> e1, LinkedHashMap::new));
+	}
+
+	private boolean sameState(ResourceSnapshot.Entry e1, ResourceSnapshot.Entry e2) {
+		return String.valueOf(e1.getCode()).equals(e2.getCode())
+				&& e1.getContentFormat() == e2.getContentFormat()
+				&& String.valueOf(e1.getEtag()).equals(String.valueOf(e2.getEtag()))
+				&& String.valueOf(e1.getPayloadHash()).equals(String.valueOf(e2.getPayloadHash()));
+	}
+
+	private Row diffRow(String path, String change, ResourceSnapshot.Entry before, ResourceSnapshot.Entry after) {
+		Row row = new Row();
+		row.getColumn().add(path);
+		row.getColumn().add(change);
+		row.getColumn().add(diffValue(before, after, e -> e.getCode()));
+		row.getColumn().add(diffValue(before, after, e -> MediaTypeRegistry.toString(e.getContentFormat())));
+		row.getColumn().add(diffValue(before, after, e -> e.getEtag()));
+		row.getColumn().add(diffValue(before, after, e -> "" + e.getSize()));
+		row.getColumn().add(diffValue(before, after, e -> "" + e.getRtt()));
+		return row;
+	}
+
+	private String diffValue(ResourceSnapshot.Entry before, ResourceSnapshot.Entry after,
+			Function<ResourceSnapshot.Entry, String> value) {
+		String b = (before != null) ? String.valueOf(value.apply(before)) : "-";
+		String a = (after != null) ? String.valueOf(value.apply(after)) : "-";
+		return b.equals(a) ? a : b + " -> " + a;
+	}
+
+	public Availability crawlAvailabilityCheck() {
+		return this.coapShellCommands.availabilityCheck();
+	}
+}
@@ -16,34 +16,60 @@
 package io.datalake.coap.coapshell.command;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+import io.datalake.coap.coapshell.CoapConnectionEvent;
 import io.datalake.coap.coapshell.CoapConnectionStatus;
 import io.datalake.coap.coapshell.provider.ContentTypeValueProvider;
 import io.datalake.coap.coapshell.provider.DiscoveryQueryValueProvider;
 import io.datalake.coap.coapshell.provider.UriPathValueProvider;
 import io.datalake.coap.coapshell.provider.UriSchemaValueProvider;
+import io.datalake.coap.coapshell.util.BoundedObserveHandler;
 import io.datalake.coap.coapshell.util.CoapDtlsSupport;
+import io.datalake.coap.coapshell.util.CoapOscoreSupport;
+import io.datalake.coap.coapshell.util.CoapSessionPool;
+import io.datalake.coap.coapshell.util.CoapTransportProfiles;
+import io.datalake.coap.coapshell.util.CommandHistoryLog;
+import io.datalake.coap.coapshell.util.LinkFilter;
+import io.datalake.coap.coapshell.util.LinkFormatStreamParser;
+import io.datalake.coap.coapshell.util.ObserveHealthMonitor;
+import io.datalake.coap.coapshell.util.PayloadCodec;
 import io.datalake.coap.coapshell.util.PrintUtils;
+import io.datalake.coap.coapshell.util.PrintUtils.PayloadRendering;
+import io.datalake.coap.coapshell.util.RequestTracer;
 import io.datalake.coap.coapshell.util.Row;
+import io.datalake.coap.coapshell.util.StreamingTableWriter;
+import io.datalake.coap.coapshell.util.TimeSeriesStore;
 import org.eclipse.californium.core.CoapClient;
 import org.eclipse.californium.core.CoapHandler;
 import org.eclipse.californium.core.CoapObserveRelation;
 import org.eclipse.californium.core.CoapResponse;
 import org.eclipse.californium.core.WebLink;
+import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.EndpointManager;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.californium.elements.exception.ConnectorException;
+import org.eclipse.californium.elements.util.Bytes;
 import org.eclipse.californium.elements.util.StringUtil;
+import org.eclipse.californium.oscore.HashMapCtxDB;
 import org.eclipse.californium.scandium.DTLSConnector;
 import org.jline.terminal.Terminal;
 
@@ -63,7 +89,6 @@ import org.springframework.shell.table.Table;
 import org.springframework.shell.table.TableBuilder;
 import org.springframework.shell.table.TableModel;
 import org.springframework.util.Assert;
-import org.springframework.util.FileCopyUtils;
 import org.springframework.util.StringUtils;
 
 import static io.datalake.coap.coapshell.util.PrintUtils.cyan;
@@ -80,16 +105,33 @@ public class CoapShellCommands implements ApplicationEventPublisherAware {
 	public static final String COAP_TEXT_PLAIN = "" + MediaTypeRegistry.TEXT_PLAIN;
 	public static final String SHELL_CONNECTIVITY_GROUP = "CoAP Server Connectivity";
 	public static final String SHELL_COAP_REST_COMMANDS_GROUP = "CoAP Commands";
-	public static final int DEFAULT_TCP_CONNECTION_IDLE_TIMEOUT = 60 * 30; // 30 min [sec]
+	public static final int DEFAULT_DISCOVERY_BLOCK_SIZE = 1024;
 	public static final String COAPS = "coaps";
 	public static final String COAP = "coap";
 
 	private CoapClient coapClient;
 	private ApplicationEventPublisher eventPublisher;
 	private CoapObserveRelation observeRelation;
-	private CoapConnectionStatus connectionStatus = new CoapConnectionStatus();
 
-	private StringBuilder observerResponses = new StringBuilder();
+	/**
+	 * Client of the observe relation. The shell client until a reconnect gives the relation its own endpoint
+	 * ({@link #observeEndpoint}), the shell endpoint is shared with the clients of {@link #newClient(String)}.
+	 */
+	private CoapClient observeClient;
+	private Endpoint observeEndpoint;
+	private volatile CoapConnectionStatus connectionStatus = CoapConnectionStatus.DISCONNECTED;
+	private boolean oscore;
+	private boolean dtls;
+	private HashMapCtxDB oscoreContext;
+
+	/**
+	 * Endpoint of the block by block transfers, see {@link #blockEndpoint()}.
+	 */
+	private Endpoint blockEndpoint;
+
+	private BoundedObserveHandler observeHandler;
+	private ObserveHealthMonitor observeMonitor;
+	private TimeSeriesStore timeSeries;
 
 	@Autowired
 	private UriPathValueProvider coapUriPathValueProvider;
@@ -97,6 +139,18 @@ public class CoapShellCommands implements ApplicationEventPublisherAware {
 	@Autowired
 	private CoapDtlsSupport dtsl;
 
+	@Autowired
+	private CoapOscoreSupport oscoreSupport;
+
+	@Autowired
+	private CoapTransportProfiles profiles;
+
+	@Autowired
+	private RequestTracer tracer;
+
+	@Autowired
+	private CommandHistoryLog historyLog;
+
 	@Autowired
 	@Lazy
 	private Terminal terminal;
@@ -106,13 +160,17 @@ public class CoapShellCommands implements ApplicationEventPublisherAware {
 			@ShellOption(help = "URI of the server to connect to", valueProvider = UriSchemaValueProvider.class) URI uri,
 			@ShellOption(defaultValue = ShellOption.NULL, help = "pre-shared key identity") String identity,
 			@ShellOption(defaultValue = ShellOption.NULL, help = "pre-shared key secret") String secret,
-			@ShellOption(defaultValue = "false", help = "disable argument auto-completion pre-initialization") boolean disableDiscover) {
+			@ShellOption(defaultValue = ShellOption.NULL, help = "OSCORE security context file (coap: only)") File oscore,
+			@ShellOption(defaultValue = "false", help = "disable argument auto-completion pre-initialization") boolean disableDiscover) throws IOException {
 
 		Assert.notNull(uri, "Null  URI");
 		Assert.hasText(uri.getScheme(), "Missing CoAP URI schema! Either `coap:` or `coaps:` is required.");
 		Assert.isTrue(uri.getScheme().equalsIgnoreCase(COAP)
 				|| uri.getScheme().equalsIgnoreCase(COAPS), String.format("Invalid CoAP URI schema [%s]. " +
 				"Use either `coap:` or `coaps:`", uri.getScheme()));
+		Assert.isTrue(oscore == null || uri.getScheme().equalsIgnoreCase(COAP),
+				"OSCORE is an alternative to DTLS and requires the `coap:` schema!");
+		Assert.isTrue(oscore == null || oscore.exists(), "OSCORE context file [" + oscore + "] doesn't exists!");
 
 		// Clean previous connection states
 		if (this.availabilityCheck().isAvailable()) {
@@ -126,23 +184,23 @@ public class CoapShellCommands implements ApplicationEventPublisherAware {
 		// Add secure DTLS endpoint if required
 		if (uri.getScheme().equalsIgnoreCase(COAPS)
 				|| StringUtils.hasText(secret) || StringUtils.hasText(identity)) {
-			DTLSConnector dtlsConnector = dtsl.createConnector(identity, secret);
-
-			CoapEndpoint coapEndpoint = new CoapEndpoint.Builder()
-					.setNetworkConfig(NetworkConfig.getStandard()
-							.set(NetworkConfig.Keys.TCP_CONNECTION_IDLE_TIMEOUT, DEFAULT_TCP_CONNECTION_IDLE_TIMEOUT)
-							.set(NetworkConfig.Keys.DTLS_AUTO_RESUME_TIMEOUT, 1000 * 60 * 30))
-					.setConnector(dtlsConnector).build();
-			this.coapClient.setEndpoint(coapEndpoint);
+			this.coapClient.setEndpoint(createDtlsEndpoint(identity, secret));
+			this.dtls = true;
+		}
+		else if (oscore != null) {
+			this.oscoreContext = this.oscoreSupport.loadContext(oscore, uri.toString());
+			this.coapClient.setEndpoint(this.oscoreSupport.createEndpoint(this.profiles.networkConfig(),
+					this.oscoreContext));
+			this.oscore = true;
+		}
+		else {
+			this.coapClient.setEndpoint(new CoapEndpoint.Builder()
+					.setNetworkConfig(this.profiles.networkConfig()).build());
 		}
 
 		if (this.coapClient.getURI() != null) {
-			this.connectionStatus.setBaseUri(this.coapClient.getURI())
-					.setMode(CoapConnectionStatus.RequestMode.con)
-					.setIdentity(identity)
-					.setSecret(secret)
-					.setObservedUri(null);
-			this.eventPublisher.publishEvent(this.connectionStatus);
+			publish(new CoapConnectionEvent.Connected(this.connectionStatus,
+					CoapConnectionStatus.connected(this.coapClient.getURI(), identity, secret)));
 		}
 
 		//boolean available = this.pingInternal("/");
@@ -153,10 +211,8 @@ public class CoapShellCommands implements ApplicationEventPublisherAware {
 		boolean available = false;
 		try {
 			if (!disableDiscover) {
-				Table d = this.discover("");
-				if (d != null) {
-					available = true;
-				}
+				this.discoverLinks(null, DEFAULT_DISCOVERY_BLOCK_SIZE, link -> true);
+				available = true;
 			}
 		}
 		catch (Throwable throwable) {
@@ -166,6 +222,65 @@ public class CoapShellCommands implements ApplicationEventPublisherAware {
 		return available ? green("available") : red("unavailable");
 	}
 
+	private CoapEndpoint createDtlsEndpoint(String identity, String secret) {
+		return createDtlsEndpoint(this.profiles.networkConfig(), identity, secret);
+	}
+
+	private CoapEndpoint createDtlsEndpoint(NetworkConfig networkConfig, String identity, String secret) {
+		DTLSConnector dtlsConnector = dtsl.createConnector(identity, secret);
+
+		return new CoapEndpoint.Builder()
+				.setNetworkConfig(networkConfig)
+				.setConnector(dtlsConnector).build();
+	}
+
+	/**
+	 * Endpoint with the transport of the shell connection (DTLS, OSCORE or plain), but without the transparent
+	 * blockwise transfer (MAX_RESOURCE_BODY_SIZE=0). The blockwise layer of the shell endpoint treats a Block2
+	 * request for block 0 as early size negotiation and reassembles the whole document before the response is
+	 * handed over, here every block is passed through as it arrives. Created on the first use and destroyed with
+	 * the connection.
+	 */
+	private synchronized Endpoint blockEndpoint() {
+		Assert.state(this.coapClient != null, "you are not connected");
+		if (this.blockEndpoint == null) {
+			NetworkConfig networkConfig = this.profiles.networkConfig();
+			networkConfig.setInt(NetworkConfig.Keys.MAX_RESOURCE_BODY_SIZE, 0);
+			if (this.dtls) {
+				this.blockEndpoint = createDtlsEndpoint(networkConfig, this.connectionStatus.getIdentity(),
+						this.connectionStatus.getSecret());
+			}
+			else if (this.oscore) {
+				this.blockEndpoint = this.oscoreSupport.createEndpoint(networkConfig, this.oscoreContext);
+			}
+			else {
+				this.blockEndpoint = new CoapEndpoint.Builder().setNetworkConfig(networkConfig).build();
+			}
+		}
+		return this.blockEndpoint;
+	}
+
+	/**
+	 * Creates an endpoint for the requests to other servers, with the transport profile settings and, for coaps,
+	 * a DTLS connector with the credentials of the shell connection. The caller owns (destroys) the endpoint.
+	 * @param scheme - coap or coaps
+	 * @return new endpoint, started by the first request
+	 */
+	public Endpoint newEndpoint(String scheme) {
+		if (COAPS.equalsIgnoreCase(scheme)) {
+			return createDtlsEndpoint(this.connectionStatus.getIdentity(), this.connectionStatus.getSecret());
+		}
+		Assert.isTrue(COAP.equalsIgnoreCase(scheme), "Unsupported URI scheme: " + scheme);
+		return new CoapEndpoint.Builder().setNetworkConfig(this.profiles.networkConfig()).build();
+	}
+
+	/**
+	 * @return new pool for requests to many servers, sharing the shell endpoint for the servers of its scheme
+	 */
+	public CoapSessionPool newSessionPool(int maxSessions) {
+		return new CoapSessionPool(getEndpoint(), URI.create(getBaseUri()).getScheme(), this::newEndpoint, maxSessions);
+	}
+
 	@ShellMethod(value = "Check CoAP resources availability", group = SHELL_CONNECTIVITY_GROUP)
 	@ShellMethodAvailability({ "availabilityCheck" })
 	public String ping(
@@ -192,59 +307,143 @@ public class CoapShellCommands implements ApplicationEventPublisherAware {
 		if (observerAvailabilityCheck().isAvailable() && this.observeRelation != null) {
 			this.observeRelation.proactiveCancel();
 		}
+		closeObserve();
 		if (this.coapClient.getEndpoint() != null) {
 			this.coapClient.getEndpoint().destroy();
 		}
+		synchronized (this) {
+			if (this.blockEndpoint != null) {
+				this.blockEndpoint.destroy();
+				this.blockEndpoint = null;
+			}
+		}
 		this.coapClient.shutdown();
 		this.coapUriPathValueProvider.updatePrefixHints(new ArrayList<>());
 		this.coapClient = null;
-		this.connectionStatus.reset();
-		this.eventPublisher.publishEvent(this.connectionStatus);
+		this.oscore = false;
+		this.oscoreContext = null;
+		this.dtls = false;
+		publish(new CoapConnectionEvent.Disconnected(this.connectionStatus));
 		return "Client disconnected!";
 	}
 
+	/**
+	 * Replaces the connection status with the one of the event and publishes the event.
+	 */
+	private void publish(CoapConnectionEvent event) {
+		this.connectionStatus = event.getStatus();
+		this.eventPublisher.publishEvent(event);
+	}
+
 	@ShellMethod("List available resources")
 	@ShellMethodAvailability("availabilityCheck")
-	public Table discover(
+	public String discover(
 			@ShellOption(defaultValue = ShellOption.NULL, help = "discover query (e.g 'href=*', 'ct=40', 'obs' and ect. )",
-					valueProvider = DiscoveryQueryValueProvider.class) String query) throws ConnectorException, IOException {
-
-		LinkedHashMap<String, Object> headers = new LinkedHashMap<>();
-		headers.put("column[0]", "Path [href]");
-		headers.put("column[1]", "Resource Type [rt]");
-		headers.put("column[2]", "Content Type [ct]");
-		headers.put("column[3]", "Interface [if]");
-		headers.put("column[4]", "Size [sz]");
-		headers.put("column[5]", "Observable [obs]");
+					valueProvider = DiscoveryQueryValueProvider.class) String query,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "link filter (e.g. 'rt=temp*'). Sent as discover query if no query is set and re-checked locally") String filter,
+			@ShellOption(defaultValue = "0", help = "number of links to skip") int offset,
+			@ShellOption(defaultValue = "0", help = "max number of links to list, 0 for all") int limit,
+			@ShellOption(defaultValue = "" + DEFAULT_DISCOVERY_BLOCK_SIZE, help = "Block2 size used to retrieve the link-format document") int blockSize) throws ConnectorException, IOException {
+
+		LinkFilter linkFilter = StringUtils.hasText(filter) ? new LinkFilter(filter) : null;
+		StreamingTableWriter table = new StreamingTableWriter(this.terminal,
+				"Path [href]", "Resource Type [rt]", "Content Type [ct]", "Interface [if]", "Size [sz]", "Observable [obs]");
+		AtomicInteger matched = new AtomicInteger();
+
+		int parsed = discoverLinks(StringUtils.hasText(query) ? query : (linkFilter != null) ? linkFilter.toQuery() : null,
+				blockSize, link -> {
+					if (linkFilter != null && !linkFilter.matches(link)) {
+						return true;
+					}
+					if (matched.getAndIncrement() < offset) {
+						return true;
+					}
+					if (limit > 0 && table.getRowCount() >= limit) {
+						return false;
+					}
+					return table.addRow(toRow(link));
+				});
+		int listed = table.close();
+		return String.format("Listed %d of %d resources", listed, parsed);
+	}
 
-		Set<WebLink> resources = null;
+	/**
+	 * Discovers the server resources and adds the links to the path auto-completion hints.
+	 * @param query - discovery query or null
+	 * @param blockSize - Block2 size to request
+	 * @param consumer - receives the links, returns false to stop the discovery
+	 * @return number of parsed links
+	 */
+	private int discoverLinks(String query, int blockSize, Predicate<WebLink> consumer) throws ConnectorException, IOException {
+		this.coapUriPathValueProvider.clearHints();
+		List<String> hints = new ArrayList<>();
+		int parsed = streamLinks(StringUtils.hasText(query) ? "/.well-known/core?" + query : "/.well-known/core",
+				blockSize, link -> {
+					hints.add(link.getURI());
+					if (hints.size() >= 256) {
+						this.coapUriPathValueProvider.addPrefixHints(hints);
+						hints.clear();
+					}
+					return consumer.test(link);
+				});
+		this.coapUriPathValueProvider.addPrefixHints(hints);
+		return parsed;
+	}
 
-		resources = this.coapClient.discover(query);
+	/**
+	 * Retrieves a link-format document block by block and hands over every link to the consumer as soon as it is
+	 * parsed, so the memory use is bounded by the block size and not by the document size. The blocks are requested
+	 * through the {@link #blockEndpoint()}, which doesn't reassemble them.
+	 * @param path - path (and query) of the link-format resource on the connected server
+	 * @param blockSize - Block2 size to request. The server may choose a smaller one
+	 * @param consumer - receives the links, returns false to stop the transfer
+	 * @return number of parsed links
+	 */
+	public int streamLinks(String path, int blockSize, Predicate<WebLink> consumer) throws ConnectorException, IOException {
+		CoapClient client = newClient(path);
+		client.setEndpoint(blockEndpoint());
+		return streamLinks(client, () -> newRequest(Request.newGet(), path), blockSize, consumer);
+	}
 
-		if (resources == null) {// empty response
-			resources = new HashSet<>();
+	/**
+	 * @param client - client of the link-format resource, its endpoint must not reassemble the blocks
+	 * @param requests - creates the request of the next block
+	 */
+	static int streamLinks(CoapClient client, Supplier<Request> requests, int blockSize, Predicate<WebLink> consumer)
+			throws ConnectorException, IOException {
+		LinkFormatStreamParser parser = new LinkFormatStreamParser(consumer);
+
+		int szx = BlockOption.size2Szx(blockSize);
+		int num = 0;
+		boolean more = true;
+		while (more) {
+			Request request = requests.get();
+			String path = request.getURI();
+			request.getOptions().setBlock2(szx, false, num);
+			CoapResponse response = client.advanced(request);
+			Assert.notNull(response, "No response from: " + path);
+			Assert.isTrue(response.isSuccess(), "Request [" + path + "] failed: " + response.getCode());
+
+			byte[] payload = response.getPayload();
+			BlockOption block2 = response.getOptions().getBlock2();
+			more = parser.feed(payload) && block2 != null && block2.isM();
+			if (block2 != null) {
+				szx = block2.getSzx();
+				num = (block2.getOffset() + payload.length) / BlockOption.szx2Size(szx);
+			}
 		}
-
-		this.coapUriPathValueProvider.updatePrefixHints(
-				resources.stream().map(WebLink::getURI).collect(Collectors.toList()));
-
-		TableModel model = new BeanListTableModel(formatDiscoveryResult(resources), headers);
-		TableBuilder tableBuilder = new TableBuilder(model);
-		return tableBuilder.addHeaderAndVerticalsBorders(BorderStyle.fancy_light).build();
+		return parser.finish();
 	}
 
-	private List<Row> formatDiscoveryResult(Set<WebLink> links) {
-		List<Row> rows = links.stream().map(link -> {
-			Row row = new Row();
-			row.getColumn().add(link.getURI());
-			row.getColumn().add(toString(link.getAttributes().getResourceTypes()));
-			row.getColumn().add(typeNames(link.getAttributes().getContentTypes()));
-			row.getColumn().add(toString(link.getAttributes().getInterfaceDescriptions()));
-			row.getColumn().add(link.getAttributes().getMaximumSizeEstimate());
-			row.getColumn().add(link.getAttributes().hasObservable() ? "observable" : "");
-			return row;
-		}).collect(Collectors.toList());
-		return rows;
+	private List<String> toRow(WebLink link) {
+		List<String> row = new ArrayList<>();
+		row.add(link.getURI());
+		row.add(toString(link.getAttributes().getResourceTypes()));
+		row.add(typeNames(link.getAttributes().getContentTypes()));
+		row.add(toString(link.getAttributes().getInterfaceDescriptions()));
+		row.add(link.getAttributes().getMaximumSizeEstimate());
+		row.add(link.getAttributes().hasObservable() ? "observable" : "");
+		return row;
 	}
 
 	private String typeNames(List<String> contentTypes) {
@@ -270,9 +469,8 @@ public class CoapShellCommands implements ApplicationEventPublisherAware {
 		else {
 			this.coapClient.useCONs();
 		}
-		this.connectionStatus.setMode((
-				disabled == false) ? CoapConnectionStatus.RequestMode.con : CoapConnectionStatus.RequestMode.non);
-		this.eventPublisher.publishEvent(this.connectionStatus);
+		publish(new CoapConnectionEvent.ModeChanged(this.connectionStatus, this.connectionStatus.withMode((
+				disabled == false) ? CoapConnectionStatus.RequestMode.con : CoapConnectionStatus.RequestMode.non)));
 		return "";
 	}
 
@@ -281,23 +479,20 @@ public class CoapShellCommands implements ApplicationEventPublisherAware {
 	public String get(
 			@ShellOption(help = "Resource URI path", valueProvider = UriPathValueProvider.class) String path,
 			@ShellOption(defaultValue = "false", help = "If set an asynchronous Get will be performed") boolean async,
-			@ShellOption(defaultValue = COAP_TEXT_PLAIN, help = "accepted response content-type", valueProvider = ContentTypeValueProvider.class) String accept) throws ConnectorException, IOException {
+			@ShellOption(defaultValue = COAP_TEXT_PLAIN, help = "accepted response content-type", valueProvider = ContentTypeValueProvider.class) String accept,
+			@ShellOption(defaultValue = "auto", help = "response payload rendering: auto, text, hex or base64") PayloadRendering render) throws ConnectorException, IOException {
 
 		StringBuffer result = new StringBuffer();
 		final String baseUri = this.coapClient.getURI();
-		try {
-			//result.append(requestInfo("GET", baseUri + path, async));
-			this.coapClient.setURI(this.coapClient.getURI() + path);
-			if (async) {
-				this.coapClient.get(new AsyncCommandHandler(baseUri + path), coapContentType(accept));
-			}
-			else {
-				CoapResponse response = this.coapClient.get(coapContentType(accept));
-				result.append(PrintUtils.prettyPrint(response, requestInfo("GET", baseUri + path, async)));
-			}
+		Request request = newRequest(Request.newGet(), path);
+		request.getOptions().setAccept(coapContentType(accept));
+		if (async) {
+			this.coapClient.advanced(new AsyncCommandHandler(baseUri + path, render), request);
 		}
-		finally {
-			this.coapClient.setURI(baseUri);
+		else {
+			CoapResponse response = this.coapClient.advanced(request);
+			this.historyLog.record(baseUri, path, request, response);
+			result.append(PrintUtils.prettyPrint(response, requestInfo("GET", baseUri + path, async), render));
 		}
 
 		return result.toString();
@@ -307,36 +502,30 @@ public class CoapShellCommands implements ApplicationEventPublisherAware {
 	@ShellMethodAvailability("availabilityCheck")
 	public String post(
 			@ShellOption(help = "Resource URI path", valueProvider = UriPathValueProvider.class) String path,
-			@ShellOption(defaultValue = ShellOption.NULL, help = "message payload") String payload,
-			@ShellOption(defaultValue = ShellOption.NULL, help = "message payload file") File payloadFile,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "message payload (JSON for the cbor and senml content-types)") String payload,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "message payload as hex string") String payloadHex,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "message payload as Base64 string") String payloadBase64,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "message payload file (sent as is)") File payloadFile,
 			@ShellOption(defaultValue = COAP_TEXT_PLAIN, help = "payload content-type", valueProvider = ContentTypeValueProvider.class) String format,
 			@ShellOption(defaultValue = COAP_TEXT_PLAIN, help = "accepted response content-type", valueProvider = ContentTypeValueProvider.class) String accept,
+			@ShellOption(defaultValue = "auto", help = "response payload rendering: auto, text, hex or base64") PayloadRendering render,
 			@ShellOption(defaultValue = "false", help = "If set an asynchronous Post will be performed") boolean async) throws IOException, ConnectorException {
 
-		Assert.isTrue(payloadFile == null || payloadFile.exists(),
-				"Payload file [" + payloadFile + "] doesn't exists!");
-		Assert.isTrue(!(payloadFile != null && StringUtils.hasText(payload)),
-				"The `payload` and `payload-file` arguments are mutually exclusive!");
-		Assert.isTrue(payloadFile != null || StringUtils.hasText(payload), "Either the `payload` or `payload-file` parameter must be set!");
-
-		String payloadContent = (payloadFile != null) ? FileCopyUtils.copyToString(new FileReader(payloadFile)) : payload;
+		byte[] payloadBytes = payloadBytes(payload, payloadHex, payloadBase64, payloadFile, coapContentType(format));
 
 		StringBuffer result = new StringBuffer();
 		String baseUri = coapClient.getURI();
-		try {
-			this.coapClient.setURI(baseUri + path);
-			if (async) {
-				coapClient.post(new AsyncCommandHandler(baseUri + path), payloadContent,
-						coapContentType(format), coapContentType(accept));
-			}
-			else {
-				CoapResponse response = coapClient.post(payloadContent,
-						coapContentType(format), coapContentType(accept));
-				result.append(PrintUtils.prettyPrint(response, requestInfo("POST", baseUri + path, async)));
-			}
+		Request request = newRequest(Request.newPost(), path);
+		request.setPayload(payloadBytes);
+		request.getOptions().setContentFormat(coapContentType(format));
+		request.getOptions().setAccept(coapContentType(accept));
+		if (async) {
+			coapClient.advanced(new AsyncCommandHandler(baseUri + path, render), request);
 		}
-		finally {
-			coapClient.setURI(baseUri);
+		else {
+			CoapResponse response = coapClient.advanced(request);
+			this.historyLog.record(baseUri, path, request, response);
+			result.append(PrintUtils.prettyPrint(response, requestInfo("POST", baseUri + path, async), render));
 		}
 		return result.toString();
 	}
@@ -345,38 +534,64 @@ public class CoapShellCommands implements ApplicationEventPublisherAware {
 	@ShellMethodAvailability("availabilityCheck")
 	public String put(
 			@ShellOption(help = "PUT resource URI path", valueProvider = UriPathValueProvider.class) String path,
-			@ShellOption(defaultValue = ShellOption.NULL, help = "PUT message payload") String payload,
-			@ShellOption(defaultValue = ShellOption.NULL, help = "message payload file") File payloadFile,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "PUT message payload (JSON for the cbor and senml content-types)") String payload,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "PUT message payload as hex string") String payloadHex,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "PUT message payload as Base64 string") String payloadBase64,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "message payload file (sent as is)") File payloadFile,
 			@ShellOption(defaultValue = COAP_TEXT_PLAIN, help = "payload content-type", valueProvider = ContentTypeValueProvider.class) String format,
+			@ShellOption(defaultValue = "auto", help = "response payload rendering: auto, text, hex or base64") PayloadRendering render,
 			@ShellOption(defaultValue = "false", help = "If set an asynchronous PUT will be performed") boolean async) throws IOException, ConnectorException {
 
-		Assert.isTrue(payloadFile == null || payloadFile.exists(),
-				"Payload file [" + payloadFile + "] doesn't exists!");
-		Assert.isTrue(!(payloadFile != null && StringUtils.hasText(payload)),
-				"The `payload` and `payload-file` arguments are mutually exclusive!");
-		Assert.isTrue(payloadFile != null || StringUtils.hasText(payload), "Either the `payload` or `payload-file` parameter must be set!");
-
-		String payloadContent = (payloadFile != null) ? FileCopyUtils.copyToString(new FileReader(payloadFile)) : payload;
+		byte[] payloadBytes = payloadBytes(payload, payloadHex, payloadBase64, payloadFile, coapContentType(format));
 
 		StringBuffer result = new StringBuffer();
 		final String baseUri = this.coapClient.getURI();
-		try {
-			this.coapClient.setURI(baseUri + path);
-			if (async) {
-				this.coapClient.put(new AsyncCommandHandler(baseUri + path), payloadContent, coapContentType(format));
-			}
-			else {
-				CoapResponse response = this.coapClient.put(payloadContent, coapContentType(format));
-				result.append(PrintUtils.prettyPrint(response, requestInfo("PUT", baseUri + path, async)));
-			}
+		Request request = newRequest(Request.newPut(), path);
+		request.setPayload(payloadBytes);
+		request.getOptions().setContentFormat(coapContentType(format));
+		if (async) {
+			this.coapClient.advanced(new AsyncCommandHandler(baseUri + path, render), request);
 		}
-		finally {
-			this.coapClient.setURI(baseUri);
+		else {
+			CoapResponse response = this.coapClient.advanced(request);
+			this.historyLog.record(baseUri, path, request, response);
+			result.append(PrintUtils.prettyPrint(response, requestInfo("PUT", baseUri + path, async), render));
 		}
 
 		return result.toString();
 	}
 
+	/**
+	 * Resolves the request payload from the mutually exclusive payload arguments.
+	 * Hex, Base64 and file payloads are sent byte by byte (JSON files are still encoded for the CBOR content-types),
+	 * text payloads are encoded for the request content-type.
+	 */
+	byte[] payloadBytes(String payload, String payloadHex, String payloadBase64, File payloadFile,
+			int contentFormat) throws IOException {
+
+		int payloadArguments = (StringUtils.hasText(payload) ? 1 : 0) + (StringUtils.hasText(payloadHex) ? 1 : 0)
+				+ (StringUtils.hasText(payloadBase64) ? 1 : 0) + ((payloadFile != null) ? 1 : 0);
+		Assert.isTrue(payloadArguments > 0,
+				"Either the `payload`, `payload-hex`, `payload-base64` or `payload-file` parameter must be set!");
+		Assert.isTrue(payloadArguments == 1,
+				"The `payload`, `payload-hex`, `payload-base64` and `payload-file` arguments are mutually exclusive!");
+		Assert.isTrue(payloadFile == null || payloadFile.exists(),
+				"Payload file [" + payloadFile + "] doesn't exists!");
+
+		if (StringUtils.hasText(payloadHex)) {
+			return PayloadCodec.fromHex(payloadHex);
+		}
+		else if (StringUtils.hasText(payloadBase64)) {
+			return Base64.getMimeDecoder().decode(payloadBase64);
+		}
+		else if (payloadFile != null) {
+			byte[] content = Files.readAllBytes(payloadFile.toPath());
+			return PayloadCodec.isCbor(contentFormat) ?
+					PayloadCodec.encode(new String(content, StandardCharsets.UTF_8), contentFormat) : content;
+		}
+		return PayloadCodec.encode(payload, contentFormat);
+	}
+
 	@ShellMethod("Delete CoAP Resource")
 	@ShellMethodAvailability("availabilityCheck")
 	public String delete(@ShellOption(help = "Resource URI path to delete",
@@ -385,57 +600,158 @@ public class CoapShellCommands implements ApplicationEventPublisherAware {
 
 		StringBuffer result = new StringBuffer();
 		final String baseUri = this.coapClient.getURI();
-		try {
-			this.coapClient.setURI(baseUri + path);
-			if (async) {
-				this.coapClient.delete(new AsyncCommandHandler(baseUri + path));
-			}
-			else {
-				CoapResponse response = this.coapClient.delete();
-				result.append(PrintUtils.prettyPrint(response, requestInfo("DELETE", baseUri + path, async)));
-			}
+		Request request = newRequest(Request.newDelete(), path);
+		if (async) {
+			this.coapClient.advanced(new AsyncCommandHandler(baseUri + path), request);
 		}
-		finally {
-			this.coapClient.setURI(baseUri);
+		else {
+			CoapResponse response = this.coapClient.advanced(request);
+			this.historyLog.record(baseUri, path, request, response);
+			result.append(PrintUtils.prettyPrint(response, requestInfo("DELETE", baseUri + path, async)));
 		}
 		return result.toString();
 	}
 
+	@ShellMethod("Request the parts of a CoAP Resource selected by the payload (RFC 8132 FETCH)")
+	@ShellMethodAvailability("availabilityCheck")
+	public String fetch(
+			@ShellOption(help = "Resource URI path", valueProvider = UriPathValueProvider.class) String path,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "FETCH query payload (JSON for the cbor and senml content-types)") String payload,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "FETCH query payload as hex string") String payloadHex,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "FETCH query payload as Base64 string") String payloadBase64,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "FETCH query payload file (sent as is)") File payloadFile,
+			@ShellOption(defaultValue = "" + MediaTypeRegistry.APPLICATION_JSON, help = "query payload content-type", valueProvider = ContentTypeValueProvider.class) String format,
+			@ShellOption(defaultValue = COAP_TEXT_PLAIN, help = "accepted response content-type", valueProvider = ContentTypeValueProvider.class) String accept,
+			@ShellOption(defaultValue = "auto", help = "response payload rendering: auto, text, hex or base64") PayloadRendering render,
+			@ShellOption(defaultValue = "false", help = "If set an asynchronous FETCH will be performed") boolean async) throws IOException, ConnectorException {
+
+		return exchangePayload(CoAP.Code.FETCH, path, payload, payloadHex, payloadBase64, payloadFile,
+				coapContentType(format), coapContentType(accept), render, async);
+	}
+
+	@ShellMethod("Partially update a CoAP Resource with a patch document (RFC 8132 PATCH)")
+	@ShellMethodAvailability("availabilityCheck")
+	public String patch(
+			@ShellOption(help = "PATCH resource URI path", valueProvider = UriPathValueProvider.class) String path,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "patch document (JSON for the cbor content-types)") String payload,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "patch document as hex string") String payloadHex,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "patch document as Base64 string") String payloadBase64,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "patch document file (sent as is)") File payloadFile,
+			@ShellOption(defaultValue = "" + PayloadCodec.APPLICATION_MERGE_PATCH_JSON, help = "patch content-type (JSON Merge Patch by default)", valueProvider = ContentTypeValueProvider.class) String format,
+			@ShellOption(defaultValue = "auto", help = "response payload rendering: auto, text, hex or base64") PayloadRendering render,
+			@ShellOption(defaultValue = "false", help = "If set an asynchronous PATCH will be performed") boolean async) throws IOException, ConnectorException {
+
+		return exchangePayload(CoAP.Code.PATCH, path, payload, payloadHex, payloadBase64, payloadFile,
+				coapContentType(format), MediaTypeRegistry.UNDEFINED, render, async);
+	}
+
+	@ShellMethod("Idempotently update a CoAP Resource with a patch document (RFC 8132 iPATCH)")
+	@ShellMethodAvailability("availabilityCheck")
+	public String ipatch(
+			@ShellOption(help = "iPATCH resource URI path", valueProvider = UriPathValueProvider.class) String path,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "patch document (JSON for the cbor content-types)") String payload,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "patch document as hex string") String payloadHex,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "patch document as Base64 string") String payloadBase64,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "patch document file (sent as is)") File payloadFile,
+			@ShellOption(defaultValue = "" + PayloadCodec.APPLICATION_MERGE_PATCH_JSON, help = "patch content-type (JSON Merge Patch by default)", valueProvider = ContentTypeValueProvider.class) String format,
+			@ShellOption(defaultValue = "auto", help = "response payload rendering: auto, text, hex or base64") PayloadRendering render,
+			@ShellOption(defaultValue = "false", help = "If set an asynchronous iPATCH will be performed") boolean async) throws IOException, ConnectorException {
+
+		return exchangePayload(CoAP.Code.IPATCH, path, payload, payloadHex, payloadBase64, payloadFile,
+				coapContentType(format), MediaTypeRegistry.UNDEFINED, render, async);
+	}
+
+	/**
+	 * Sends a FETCH, PATCH or iPATCH request. A JSON text payload rejected with 4.15 (Unsupported Content-Format)
+	 * is sent once more in the other encoding: application/json as application/cbor and vice versa. The patch
+	 * formats (JSON Patch, JSON Merge Patch) have no registered CBOR equivalent and are not re-sent, a plain CBOR
+	 * document would change the meaning of the patch.
+	 */
+	private String exchangePayload(CoAP.Code code, String path, String payload, String payloadHex,
+			String payloadBase64, File payloadFile, int format, int accept, PayloadRendering render, boolean async)
+			throws IOException, ConnectorException {
+
+		byte[] payloadBytes = payloadBytes(payload, payloadHex, payloadBase64, payloadFile, format);
+
+		final String baseUri = this.coapClient.getURI();
+		Request request = newRequest(new Request(code), path);
+		request.setPayload(payloadBytes);
+		request.getOptions().setContentFormat(format);
+		if (accept != MediaTypeRegistry.UNDEFINED) {
+			request.getOptions().setAccept(accept);
+		}
+		if (async) {
+			this.coapClient.advanced(new AsyncCommandHandler(baseUri + path, render), request);
+			return "";
+		}
+
+		CoapResponse response = this.coapClient.advanced(request);
+		this.historyLog.record(baseUri, path, request, response);
+
+		int alternative = alternativeFormat(format);
+		if (response != null && response.getCode() == CoAP.ResponseCode.UNSUPPORTED_CONTENT_FORMAT
+				&& StringUtils.hasText(payload) && alternative != MediaTypeRegistry.UNDEFINED) {
+			Request retry = newRequest(new Request(code), path);
+			retry.setPayload(PayloadCodec.encode(payload, alternative));
+			retry.getOptions().setContentFormat(alternative);
+			if (accept != MediaTypeRegistry.UNDEFINED) {
+				retry.getOptions().setAccept(accept);
+			}
+			response = this.coapClient.advanced(retry);
+			this.historyLog.record(baseUri, path, retry, response);
+			return PrintUtils.prettyPrint(response, requestInfo(code.name(), baseUri + path, false) + " "
+					+ cyan("(" + MediaTypeRegistry.toString(format) + " -> " + MediaTypeRegistry.toString(alternative) + ")"), render);
+		}
+		return PrintUtils.prettyPrint(response, requestInfo(code.name(), baseUri + path, false), render);
+	}
+
+	/**
+	 * @return the content format of the same document in the other encoding, UNDEFINED if there is none
+	 */
+	private static int alternativeFormat(int format) {
+		switch (format) {
+		case MediaTypeRegistry.APPLICATION_JSON:
+			return MediaTypeRegistry.APPLICATION_CBOR;
+		case MediaTypeRegistry.APPLICATION_CBOR:
+			return MediaTypeRegistry.APPLICATION_JSON;
+		default:
+			return MediaTypeRegistry.UNDEFINED;
+		}
+	}
+
 	@ShellMethod(key = "observe", value = "Start observing data from a CoAP Resource")
 	@ShellMethodAvailability("observerAvailabilityCheck")
-	public String observeStart(
+	public synchronized String observeStart(
 			@ShellOption(help = "Resource URI path", valueProvider = UriPathValueProvider.class) String path,
-			@ShellOption(defaultValue = COAP_TEXT_PLAIN, help = "accepted response content-type", valueProvider = ContentTypeValueProvider.class) String accept) {
+			@ShellOption(defaultValue = COAP_TEXT_PLAIN, help = "accepted response content-type", valueProvider = ContentTypeValueProvider.class) String accept,
+			@ShellOption(defaultValue = "0", help = "keep only the latest notification per interval (ms), 0 to disable") long coalesce,
+			@ShellOption(defaultValue = "1", help = "keep every N-th notification, also for the recorded values") int sample,
+			@ShellOption(defaultValue = "0", help = "max notifications per second, 0 for unlimited") double maxRate,
+			@ShellOption(defaultValue = "64", help = "max notifications waiting to be processed, the rest is dropped") int queueSize,
+			@ShellOption(defaultValue = "100", help = "max number of retained notifications") int maxMessages,
+			@ShellOption(defaultValue = "0", help = "max seconds between notifications before re-registering, 0 to rely on Max-Age only") int maxGap,
+			@ShellOption(defaultValue = "false", help = "disable the automatic re-registration and reconnect of stale observe relations") boolean disableRecovery,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "JSON pointer of the numeric value to record (e.g. /temp), all numeric values by default") String valuePath,
+			@ShellOption(defaultValue = "16", help = "max number of recorded value series") int maxSeries) {
 
 		StringBuffer result = new StringBuffer();
 		final String baseUri = this.coapClient.getURI();
-		try {
-			this.coapClient.setURI(baseUri + path);
-			result.append(requestInfo("OBSERVE Start", baseUri + path, false));
-			this.connectionStatus.setObservedUri(baseUri + path);
-
-			CoapHandler handler = new CoapHandler() {
-				@Override
-				public void onLoad(CoapResponse response) {
-					observerResponses
-							.append(cyan(PrintUtils.prettyPrint(response,
-									cyan("OBSERVE Response (" + connectionStatus.getObservedUri() + "):"))))
-							.append(StringUtil.lineSeparator());
-				}
-
-				@Override
-				public void onError() {
-					observerResponses
-							.append(red("OBSERVE Error (" + connectionStatus.getObservedUri() + "):")).append(StringUtil.lineSeparator());
-				}
-			};
-
-			this.observeRelation = this.coapClient.observe(handler, coapContentType(accept));
-			this.eventPublisher.publishEvent(this.connectionStatus);
-		}
-		finally {
-			this.coapClient.setURI(baseUri);
-		}
+		result.append(requestInfo("OBSERVE Start", baseUri + path, false));
+
+		// the previous observe (canceled relation) might still have its worker and health timer running
+		closeObserve();
+
+		this.timeSeries = new TimeSeriesStore(TimeSeriesStore.DEFAULT_RAW_CAPACITY, maxSeries);
+		this.observeHandler = new BoundedObserveHandler(baseUri + path, coalesce, sample, maxRate, queueSize, maxMessages,
+				this.timeSeries, valuePath);
+		this.observeMonitor = new ObserveHealthMonitor(this.observeHandler, TimeUnit.SECONDS.toMillis(maxGap),
+				!disableRecovery, 3, monitor -> reregisterObserve(monitor, path, accept),
+				monitor -> reconnectObserve(monitor, path, accept));
+
+		this.observeClient = this.coapClient;
+		this.observeRelation = this.observeClient.observe(observeRequest(path, accept), this.observeMonitor);
+		publish(new CoapConnectionEvent.ObserveStarted(this.connectionStatus,
+				this.connectionStatus.withObservedUri(baseUri + path)));
 
 		return result.toString();
 	}
@@ -443,22 +759,230 @@ public class CoapShellCommands implements ApplicationEventPublisherAware {
 	@ShellMethod(key = "observe show messages", value = "List observed responses")
 	@ShellMethodAvailability("stopObserverAvailabilityCheck")
 	public String observeShowMessages() {
-		return cyan(this.observerResponses.toString());
+		return cyan(this.observeHandler.getMessages());
+	}
+
+	@ShellMethod(key = "observe status", value = "Show the observe notification and drop counters")
+	@ShellMethodAvailability("stopObserverAvailabilityCheck")
+	public String observeStatus() {
+		return cyan("OBSERVE (" + this.connectionStatus.getObservedUri() + ") " + this.observeHandler.stats()
+				+ StringUtil.lineSeparator() + "HEALTH " + this.observeMonitor.stats());
+	}
+
+	@ShellMethod(key = "observe stats", value = "Show the statistics of the recorded numeric observe values")
+	@ShellMethodAvailability("timeSeriesAvailabilityCheck")
+	public Table observeStats(
+			@ShellOption(defaultValue = "0", help = "statistics of the last N seconds, 0 for all retained raw values") long window) {
+
+		long since = (window > 0) ? System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(window) : 0;
+		List<Row> rows = new ArrayList<>();
+		for (String name : this.timeSeries.names()) {
+			TimeSeriesStore.Series series = this.timeSeries.get(name);
+			double[] sorted = series.sortedValues(since);
+			double sum = 0;
+			for (double value : sorted) {
+				sum += value;
+			}
+			Row row = new Row();
+			row.getColumn().add(name);
+			row.getColumn().add("" + series.getCount());
+			row.getColumn().add(format(series.getLast()));
+			row.getColumn().add((sorted.length > 0) ? format(sorted[0]) : "-");
+			row.getColumn().add((sorted.length > 0) ? format(sum / sorted.length) : "-");
+			row.getColumn().add(format(TimeSeriesStore.percentile(sorted, 50)));
+			row.getColumn().add(format(TimeSeriesStore.percentile(sorted, 95)));
+			row.getColumn().add(format(TimeSeriesStore.percentile(sorted, 99)));
+			row.getColumn().add((sorted.length > 0) ? format(sorted[sorted.length - 1]) : "-");
+			row.getColumn().add(PrintUtils.sparkline(series.points(0, 20).getAvg(),
+					(sorted.length > 0) ? sorted[0] : 0, (sorted.length > 0) ? sorted[sorted.length - 1] : 0));
+			rows.add(row);
+		}
+
+		LinkedHashMap<String, Object> headers = new LinkedHashMap<>();
+		headers.put("column[0]", "Series");
+		headers.put("column[1]", "Count");
+		headers.put("column[2]", "Last");
+		headers.put("column[3]", "Min");
+		headers.put("column[4]", "Avg");
+		headers.put("column[5]", "p50");
+		headers.put("column[6]", "p95");
+		headers.put("column[7]", "p99");
+		headers.put("column[8]", "Max");
+		headers.put("column[9]", "Last 20s");
+		TableModel model = new BeanListTableModel(rows, headers);
+		TableBuilder tableBuilder = new TableBuilder(model);
+		return tableBuilder.addHeaderAndVerticalsBorders(BorderStyle.fancy_light).build();
+	}
+
+	@ShellMethod(key = "observe plot", value = "Plot a recorded numeric observe value series")
+	@ShellMethodAvailability("timeSeriesAvailabilityCheck")
+	public String observePlot(
+			@ShellOption(defaultValue = ShellOption.NULL, help = "series name, the first series by default") String series,
+			@ShellOption(defaultValue = "1s", help = "resolution: raw, 1s or 1m") String resolution,
+			@ShellOption(defaultValue = "60", help = "number of plotted points") int width) {
+
+		String name = (series != null) ? series : this.timeSeries.names().get(0);
+		TimeSeriesStore.Series values = this.timeSeries.get(name);
+		Assert.notNull(values, "No values recorded for the series [" + name + "], recorded: " + this.timeSeries.names());
+		Assert.isTrue(width > 0, "The width must be positive");
+
+		TimeSeriesStore.Points points = values.points(TimeSeriesStore.resolution(resolution), width);
+		double min = Arrays.stream(points.getMin()).min().orElse(0);
+		double max = Arrays.stream(points.getMax()).max().orElse(0);
+		return cyan(String.format("%s (%s, %d points, %s .. %s)", name, resolution, points.size(), format(min), format(max)))
+				+ StringUtil.lineSeparator() + "max " + PrintUtils.sparkline(points.getMax(), min, max)
+				+ StringUtil.lineSeparator() + "avg " + PrintUtils.sparkline(points.getAvg(), min, max)
+				+ StringUtil.lineSeparator() + "min " + PrintUtils.sparkline(points.getMin(), min, max);
+	}
+
+	private String format(double value) {
+		return Double.isNaN(value) ? "-" : String.format("%.3f", value);
+	}
+
+	/**
+	 * @return the numeric values of the last observe, null if there was none
+	 */
+	public TimeSeriesStore getTimeSeries() {
+		return this.timeSeries;
 	}
 
 	@ShellMethod(key = "observe stop", value = "Stop the observe task")
 	@ShellMethodAvailability("stopObserverAvailabilityCheck")
-	public String observeStop() {
+	public synchronized String observeStop() {
 		if (this.observeRelation != null && !this.observeRelation.isCanceled()) {
 			this.observeRelation.proactiveCancel();
-			this.observerResponses = new StringBuilder();
-			String response = "OBSERVE stopped (" + this.connectionStatus.getObservedUri() + ")";
-			this.eventPublisher.publishEvent(this.connectionStatus.setObservedUri(null));
+			closeObserve();
+			String response = "OBSERVE stopped (" + this.connectionStatus.getObservedUri() + ") " + this.observeHandler.stats();
+			publish(new CoapConnectionEvent.ObserveStopped(this.connectionStatus, this.connectionStatus.withObservedUri(null)));
 			return cyan(response);
 		}
 		return red("NO observer to stop");
 	}
 
+	private Request observeRequest(String path, String accept) {
+		Request request = newRequest(Request.newGet(), path);
+		request.setObserve();
+		request.getOptions().setAccept(coapContentType(accept));
+		return request;
+	}
+
+	private void closeObserve() {
+		if (this.observeHandler != null) {
+			this.observeHandler.close();
+			this.observeMonitor.close();
+		}
+		if (this.observeEndpoint != null) {
+			this.observeClient.shutdown();
+			this.observeEndpoint.destroy();
+			this.observeEndpoint = null;
+		}
+		this.observeClient = null;
+	}
+
+	/**
+	 * Refreshes a stale observe relation. Canceled relations (e.g. after a failed notification) are observed anew.
+	 * @param monitor - monitor requesting the recovery, ignored unless it belongs to the current observe
+	 */
+	private synchronized void reregisterObserve(ObserveHealthMonitor monitor, String path, String accept) {
+		if (monitor != this.observeMonitor || this.observeRelation == null || this.observeClient == null) {
+			return;
+		}
+		if (this.observeRelation.isCanceled()) {
+			this.observeRelation = this.observeClient.observe(observeRequest(path, accept), this.observeMonitor);
+		}
+		else {
+			this.observeRelation.reregister();
+		}
+	}
+
+	/**
+	 * Observes the resource again through a new DTLS endpoint (the DTLS session might be gone). The new endpoint
+	 * belongs to the observe relation only: the shell endpoint stays in place for the clients handed out by
+	 * {@link #newClient(String)}, only a previous observe endpoint is destroyed.
+	 */
+	private synchronized void reconnectObserve(ObserveHealthMonitor monitor, String path, String accept) {
+		if (monitor != this.observeMonitor || this.observeRelation == null || this.observeClient == null) {
+			return;
+		}
+		this.observeRelation.reactiveCancel();
+		if (this.dtls) {
+			Endpoint staleEndpoint = this.observeEndpoint;
+			CoapClient staleClient = this.observeClient;
+			this.observeEndpoint = createDtlsEndpoint(this.connectionStatus.getIdentity(), this.connectionStatus.getSecret());
+			this.observeClient = newClient("");
+			this.observeClient.setEndpoint(this.observeEndpoint);
+			if (staleEndpoint != null) {
+				staleClient.shutdown();
+				staleEndpoint.destroy();
+			}
+		}
+		this.observeRelation = this.observeClient.observe(observeRequest(path, accept), this.observeMonitor);
+	}
+
+	/**
+	 * Prepares a request for the path on the connected server. Applies the request mode (CON/NON) and marks
+	 * the request for OSCORE protection when connected with an OSCORE security context. When tracing is on the
+	 * request wire timings are recorded.
+	 * @param request - new request to prepare
+	 * @param path - URI path relative to the connected server
+	 * @return the prepared request
+	 */
+	public Request newRequest(Request request, String path) {
+		Assert.state(this.coapClient != null, "you are not connected");
+		newAbsoluteRequest(request, this.coapClient.getURI() + path);
+		if (this.oscore) {
+			request.getOptions().setOscore(Bytes.EMPTY);
+		}
+		return request;
+	}
+
+	/**
+	 * Prepares a request for an absolute URI (e.g. a resource returned by a Resource Directory lookup) with the
+	 * request mode of the shell connection. The OSCORE context is bound to the connected server and is not applied.
+	 * @param request - new request to prepare
+	 * @param uri - absolute resource URI
+	 * @return the prepared request
+	 */
+	public Request newAbsoluteRequest(Request request, String uri) {
+		Assert.state(this.coapClient != null, "you are not connected");
+		request.setURI(uri);
+		request.setConfirmable(this.connectionStatus.getMode() != CoapConnectionStatus.RequestMode.non);
+		this.tracer.attach(request, (getEndpoint() != null) ? getEndpoint()
+				: EndpointManager.getEndpointManager().getDefaultEndpoint(request.getScheme()));
+		return request;
+	}
+
+	/**
+	 * @return the endpoint of the shell connection, null if the default endpoint is used
+	 */
+	public Endpoint getEndpoint() {
+		return (this.coapClient != null) ? this.coapClient.getEndpoint() : null;
+	}
+
+	/**
+	 * Creates a new client for the path on the connected server. The new client shares the endpoint (e.g. the DTLS
+	 * session) and the request mode of the shell connection, so it can be used for concurrent requests.
+	 * @param path - URI path relative to the connected server
+	 * @return new client for the path
+	 */
+	public CoapClient newClient(String path) {
+		Assert.state(this.coapClient != null, "you are not connected");
+		String baseUri = this.coapClient.getURI();
+		CoapClient client = new CoapClient((baseUri.endsWith("/") && path.startsWith("/")) ?
+				baseUri + path.substring(1) : baseUri + path);
+		if (this.coapClient.getEndpoint() != null) {
+			client.setEndpoint(this.coapClient.getEndpoint());
+		}
+		if (this.connectionStatus.getMode() == CoapConnectionStatus.RequestMode.non) {
+			client.useNONs();
+		}
+		return client;
+	}
+
+	public String getBaseUri() {
+		return (this.coapClient != null) ? this.coapClient.getURI() : null;
+	}
+
 	//
 	// Shell Command Availability Polices
 	//
@@ -468,6 +992,11 @@ public class CoapShellCommands implements ApplicationEventPublisherAware {
 				: Availability.unavailable("you are not connected");
 	}
 
+	public Availability timeSeriesAvailabilityCheck() {
+		return (this.timeSeries != null && !this.timeSeries.names().isEmpty()) ? Availability.available()
+				: Availability.unavailable("no numeric observe values are recorded");
+	}
+
 	public Availability observerAvailabilityCheck() {
 		if (!availabilityCheck().isAvailable()) {
 			return availabilityCheck();
@@ -498,13 +1027,7 @@ public class CoapShellCommands implements ApplicationEventPublisherAware {
 	 * @return CoAP media type code
 	 */
 	private int coapContentType(String contentType) {
-		int coapContentTypeCode = -1;
-		try {
-			coapContentTypeCode = Integer.parseInt(contentType);
-		}
-		catch (NumberFormatException nfe) {
-		}
-		return (coapContentTypeCode < 0) ? MediaTypeRegistry.parse(contentType) : coapContentTypeCode;
+		return PayloadCodec.contentFormat(contentType);
 	}
 
 	/**
@@ -513,15 +1036,21 @@ public class CoapShellCommands implements ApplicationEventPublisherAware {
 
 	public class AsyncCommandHandler implements CoapHandler {
 		private String handlerUri;
+		private PayloadRendering rendering;
 
 		public AsyncCommandHandler(String handlerUri) {
+			this(handlerUri, PayloadRendering.auto);
+		}
+
+		public AsyncCommandHandler(String handlerUri, PayloadRendering rendering) {
 			this.handlerUri = handlerUri;
+			this.rendering = rendering;
 		}
 
 		@Override
 		public void onLoad(CoapResponse response) {
 			terminal.writer().append(StringUtil.lineSeparator())
-					.append(PrintUtils.prettyPrint(response, cyan(String.format("Async Response (%s)", handlerUri))))
+					.append(PrintUtils.prettyPrint(response, cyan(String.format("Async Response (%s)", handlerUri)), rendering))
 					.append(StringUtil.lineSeparator());
 			terminal.raise(Terminal.Signal.CONT);
 		}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.command;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import io.datalake.coap.coapshell.util.CoapDtlsSupport;
+import io.datalake.coap.coapshell.util.DtlsSessionStore;
+import io.datalake.coap.coapshell.util.DtlsStatistics;
+import io.datalake.coap.coapshell.util.Row;
+import org.jline.terminal.Terminal;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.shell.standard.ShellCommandGroup;
+import org.springframework.shell.standard.ShellComponent;
+import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellOption;
+import org.springframework.shell.table.BeanListTableModel;
+import org.springframework.shell.table.BorderStyle;
+import org.springframework.shell.table.Table;
+import org.springframework.shell.table.TableBuilder;
+import org.springframework.shell.table.TableModel;
+
+import static io.datalake.coap.coapshell.util.PrintUtils.green;
+import static io.datalake.coap.coapshell.util.PrintUtils.red;
+
+/**
+ * @author Christian Tzolov
+ */
+@ShellComponent
+@ShellCommandGroup(CoapShellCommands.SHELL_CONNECTIVITY_GROUP)
+public class DtlsCommands {
+
+	@Autowired
+	private CoapDtlsSupport dtls;
+
+	@Autowired
+	private DtlsSessionStore sessionStore;
+
+	@Autowired
+	@Lazy
+	private Terminal terminal;
+
+	@ShellMethod(key = "dtls stats", value = "DTLS handshakes and Connection ID sessions of the shell connectors")
+	public Table dtlsStats(@ShellOption(defaultValue = "false", help = "reset the counters after the listing") boolean reset) {
+		DtlsStatistics statistics = this.dtls.getStatistics();
+
+		List<Row> rows = new ArrayList<>();
+		rows.add(row("full handshakes", statistics.getFullHandshakes()));
+		rows.add(row("resumed sessions", statistics.getResumptions()));
+		rows.add(row("failed handshakes", statistics.getFailedHandshakes()));
+		rows.add(row("retransmitted flights", statistics.getRetransmittedFlights()));
+		rows.add(row("sessions with Connection ID", statistics.getConnectionIdSessions()));
+		if (reset) {
+			statistics.reset();
+		}
+
+		LinkedHashMap<String, Object> headers = new LinkedHashMap<>();
+		headers.put("column[0]", "Counter");
+		headers.put("column[1]", "Value");
+		TableModel model = new BeanListTableModel(rows, headers);
+		TableBuilder tableBuilder = new TableBuilder(model);
+		return tableBuilder.addHeaderAndVerticalsBorders(BorderStyle.fancy_light).build();
+	}
+
+	@ShellMethod(key = "dtls sessions", value = "List the stored DTLS sessions, resumed by the next connections")
+	public Table dtlsSessions() {
+		String unreadable = this.sessionStore.getUnreadable();
+		if (unreadable != null) {
+			this.terminal.writer().println(red("The DTLS session cache " + this.sessionStore.getFile() + " " + unreadable
+					+ ", run `dtls sessions clear` to start a new cache."));
+		}
+		List<Row> rows = new ArrayList<>();
+		for (DtlsSessionStore.Entry entry : this.sessionStore.getEntries()) {
+			Row row = new Row();
+			row.getColumn().add(entry.getIdentity().isEmpty() ? "(certificate)" : entry.getIdentity());
+			row.getColumn().add(entry.getPeer().getHostString() + ":" + entry.getPeer().getPort());
+			row.getColumn().add(Instant.ofEpochMilli(entry.getTime()).toString());
+			row.getColumn().add(entry.getSessionId());
+			rows.add(row);
+		}
+
+		LinkedHashMap<String, Object> headers = new LinkedHashMap<>();
+		headers.put("column[0]", "Identity");
+		headers.put("column[1]", "Peer");
+		headers.put("column[2]", "Established");
+		headers.put("column[3]", "Session ID");
+		TableModel model = new BeanListTableModel(rows, headers);
+		TableBuilder tableBuilder = new TableBuilder(model);
+		return tableBuilder.addHeaderAndVerticalsBorders(BorderStyle.fancy_light).build();
+	}
+
+	@ShellMethod(key = "dtls sessions clear", value = "Remove the stored DTLS sessions, the next connections perform full handshakes")
+	public String dtlsSessionsClear() {
+		return green("Removed " + this.sessionStore.clear() + " DTLS sessions from " + this.sessionStore.getFile());
+	}
+
+	private Row row(String counter, long value) {
+		Row row = new Row();
+		row.getColumn().add(counter);
+		row.getColumn().add("" + value);
+		return row;
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import io.datalake.coap.coapshell.util.ColumnarExporter;
+import io.datalake.coap.coapshell.util.ColumnarExporter.Column;
+import io.datalake.coap.coapshell.util.ColumnarExporter.Type;
+import io.datalake.coap.coapshell.util.ResourceSnapshot;
+import io.datalake.coap.coapshell.util.TimeSeriesStore;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.shell.standard.ShellCommandGroup;
+import org.springframework.shell.standard.ShellComponent;
+import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellOption;
+import org.springframework.util.Assert;
+
+import static io.datalake.coap.coapshell.util.PrintUtils.green;
+
+/**
+ * Exports the collected data into CSV or Arrow IPC files for the analysis with pandas or Spark. See
+ * {@link ColumnarExporter}.
+ *
+ * @author Christian Tzolov
+ */
+@ShellComponent
+@ShellCommandGroup(CoapShellCommands.SHELL_COAP_REST_COMMANDS_GROUP)
+public class ExportCommands {
+
+	public enum Source {
+		observe, crawl, bench
+	}
+
+	@Autowired
+	private CoapShellCommands coapShellCommands;
+
+	@Autowired
+	private BenchCommands benchCommands;
+
+	@ShellMethod(key = "export", value = "Export the observed values, a crawl snapshot or the bench results to a CSV or Arrow file")
+	public String export(
+			@ShellOption(help = "data to export: observe, crawl or bench") Source source,
+			@ShellOption(help = "output file, .arrow, .feather and .ipc files are written as Arrow IPC, others as CSV") File file,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "file format: csv or arrow, by the file extension by default") ColumnarExporter.Format format,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "crawl snapshot file (crawl source)") File snapshot,
+			@ShellOption(defaultValue = "raw", help = "observed values resolution: raw, 1s or 1m (observe source)") String resolution,
+			@ShellOption(defaultValue = "4096", help = "number of rows per written batch") int batchSize) throws IOException {
+
+		ColumnarExporter.Format fileFormat = (format != null) ? format : ColumnarExporter.Format.of(file);
+		long rows;
+		switch (source) {
+		case observe:
+			rows = exportObserve(file, fileFormat, TimeSeriesStore.resolution(resolution), batchSize);
+			break;
+		case crawl:
+			Assert.isTrue(snapshot != null && snapshot.exists(), "The crawl source requires an existing --snapshot file");
+			rows = exportCrawl(file, fileFormat, snapshot, batchSize);
+			break;
+		default:
+			rows = exportBench(file, fileFormat, batchSize);
+		}
+		return green(String.format("Exported %d %s rows to %s (%s)", rows, source, file, fileFormat));
+	}
+
+	private long exportObserve(File file, ColumnarExporter.Format format, int resolution, int batchSize)
+			throws IOException {
+		TimeSeriesStore timeSeries = this.coapShellCommands.getTimeSeries();
+		Assert.isTrue(timeSeries != null && !timeSeries.names().isEmpty(), "No numeric observe values are recorded");
+
+		List<Column> columns = (resolution < 0) ?
+				Arrays.asList(new Column("series", Type.STRING), new Column("time", Type.TIMESTAMP),
+						new Column("value", Type.DOUBLE)) :
+				Arrays.asList(new Column("series", Type.STRING), new Column("time", Type.TIMESTAMP),
+						new Column("min", Type.DOUBLE), new Column("max", Type.DOUBLE), new Column("avg", Type.DOUBLE));
+
+		try (ColumnarExporter exporter = ColumnarExporter.create(file, format, columns, batchSize)) {
+			for (String name : timeSeries.names()) {
+				// the copy of a series is bounded by the ring capacity of the store
+				TimeSeriesStore.Points points = timeSeries.get(name).points(resolution, Integer.MAX_VALUE);
+				for (int i = 0; i < points.size(); i++) {
+					exporter.setString(0, name).setLong(1, points.getTimes()[i]);
+					if (resolution < 0) {
+						exporter.setDouble(2, points.getAvg()[i]);
+					}
+					else {
+						exporter.setDouble(2, points.getMin()[i]).setDouble(3, points.getMax()[i])
+								.setDouble(4, points.getAvg()[i]);
+					}
+					exporter.endRow();
+				}
+			}
+			return exporter.getRows();
+		}
+	}
+
+	private long exportCrawl(File file, ColumnarExporter.Format format, File snapshot, int batchSize)
+			throws IOException {
+		List<Column> columns = Arrays.asList(new Column("base_uri", Type.STRING),
+				new Column("snapshot_time", Type.TIMESTAMP), new Column("path", Type.STRING),
+				new Column("code", Type.STRING), new Column("content_format", Type.LONG),
+				new Column("etag", Type.STRING), new Column("payload_hash", Type.STRING),
+				new Column("size", Type.LONG), new Column("rtt_ms", Type.LONG));
+
+		try (ColumnarExporter exporter = ColumnarExporter.create(file, format, columns, batchSize)) {
+			ResourceSnapshot.stream(snapshot, (baseUri, timestamp, entry) -> {
+				exporter.setString(0, baseUri).setLong(1, timestamp).setString(2, entry.getPath())
+						.setString(3, entry.getCode()).setLong(4, entry.getContentFormat())
+						.setString(5, entry.getEtag()).setString(6, entry.getPayloadHash())
+						.setLong(7, entry.getSize()).setLong(8, entry.getRtt());
+				exporter.endRow();
+			});
+			return exporter.getRows();
+		}
+	}
+
+	private long exportBench(File file, ColumnarExporter.Format format, int batchSize) throws IOException {
+		List<BenchCommands.Result> results = this.benchCommands.getLastResults();
+		Assert.isTrue(!results.isEmpty(), "No bench results, run `bench dtls` first");
+
+		List<Column> columns = Arrays.asList(new Column("connection_threads", Type.LONG),
+				new Column("receiver_threads", Type.LONG), new Column("requests", Type.LONG),
+				new Column("failed", Type.LONG), new Column("duration_ms", Type.LONG),
+				new Column("throughput", Type.DOUBLE), new Column("p50_ms", Type.DOUBLE),
+				new Column("p99_ms", Type.DOUBLE));
+
+		try (ColumnarExporter exporter = ColumnarExporter.create(file, format, columns, batchSize)) {
+			for (BenchCommands.Result result : results) {
+				exporter.setLong(0, result.getConnectionThreads()).setLong(1, result.getReceiverThreads())
+						.setLong(2, result.getRequests()).setLong(3, result.getFailed())
+						.setLong(4, result.getDurationMillis()).setDouble(5, result.getThroughput());
+				if (result.getP50Millis() != null) {
+					exporter.setDouble(6, result.getP50Millis()).setDouble(7, result.getP99Millis());
+				}
+				exporter.endRow();
+			}
+			return exporter.getRows();
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import io.datalake.coap.coapshell.provider.ContentTypeValueProvider;
+import io.datalake.coap.coapshell.util.CoapGroupClient;
+import io.datalake.coap.coapshell.util.CoapGroupClient.GroupResponse;
+import io.datalake.coap.coapshell.util.PayloadCodec;
+import io.datalake.coap.coapshell.util.Row;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.shell.standard.ShellCommandGroup;
+import org.springframework.shell.standard.ShellComponent;
+import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellOption;
+import org.springframework.shell.table.BeanListTableModel;
+import org.springframework.shell.table.BorderStyle;
+import org.springframework.shell.table.Table;
+import org.springframework.shell.table.TableBuilder;
+import org.springframework.shell.table.TableModel;
+
+/**
+ * Group (multicast) GET, PUT and POST requests, see {@link CoapGroupClient}. The group is addressed by an absolute
+ * URI such as {@code coap://224.0.1.187/config} or {@code coap://[ff05::fd]/config}, so no connection is required.
+ * The responses of all group members are aggregated into one table, ordered by responder address.
+ *
+ * @author Christian Tzolov
+ */
+@ShellComponent
+@ShellCommandGroup(CoapShellCommands.SHELL_COAP_REST_COMMANDS_GROUP)
+public class GroupCommands {
+
+	@Autowired
+	private CoapShellCommands coapShellCommands;
+
+	@ShellMethod(key = "group get", value = "Request data from all members of a multicast group")
+	public Table groupGet(
+			@ShellOption(help = "group resource URI, e.g. coap://224.0.1.187/sensors/temp") URI uri,
+			@ShellOption(defaultValue = CoapShellCommands.COAP_TEXT_PLAIN, help = "accepted response content-type", valueProvider = ContentTypeValueProvider.class) String accept,
+			@ShellOption(defaultValue = "" + CoapGroupClient.DEFAULT_LEISURE, help = "time to collect the responses in milliseconds") long leisure,
+			@ShellOption(defaultValue = "1", help = "multicast TTL / hop limit") int hops) throws IOException {
+
+		Request request = Request.newGet();
+		request.getOptions().setAccept(PayloadCodec.contentFormat(accept));
+		return exchange(request, uri, leisure, hops);
+	}
+
+	@ShellMethod(key = "group put", value = "Update data in a resource of all members of a multicast group")
+	public Table groupPut(
+			@ShellOption(help = "group resource URI, e.g. coap://224.0.1.187/config") URI uri,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "PUT message payload (JSON for the cbor and senml content-types)") String payload,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "PUT message payload as hex string") String payloadHex,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "PUT message payload as Base64 string") String payloadBase64,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "message payload file (sent as is)") File payloadFile,
+			@ShellOption(defaultValue = CoapShellCommands.COAP_TEXT_PLAIN, help = "payload content-type", valueProvider = ContentTypeValueProvider.class) String format,
+			@ShellOption(defaultValue = "" + CoapGroupClient.DEFAULT_LEISURE, help = "time to collect the responses in milliseconds") long leisure,
+			@ShellOption(defaultValue = "1", help = "multicast TTL / hop limit") int hops) throws IOException {
+
+		int contentFormat = PayloadCodec.contentFormat(format);
+		Request request = Request.newPut();
+		request.setPayload(this.coapShellCommands.payloadBytes(payload, payloadHex, payloadBase64, payloadFile, contentFormat));
+		request.getOptions().setContentFormat(contentFormat);
+		return exchange(request, uri, leisure, hops);
+	}
+
+	@ShellMethod(key = "group post", value = "Create/Update data in a resource of all members of a multicast group")
+	public Table groupPost(
+			@ShellOption(help = "group resource URI, e.g. coap://224.0.1.187/actions") URI uri,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "message payload (JSON for the cbor and senml content-types)") String payload,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "message payload as hex string") String payloadHex,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "message payload as Base64 string") String payloadBase64,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "message payload file (sent as is)") File payloadFile,
+			@ShellOption(defaultValue = CoapShellCommands.COAP_TEXT_PLAIN, help = "payload content-type", valueProvider = ContentTypeValueProvider.class) String format,
+			@ShellOption(defaultValue = CoapShellCommands.COAP_TEXT_PLAIN, help = "accepted response content-type", valueProvider = ContentTypeValueProvider.class) String accept,
+			@ShellOption(defaultValue = "" + CoapGroupClient.DEFAULT_LEISURE, help = "time to collect the responses in milliseconds") long leisure,
+			@ShellOption(defaultValue = "1", help = "multicast TTL / hop limit") int hops) throws IOException {
+
+		int contentFormat = PayloadCodec.contentFormat(format);
+		Request request = Request.newPost();
+		request.setPayload(this.coapShellCommands.payloadBytes(payload, payloadHex, payloadBase64, payloadFile, contentFormat));
+		request.getOptions().setContentFormat(contentFormat);
+		request.getOptions().setAccept(PayloadCodec.contentFormat(accept));
+		return exchange(request, uri, leisure, hops);
+	}
+
+	private Table exchange(Request request, URI uri, long leisure, int hops) throws IOException {
+		List<GroupResponse> responses = new CoapGroupClient(hops).send(request, uri, leisure);
+		responses.sort(Comparator.comparing(r -> r.getResponder().toString()));
+
+		List<Row> rows = new ArrayList<>();
+		for (GroupResponse groupResponse : responses) {
+			Response response = groupResponse.getResponse();
+			Row row = new Row();
+			row.getColumn().add(groupResponse.getResponder().getHostString() + ":" + groupResponse.getResponder().getPort());
+			row.getColumn().add(response.getCode().toString());
+			row.getColumn().add("" + groupResponse.getRtt());
+			row.getColumn().add("" + response.getPayloadSize());
+			row.getColumn().add(payload(response));
+			rows.add(row);
+		}
+
+		LinkedHashMap<String, Object> headers = new LinkedHashMap<>();
+		headers.put("column[0]", "Responder (" + responses.size() + ")");
+		headers.put("column[1]", "Code");
+		headers.put("column[2]", "Latency [ms]");
+		headers.put("column[3]", "Size [B]");
+		headers.put("column[4]", "Payload");
+		TableModel model = new BeanListTableModel(rows, headers);
+		TableBuilder tableBuilder = new TableBuilder(model);
+		return tableBuilder.addHeaderAndVerticalsBorders(BorderStyle.fancy_light).build();
+	}
+
+	private String payload(Response response) {
+		if (response.getPayloadSize() == 0) {
+			return "";
+		}
+		int contentFormat = response.getOptions().getContentFormat();
+		String text = PayloadCodec.decode(response.getPayload(), contentFormat);
+		if (text == null) {
+			text = (contentFormat == MediaTypeRegistry.UNDEFINED || MediaTypeRegistry.isPrintable(contentFormat)) ?
+					new String(response.getPayload(), StandardCharsets.UTF_8) : "0x" + PayloadCodec.toHex(response.getPayload());
+		}
+		text = text.replaceAll("\\s+", " ");
+		return (text.length() > 60) ? text.substring(0, 57) + "..." : text;
+	}
+}
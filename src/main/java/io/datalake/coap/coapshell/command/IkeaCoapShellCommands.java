@@ -18,28 +18,34 @@ package io.datalake.coap.coapshell.command;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.datalake.coap.coapshell.CoapConnectionEvent;
 import io.datalake.coap.coapshell.CoapConnectionStatus;
 import io.datalake.coap.coapshell.provider.IkeaDeviceInstanceValueProvider;
 import io.datalake.coap.coapshell.util.CoapDtlsSupport;
+import io.datalake.coap.coapshell.util.CoapTransportProfiles;
+import io.datalake.coap.coapshell.util.PayloadCodec;
 import io.datalake.coap.coapshell.util.PrintUtils;
-import io.datalake.coap.coapshell.util.Row;
+import io.datalake.coap.coapshell.util.StreamingTableWriter;
 import org.eclipse.californium.core.CoapClient;
 import org.eclipse.californium.core.CoapResponse;
 import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.network.CoapEndpoint;
-import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.californium.elements.exception.ConnectorException;
 import org.eclipse.californium.scandium.DTLSConnector;
+import org.jline.terminal.Terminal;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.context.event.EventListener;
 import org.springframework.core.NestedExceptionUtils;
 import org.springframework.shell.Availability;
@@ -48,11 +54,6 @@ import org.springframework.shell.standard.ShellComponent;
 import org.springframework.shell.standard.ShellMethod;
 import org.springframework.shell.standard.ShellMethodAvailability;
 import org.springframework.shell.standard.ShellOption;
-import org.springframework.shell.table.BeanListTableModel;
-import org.springframework.shell.table.BorderStyle;
-import org.springframework.shell.table.Table;
-import org.springframework.shell.table.TableBuilder;
-import org.springframework.shell.table.TableModel;
 import org.springframework.util.StringUtils;
 
 import static io.datalake.coap.coapshell.util.PrintUtils.cyan;
@@ -74,31 +75,77 @@ public class IkeaCoapShellCommands {
 	@Autowired
 	private CoapDtlsSupport dtsl;
 
-	private CoapConnectionStatus connectionStatus;
-
 	@Autowired
-	private IkeaDeviceInstanceValueProvider instanceValueProvider;
+	private CoapTransportProfiles profiles;
+
+	private volatile CoapConnectionStatus connectionStatus;
 
-	private CoapClient coapClient = new CoapClient();
+	@Autowired
+	@Qualifier("coapEventExecutor")
+	private Executor eventExecutor;
 
-	@EventListener
-	public void handle(CoapConnectionStatus connectionStatus) {
-		this.connectionStatus = connectionStatus;
+	@Autowired
+	private IkeaDeviceInstanceValueProvider instanceValueProvider;
 
-		if (this.coapClient.getEndpoint() != null) {
-			this.coapClient.getEndpoint().destroy(); // also destroys the connector
+	@Autowired
+	@Lazy
+	private Terminal terminal;
+
+	/**
+	 * Gateway client, created with its DTLS endpoint on the first IKEA command after a (re)connect.
+	 */
+	private CoapClient coapClient;
+
+	/**
+	 * Base URI and credentials the gateway client was created for.
+	 */
+	private List<String> coapClientKey;
+
+	/**
+	 * Whether the gateway accepts iPATCH updates, null until the first update.
+	 */
+	private volatile Boolean ipatchSupported;
+
+	/**
+	 * The gateway client depends on the server and the credentials only, so the mode and observe changes are not
+	 * subscribed. A replaced client is destroyed by the event executor, off the command thread.
+	 */
+	@EventListener({ CoapConnectionEvent.Connected.class, CoapConnectionEvent.Disconnected.class })
+	public synchronized void handle(CoapConnectionEvent event) {
+		this.connectionStatus = event.getStatus();
+
+		if (this.coapClient != null && !this.coapClientKey.equals(clientKey())) {
+			CoapClient staleClient = this.coapClient;
+			this.coapClient = null;
+			this.ipatchSupported = null;
+			this.eventExecutor.execute(() -> destroy(staleClient));
 		}
+	}
 
-		DTLSConnector dtlsConnector = dtsl.createConnector(
-				this.connectionStatus.getIdentity(), this.connectionStatus.getSecret());
+	private synchronized CoapClient client() {
+		if (this.coapClient == null) {
+			DTLSConnector dtlsConnector = dtsl.createConnector(
+					this.connectionStatus.getIdentity(), this.connectionStatus.getSecret());
 
-		CoapEndpoint coapEndpoint = new CoapEndpoint.Builder()
-				.setNetworkConfig(NetworkConfig.getStandard())
-				.setConnector(dtlsConnector).build();
+			CoapEndpoint coapEndpoint = new CoapEndpoint.Builder()
+					.setNetworkConfig(this.profiles.networkConfig())
+					.setConnector(dtlsConnector).build();
 
-		this.coapClient.setEndpoint(coapEndpoint);
+			this.coapClient = new CoapClient().setEndpoint(coapEndpoint);
+			this.coapClientKey = clientKey();
+		}
+		return this.coapClient;
 	}
 
+	private List<String> clientKey() {
+		return Arrays.asList(this.connectionStatus.getBaseUri(), this.connectionStatus.getIdentity(),
+				this.connectionStatus.getSecret());
+	}
+
+	private static void destroy(CoapClient client) {
+		client.getEndpoint().destroy(); // also destroys the connector
+		client.shutdown();
+	}
 
 	@ShellMethod(key = "ikea gateway key", value = "Generate IDENTITY and PRE_SHARED_KEY for IKEA TRÅDFRI Gateway")
 	public String generateIkeaGatewayKey(
@@ -109,7 +156,7 @@ public class IkeaCoapShellCommands {
 		DTLSConnector dtlsConnector = dtsl.createConnector(IKEA_GATEWAY_CLIENT_IDENTITY, gatewayCode);
 
 		CoapEndpoint coapEndpoint = new CoapEndpoint.Builder()
-				.setNetworkConfig(NetworkConfig.getStandard())
+				.setNetworkConfig(this.profiles.networkConfig())
 				.setConnector(dtlsConnector).build();
 		CoapClient pskCoapClient = new CoapClient(String.format(IKEA_GATEWAY_KEY_URL_TEMPLATE, gatewayIp.trim()))
 				.setTimeout(TimeUnit.SECONDS.toMillis(10))
@@ -206,40 +253,32 @@ public class IkeaCoapShellCommands {
 
 	@ShellMethod(key = "ikea device list", value = "List all devices registered to the IKEA TRÅDFRI Gateway")
 	@ShellMethodAvailability("ikeaAvailabilityCheck")
-	public Table listIkeaDevices() throws IOException, ConnectorException {
+	public String listIkeaDevices() throws IOException, ConnectorException {
 		ObjectMapper mapper = new ObjectMapper();
 		String json = getJson("/15001");
 		Integer[] deviceIds = mapper.readValue(json, Integer[].class);
 		this.instanceValueProvider.updatePrefixHints(Arrays.stream(deviceIds)
 				.map(String::valueOf).collect(Collectors.toList()));
-		List<Row> list = new ArrayList<>();
+
+		// every device is a separate request, so the rows are written as they are retrieved
+		StreamingTableWriter table = new StreamingTableWriter(this.terminal, 10, true,
+				"Instance", "Name", "Type", "Model", "Firmware", "Battery [%]", "ON/OFF");
 		for (int d : deviceIds) {
 			String deviceJson = getJson("/15001/" + d);
 			Map<String, Object> deviceMap = mapper.readValue(deviceJson, Map.class);
-			Row row = new Row();
-			row.getColumn().add("" + d); //id
-			row.getColumn().add((String) deviceMap.get("9001")); //name
-			row.getColumn().add(deviceTypeName((Integer) deviceMap.get("5750"))); //type
-			row.getColumn().add(((Map<String, String>) deviceMap.get("3")).get("1")); //model
-			row.getColumn().add(((Map<String, String>) deviceMap.get("3")).get("3")); // firmware
-			row.getColumn().add(normalize(((Map<String, Object>) deviceMap.get("3")).get("9"))); // battery
-			row.getColumn().add(onOffStatus((deviceMap.containsKey("3311")) ? deviceMap.get("3311") : deviceMap.get("3312"))); // ON/OFF
-//			row.getColumn().add(String.valueOf(new Date((Integer) deviceMap.get("9002")))); //created at
-			list.add(row);
+			boolean more = table.addRow(
+					"" + d, //id
+					(String) deviceMap.get("9001"), //name
+					deviceTypeName((Integer) deviceMap.get("5750")), //type
+					((Map<String, String>) deviceMap.get("3")).get("1"), //model
+					((Map<String, String>) deviceMap.get("3")).get("3"), // firmware
+					normalize(((Map<String, Object>) deviceMap.get("3")).get("9")), // battery
+					onOffStatus((deviceMap.containsKey("3311")) ? deviceMap.get("3311") : deviceMap.get("3312"))); // ON/OFF
+			if (!more) {
+				break;
+			}
 		}
-
-		LinkedHashMap<String, Object> headers = new LinkedHashMap<>();
-		headers.put("column[0]", "Instance");
-		headers.put("column[1]", "Name");
-		headers.put("column[2]", "Type");
-		headers.put("column[3]", "Model");
-		headers.put("column[4]", "Firmware");
-		headers.put("column[5]", "Battery [%]");
-		headers.put("column[6]", "ON/OFF");
-//		headers.put("column[7]", "Created at");
-		TableModel model = new BeanListTableModel(list, headers);
-		TableBuilder tableBuilder = new TableBuilder(model);
-		return tableBuilder.addHeaderAndVerticalsBorders(BorderStyle.fancy_light).build();
+		return String.format("Listed %d of %d devices", table.close(), deviceIds.length);
 	}
 
 	private String onOffStatus(Object value) {
@@ -275,15 +314,49 @@ public class IkeaCoapShellCommands {
 	}
 
 	private String getJson(String path) throws ConnectorException, IOException {
-		this.coapClient.setURI(this.connectionStatus.getBaseUri() + path);
-		String json = this.coapClient.get().getResponseText();
+		CoapClient client = client();
+		client.setURI(this.connectionStatus.getBaseUri() + path);
+		String json = client.get().getResponseText();
 		return json;
 	}
 
+	/**
+	 * The updates carry only the changed attributes. They are sent as iPATCH (RFC 8132) with a JSON Merge Patch and
+	 * fall back to a PUT of the same partial document, that the gateway merges, if it doesn't implement iPATCH.
+	 * iPATCH counts as supported after its first success only, a gateway that rejected it gets PUTs from then on.
+	 */
 	private String putJson(String path, String payload) throws ConnectorException, IOException {
-		this.coapClient.setURI(this.connectionStatus.getBaseUri() + path);
-		CoapResponse response = coapClient.put(payload, MediaTypeRegistry.APPLICATION_JSON);
-		return response.isSuccess() ? "OK" : "FAILED";
+		CoapClient client = client();
+		client.setURI(this.connectionStatus.getBaseUri() + path);
+		if (!Boolean.FALSE.equals(this.ipatchSupported)) {
+			Request request = new Request(CoAP.Code.IPATCH);
+			request.setPayload(payload);
+			request.getOptions().setContentFormat(PayloadCodec.APPLICATION_MERGE_PATCH_JSON);
+			CoapResponse response = client.advanced(request);
+			if (response == null) {
+				return "FAILED"; // timed out, a PUT to the same gateway would time out as well
+			}
+			if (response.isSuccess()) {
+				this.ipatchSupported = true;
+				return "OK";
+			}
+			if (Boolean.TRUE.equals(this.ipatchSupported) || !isUnsupported(response.getCode())) {
+				return "FAILED";
+			}
+			this.ipatchSupported = false;
+		}
+		CoapResponse response = client.put(payload, MediaTypeRegistry.APPLICATION_JSON);
+		return (response != null && response.isSuccess()) ? "OK" : "FAILED";
+	}
+
+	/**
+	 * Gateways without iPATCH answer with any of these, some reject the unknown method or content format as a bad
+	 * request or a bad option.
+	 */
+	private boolean isUnsupported(CoAP.ResponseCode code) {
+		return code == CoAP.ResponseCode.BAD_REQUEST || code == CoAP.ResponseCode.BAD_OPTION
+				|| code == CoAP.ResponseCode.METHOD_NOT_ALLOWED || code == CoAP.ResponseCode.NOT_IMPLEMENTED
+				|| code == CoAP.ResponseCode.UNSUPPORTED_CONTENT_FORMAT;
 	}
 
 	public Availability ikeaAvailabilityCheck() {
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.datalake.coap.coapshell.util.CoapDtlsSupport;
+import io.datalake.coap.coapshell.util.CoapOscoreSupport;
+import io.datalake.coap.coapshell.util.CoapTransportProfiles;
+import io.datalake.coap.coapshell.util.Row;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.elements.exception.ConnectorException;
+import org.eclipse.californium.elements.util.Bytes;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.shell.standard.ShellCommandGroup;
+import org.springframework.shell.standard.ShellComponent;
+import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellOption;
+import org.springframework.shell.table.BeanListTableModel;
+import org.springframework.shell.table.BorderStyle;
+import org.springframework.shell.table.Table;
+import org.springframework.shell.table.TableBuilder;
+import org.springframework.shell.table.TableModel;
+import org.springframework.util.Assert;
+
+/**
+ * @author Christian Tzolov
+ */
+@ShellComponent
+@ShellCommandGroup(CoapShellCommands.SHELL_CONNECTIVITY_GROUP)
+public class OscoreCommands {
+
+	/**
+	 * DTLS 1.2 record header (13) + explicit nonce (8) + CCM_8 authentication tag (8). The DTLS records are not
+	 * visible above the connector, so the overhead is added per message.
+	 */
+	private static final int DTLS_CCM_8_RECORD_OVERHEAD = 29;
+
+	@Autowired
+	private CoapDtlsSupport dtsl;
+
+	@Autowired
+	private CoapOscoreSupport oscoreSupport;
+
+	@Autowired
+	private CoapTransportProfiles profiles;
+
+	@ShellMethod(key = "oscore compare", value = "Compare DTLS and OSCORE request latency and message sizes for the same GET workload")
+	public Table oscoreCompare(
+			@ShellOption(help = "DTLS server URI (e.g. coaps://host:5684)") URI dtlsUri,
+			@ShellOption(help = "OSCORE server URI (e.g. coap://host:5683)") URI oscoreUri,
+			@ShellOption(help = "OSCORE security context file") File oscoreContext,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "DTLS pre-shared key identity") String identity,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "DTLS pre-shared key secret") String secret,
+			@ShellOption(defaultValue = "/", help = "resource path to GET") String path,
+			@ShellOption(defaultValue = "20", help = "number of requests per transport") int count) throws IOException {
+
+		Assert.isTrue(count > 1, "At least 2 requests are required");
+		Assert.isTrue(oscoreContext.exists(), "OSCORE context file [" + oscoreContext + "] doesn't exists!");
+
+		CoapEndpoint dtlsEndpoint = new CoapEndpoint.Builder()
+				.setNetworkConfig(profiles.networkConfig())
+				.setConnector(dtsl.createConnector(identity, secret)).build();
+		CoapEndpoint oscoreEndpoint = oscoreSupport.createEndpoint(profiles.networkConfig(),
+				oscoreSupport.loadContext(oscoreContext, oscoreUri.toString()));
+
+		LinkedHashMap<String, Object> headers = new LinkedHashMap<>();
+		headers.put("column[0]", "Transport");
+		headers.put("column[1]", "Requests");
+		headers.put("column[2]", "Failed");
+		headers.put("column[3]", "First [ms]");
+		headers.put("column[4]", "p50 [ms]");
+		headers.put("column[5]", "p95 [ms]");
+		headers.put("column[6]", "CoAP [B/exchange]");
+		headers.put("column[7]", "Wire [B/exchange]");
+		headers.put("column[8]", "Last error");
+
+		List<Row> rows = Arrays.asList(
+				measure("DTLS", dtlsEndpoint, dtlsUri.toString() + path, count, false, DTLS_CCM_8_RECORD_OVERHEAD),
+				measure("OSCORE", oscoreEndpoint, oscoreUri.toString() + path, count, true, 0));
+
+		TableModel model = new BeanListTableModel(rows, headers);
+		TableBuilder tableBuilder = new TableBuilder(model);
+		return tableBuilder.addHeaderAndVerticalsBorders(BorderStyle.fancy_light).build();
+	}
+
+	/**
+	 * Runs count sequential GETs. The first request latency includes the DTLS handshake (or OSCORE context setup),
+	 * the percentiles are computed from the remaining requests. A failed request doesn't stop the run, the failures
+	 * and the last error are reported next to the stats.
+	 */
+	private Row measure(String name, CoapEndpoint endpoint, String uri, int count, boolean oscore, int recordOverhead) {
+		CoapClient client = new CoapClient(uri).setEndpoint(endpoint);
+		long first = -1;
+		// the latencies of the requests after the first one
+		long[] latencies = new long[count];
+		int measured = 0;
+		int completed = 0;
+		int failed = 0;
+		String lastError = "-";
+		long coapBytes = 0;
+		try {
+			for (int i = 0; i < count; i++) {
+				Request request = Request.newGet();
+				request.setURI(uri);
+				if (oscore) {
+					request.getOptions().setOscore(Bytes.EMPTY);
+				}
+				try {
+					long start = System.nanoTime();
+					CoapResponse response = client.advanced(request);
+					if (response == null) {
+						failed++;
+						lastError = "timeout";
+						continue;
+					}
+					long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+					if (i == 0) {
+						first = latency;
+					}
+					else {
+						latencies[measured++] = latency;
+					}
+					completed++;
+					coapBytes += size(request.getBytes()) + size(response.advanced().getBytes());
+				}
+				catch (ConnectorException | IOException e) {
+					failed++;
+					lastError = e.getClass().getSimpleName() + ": " + e.getMessage();
+				}
+			}
+		}
+		finally {
+			client.shutdown();
+			endpoint.destroy();
+		}
+
+		Row row = new Row();
+		row.getColumn().add(name);
+		row.getColumn().add("" + count);
+		row.getColumn().add("" + failed);
+		row.getColumn().add((first < 0) ? "-" : "" + first);
+		if (measured < 1) {
+			row.getColumn().addAll(Arrays.asList("-", "-"));
+		}
+		else {
+			long[] sorted = Arrays.copyOf(latencies, measured);
+			Arrays.sort(sorted);
+			row.getColumn().add("" + sorted[(int) ((sorted.length - 1) * 0.50)]);
+			row.getColumn().add("" + sorted[(int) ((sorted.length - 1) * 0.95)]);
+		}
+		if (completed < 1) {
+			row.getColumn().addAll(Arrays.asList("-", "-"));
+		}
+		else {
+			row.getColumn().add("" + coapBytes / completed);
+			row.getColumn().add("" + (coapBytes / completed + 2 * recordOverhead));
+		}
+		row.getColumn().add(lastError);
+		return row;
+	}
+
+	private static int size(byte[] bytes) {
+		return (bytes != null) ? bytes.length : 0;
+	}
+}
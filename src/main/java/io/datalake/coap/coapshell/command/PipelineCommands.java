@@ -0,0 +1,344 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import io.datalake.coap.coapshell.provider.ContentTypeValueProvider;
+import io.datalake.coap.coapshell.util.RequestWindow;
+import io.datalake.coap.coapshell.util.Row;
+import io.datalake.coap.coapshell.util.StreamingTableWriter;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.elements.exception.ConnectorException;
+import org.jline.terminal.Terminal;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.shell.Availability;
+import org.springframework.shell.standard.ShellCommandGroup;
+import org.springframework.shell.standard.ShellComponent;
+import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellMethodAvailability;
+import org.springframework.shell.standard.ShellOption;
+import org.springframework.shell.table.BeanListTableModel;
+import org.springframework.shell.table.BorderStyle;
+import org.springframework.shell.table.Table;
+import org.springframework.shell.table.TableBuilder;
+import org.springframework.shell.table.TableModel;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+/**
+ * Pipelined bulk reads: up to {@code window} GET requests are in flight to the connected server at the same time,
+ * matched to their responses by token, instead of one request per round trip.
+ *
+ * The loss detection is done here and not by the CoAP layer: a request without a response within {@code timeout}
+ * is canceled and sent again with a new token up to {@code retries} times, for NON and CON requests alike (the CON
+ * retransmissions of the endpoint still apply within the timeout). The window is the NSTART of the shell; the
+ * Californium endpoint doesn't limit the outstanding requests per peer without congestion control.
+ *
+ * @author Christian Tzolov
+ */
+@ShellComponent
+@ShellCommandGroup(CoapShellCommands.SHELL_COAP_REST_COMMANDS_GROUP)
+public class PipelineCommands {
+
+	@Autowired
+	private CoapShellCommands coapShellCommands;
+
+	@Autowired
+	@Lazy
+	private Terminal terminal;
+
+	@ShellMethod(key = "pipeline get", value = "Read many resources with a window of pipelined requests")
+	@ShellMethodAvailability("pipelineAvailabilityCheck")
+	public Table pipelineGet(
+			@ShellOption(defaultValue = ShellOption.NULL, help = "comma separated resource paths") String paths,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "file with one resource path per line") File file,
+			@ShellOption(defaultValue = "false", help = "read all resources listed by /.well-known/core") boolean discovered,
+			@ShellOption(defaultValue = "16", help = "max number of requests in flight") int window,
+			@ShellOption(defaultValue = "true", help = "send Non-confirmable requests, CON otherwise") boolean non,
+			@ShellOption(defaultValue = "5000", help = "per request response timeout in milliseconds") long timeout,
+			@ShellOption(defaultValue = "2", help = "number of retries of a lost request") int retries,
+			@ShellOption(defaultValue = CoapShellCommands.COAP_TEXT_PLAIN, help = "accepted response content-type", valueProvider = ContentTypeValueProvider.class) String accept,
+			@ShellOption(defaultValue = "false", help = "list the result of every request") boolean list) throws IOException, ConnectorException, InterruptedException {
+
+		List<String> targets = targets(paths, file, discovered);
+		Assert.isTrue(!targets.isEmpty(), "Either the `paths`, `file` or `discovered` parameter must be set!");
+		Assert.isTrue(retries >= 0, "The retries must not be negative");
+
+		Result[] results = new Result[targets.size()];
+		AtomicInteger retried = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(targets.size());
+		RequestWindow requestWindow = new RequestWindow(window);
+		CoapClient client = this.coapShellCommands.newClient("");
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+		Pipeline pipeline = new Pipeline(client, timer, requestWindow, done, retried, non, timeout, retries,
+				coapContentType(accept));
+
+		for (int i = 0; i < targets.size(); i++) {
+			results[i] = new Result(targets.get(i));
+		}
+
+		// every window slot sends its requests one after the other, each one answered or lost after all retries
+		long maxDuration = ((targets.size() + window - 1) / window) * (retries + 1) * timeout + timeout;
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxDuration);
+		boolean completed = false;
+		try {
+			int sent = 0;
+			while (sent < targets.size()
+					&& requestWindow.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+				boolean started = false;
+				try {
+					send(pipeline, results[sent], 0);
+					started = true;
+				}
+				finally {
+					if (!started) {
+						pipeline.complete();
+					}
+				}
+				sent++;
+			}
+			completed = sent == targets.size()
+					&& done.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		}
+		finally {
+			timer.shutdownNow();
+			client.shutdown();
+		}
+		long duration = System.nanoTime() - start;
+
+		if (list) {
+			StreamingTableWriter table = new StreamingTableWriter(this.terminal,
+					"Path", "Code", "Size [B]", "RTT [ms]", "Attempts");
+			for (Result result : results) {
+				if (!table.addRow(result.path, (result.response != null) ? result.response.getCode().toString() : "LOST",
+						(result.response != null) ? "" + result.response.getPayloadSize() : "",
+						(result.response != null) ? "" + result.rtt : "", "" + result.attempts)) {
+					break;
+				}
+			}
+			table.close();
+		}
+
+		long[] rtts = Arrays.stream(results).filter(r -> r.response != null).mapToLong(r -> r.rtt).sorted().toArray();
+		long bytes = Arrays.stream(results).filter(r -> r.response != null).mapToLong(r -> r.response.getPayloadSize()).sum();
+
+		List<Row> rows = new ArrayList<>();
+		rows.add(row("requests", "" + targets.size()));
+		rows.add(row("mode", (non ? "NON" : "CON") + ", window " + window));
+		rows.add(row("completed", "" + rtts.length));
+		rows.add(row("lost", "" + (targets.size() - rtts.length)));
+		rows.add(row("retries", "" + retried.get()));
+		if (!completed) {
+			rows.add(row("timed out", "after " + maxDuration + " ms, unanswered requests are counted as lost"));
+		}
+		rows.add(row("duration [ms]", "" + TimeUnit.NANOSECONDS.toMillis(duration)));
+		rows.add(row("throughput [req/s]", String.format("%.1f", rtts.length / (duration / 1e9))));
+		rows.add(row("payload [B/s]", String.format("%.0f", bytes / (duration / 1e9))));
+		rows.add(row("RTT p50 [ms]", (rtts.length > 0) ? "" + rtts[(int) ((rtts.length - 1) * 0.50)] : "-"));
+		rows.add(row("RTT p99 [ms]", (rtts.length > 0) ? "" + rtts[(int) ((rtts.length - 1) * 0.99)] : "-"));
+
+		LinkedHashMap<String, Object> headers = new LinkedHashMap<>();
+		headers.put("column[0]", "Pipeline");
+		headers.put("column[1]", "Value");
+		TableModel model = new BeanListTableModel(rows, headers);
+		TableBuilder tableBuilder = new TableBuilder(model);
+		return tableBuilder.addHeaderAndVerticalsBorders(BorderStyle.fancy_light).build();
+	}
+
+	/**
+	 * Sends one attempt of the request. The window slot is kept over the retries and released once the request
+	 * is answered or lost.
+	 */
+	private void send(Pipeline pipeline, Result result, int attempt) {
+		Request request = this.coapShellCommands.newRequest(Request.newGet(), result.path);
+		request.setConfirmable(!pipeline.non);
+		request.getOptions().setAccept(pipeline.accept);
+		result.attempts = attempt + 1;
+
+		AtomicBoolean completed = new AtomicBoolean();
+		long sent = System.nanoTime();
+		ScheduledFuture<?> lossTimer;
+		try {
+			lossTimer = pipeline.timer.schedule(() -> {
+				if (completed.compareAndSet(false, true)) {
+					request.cancel();
+					retryOrLose(pipeline, result, attempt);
+				}
+			}, pipeline.timeout, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e) {
+			// the run timed out and its timer is shut down
+			pipeline.complete();
+			return;
+		}
+
+		CoapHandler handler = new CoapHandler() {
+			@Override
+			public void onLoad(CoapResponse response) {
+				if (completed.compareAndSet(false, true)) {
+					lossTimer.cancel(false);
+					result.response = response;
+					result.rtt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sent);
+					pipeline.complete();
+				}
+			}
+
+			@Override
+			public void onError() {
+				if (completed.compareAndSet(false, true)) {
+					lossTimer.cancel(false);
+					retryOrLose(pipeline, result, attempt);
+				}
+			}
+		};
+		try {
+			pipeline.client.advanced(handler, request);
+		}
+		catch (RuntimeException e) {
+			// not sent, e.g. the endpoint is stopped
+			if (completed.compareAndSet(false, true)) {
+				lossTimer.cancel(false);
+				pipeline.complete();
+			}
+		}
+	}
+
+	/**
+	 * Sends the request again or counts it as lost. The window slot and the completion count are released on
+	 * every path, also if the request can't be created.
+	 */
+	private void retryOrLose(Pipeline pipeline, Result result, int attempt) {
+		boolean resent = false;
+		try {
+			if (attempt < pipeline.retries) {
+				pipeline.retried.incrementAndGet();
+				send(pipeline, result, attempt + 1);
+				resent = true;
+			}
+		}
+		finally {
+			if (!resent) {
+				pipeline.complete();
+			}
+		}
+	}
+
+	private List<String> targets(String paths, File file, boolean discovered) throws IOException, ConnectorException {
+		List<String> targets = new ArrayList<>();
+		if (StringUtils.hasText(paths)) {
+			Arrays.stream(paths.split(",")).map(String::trim).filter(StringUtils::hasText).forEach(targets::add);
+		}
+		if (file != null) {
+			Assert.isTrue(file.exists(), "Paths file [" + file + "] doesn't exists!");
+			Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).stream()
+					.map(String::trim).filter(StringUtils::hasText).forEach(targets::add);
+		}
+		if (discovered) {
+			this.coapShellCommands.streamLinks("/.well-known/core", CoapShellCommands.DEFAULT_DISCOVERY_BLOCK_SIZE,
+					link -> targets.add(link.getURI()));
+		}
+		return targets.stream().map(path -> path.startsWith("/") ? path : "/" + path)
+				.distinct().collect(Collectors.toList());
+	}
+
+	private int coapContentType(String contentType) {
+		try {
+			return Integer.parseInt(contentType);
+		}
+		catch (NumberFormatException nfe) {
+			return MediaTypeRegistry.parse(contentType);
+		}
+	}
+
+	private Row row(String name, String value) {
+		Row row = new Row();
+		row.getColumn().add(name);
+		row.getColumn().add(value);
+		return row;
+	}
+
+	public Availability pipelineAvailabilityCheck() {
+		return this.coapShellCommands.availabilityCheck();
+	}
+
+	private static class Result {
+		private final String path;
+		private volatile CoapResponse response;
+		private volatile long rtt;
+		private volatile int attempts;
+
+		Result(String path) {
+			this.path = path;
+		}
+	}
+
+	/**
+	 * Shared state of one pipeline run.
+	 */
+	private static class Pipeline {
+		private final CoapClient client;
+		private final ScheduledExecutorService timer;
+		private final RequestWindow requestWindow;
+		private final CountDownLatch done;
+		private final AtomicInteger retried;
+		private final boolean non;
+		private final long timeout;
+		private final int retries;
+		private final int accept;
+
+		Pipeline(CoapClient client, ScheduledExecutorService timer, RequestWindow requestWindow,
+				CountDownLatch done, AtomicInteger retried, boolean non, long timeout, int retries, int accept) {
+			this.client = client;
+			this.timer = timer;
+			this.requestWindow = requestWindow;
+			this.done = done;
+			this.retried = retried;
+			this.non = non;
+			this.timeout = timeout;
+			this.retries = retries;
+			this.accept = accept;
+		}
+
+		void complete() {
+			this.requestWindow.release();
+			this.done.countDown();
+		}
+	}
+}
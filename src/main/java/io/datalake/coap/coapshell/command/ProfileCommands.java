@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.command;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Function;
+
+import io.datalake.coap.coapshell.CoapShellProperties.TransportProfile;
+import io.datalake.coap.coapshell.util.CoapTransportProfiles;
+import io.datalake.coap.coapshell.util.Row;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.shell.standard.ShellCommandGroup;
+import org.springframework.shell.standard.ShellComponent;
+import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellOption;
+import org.springframework.shell.table.BeanListTableModel;
+import org.springframework.shell.table.BorderStyle;
+import org.springframework.shell.table.Table;
+import org.springframework.shell.table.TableBuilder;
+import org.springframework.shell.table.TableModel;
+
+import static io.datalake.coap.coapshell.util.PrintUtils.green;
+
+/**
+ * @author Christian Tzolov
+ */
+@ShellComponent
+@ShellCommandGroup(CoapShellCommands.SHELL_CONNECTIVITY_GROUP)
+public class ProfileCommands {
+
+	@Autowired
+	private CoapTransportProfiles profiles;
+
+	@Autowired
+	private CoapShellCommands coapShellCommands;
+
+	@ShellMethod(key = "profile use", value = "Use the transport profile for the following connections")
+	public String profileUse(@ShellOption(help = "profile name") String name) {
+		this.profiles.use(name);
+		return green("Transport profile: " + name) + (this.coapShellCommands.availabilityCheck().isAvailable() ?
+				" (reconnect to apply it to the current connection)" : "");
+	}
+
+	@ShellMethod(key = "profile list", value = "List the transport profiles and their settings")
+	public Table profileList() {
+		List<String> names = new ArrayList<>(this.profiles.names());
+
+		LinkedHashMap<String, Object> headers = new LinkedHashMap<>();
+		headers.put("column[0]", "Setting");
+		for (int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			headers.put("column[" + (i + 1) + "]", name.equals(this.profiles.getActiveName()) ? name + " (active)" : name);
+		}
+
+		List<Row> rows = new ArrayList<>();
+		rows.add(settingRow("protocol stage threads", names, TransportProfile::getProtocolStageThreads));
+		rows.add(settingRow("network receiver threads", names, TransportProfile::getNetworkStageReceiverThreads));
+		rows.add(settingRow("network sender threads", names, TransportProfile::getNetworkStageSenderThreads));
+		rows.add(settingRow("UDP receive buffer [B]", names, TransportProfile::getUdpReceiveBufferSize));
+		rows.add(settingRow("UDP send buffer [B]", names, TransportProfile::getUdpSendBufferSize));
+		rows.add(settingRow("preferred block size [B]", names, TransportProfile::getPreferredBlockSize));
+		rows.add(settingRow("max message size [B]", names, TransportProfile::getMaxMessageSize));
+		rows.add(settingRow("exchange lifetime [ms]", names, TransportProfile::getExchangeLifetime));
+		rows.add(settingRow("deduplicator", names, TransportProfile::getDeduplicator));
+		rows.add(settingRow("TCP idle timeout [s]", names, TransportProfile::getTcpConnectionIdleTimeout));
+		rows.add(settingRow("DTLS auto resume [ms]", names, TransportProfile::getDtlsAutoResumeTimeout));
+		rows.add(settingRow("DTLS max connections", names, TransportProfile::getDtlsMaxConnections));
+		rows.add(settingRow("DTLS connection threads", names, TransportProfile::getDtlsConnectionThreads));
+		rows.add(settingRow("DTLS receiver threads", names, TransportProfile::getDtlsReceiverThreads));
+		rows.add(settingRow("DTLS connection ID length", names, TransportProfile::getDtlsConnectionIdLength));
+
+		TableModel model = new BeanListTableModel(rows, headers);
+		TableBuilder tableBuilder = new TableBuilder(model);
+		return tableBuilder.addHeaderAndVerticalsBorders(BorderStyle.fancy_light).build();
+	}
+
+	private Row settingRow(String setting, List<String> names, Function<TransportProfile, Object> value) {
+		Row row = new Row();
+		row.getColumn().add(setting);
+		for (String name : names) {
+			Object v = value.apply(this.profiles.get(name));
+			// 0 threads stand for one thread per core
+			row.getColumn().add((v == null) ? "default" : (setting.endsWith("threads") && v.equals(0)) ? "cores" : "" + v);
+		}
+		return row;
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.command;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.annotation.PreDestroy;
+
+import io.datalake.coap.coapshell.CoapConnectionEvent;
+import io.datalake.coap.coapshell.CoapShellProperties;
+import io.datalake.coap.coapshell.util.CoapHttpProxy;
+import io.datalake.coap.coapshell.util.CoapSessionPool;
+import io.datalake.coap.coapshell.util.Row;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.shell.Availability;
+import org.springframework.shell.standard.ShellCommandGroup;
+import org.springframework.shell.standard.ShellComponent;
+import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellMethodAvailability;
+import org.springframework.shell.standard.ShellOption;
+import org.springframework.shell.table.BeanListTableModel;
+import org.springframework.shell.table.BorderStyle;
+import org.springframework.shell.table.Table;
+import org.springframework.shell.table.TableBuilder;
+import org.springframework.shell.table.TableModel;
+import org.springframework.util.Assert;
+
+import static io.datalake.coap.coapshell.util.PrintUtils.green;
+
+/**
+ * Serves the connected CoAP server (and any other absolute coap: or coaps: URI) over HTTP. See {@link CoapHttpProxy}.
+ *
+ * @author Christian Tzolov
+ */
+@ShellComponent
+@ShellCommandGroup(CoapShellCommands.SHELL_CONNECTIVITY_GROUP)
+public class ProxyCommands {
+
+	@Autowired
+	private CoapShellCommands coapShellCommands;
+
+	@Autowired
+	private CoapShellProperties properties;
+
+	private CoapHttpProxy proxy;
+	private String proxyBaseUri;
+
+	/**
+	 * The proxy shares the endpoint of the shell connection, so it is stopped when the connection is closed or
+	 * replaced.
+	 */
+	@EventListener({ CoapConnectionEvent.Connected.class, CoapConnectionEvent.Disconnected.class })
+	public void handle(CoapConnectionEvent event) {
+		if (this.proxy != null && !Objects.equals(this.proxyBaseUri, event.getStatus().getBaseUri())) {
+			stop();
+		}
+	}
+
+	@ShellMethod(key = "proxy start", value = "Start a HTTP-to-CoAP proxy for the connected server")
+	@ShellMethodAvailability("proxyStartAvailabilityCheck")
+	public String proxyStart(
+			@ShellOption(defaultValue = ShellOption.NULL, help = "HTTP port (defaults to coap.proxy.port)") Integer port,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "HTTP bind address (defaults to coap.proxy.bind-address)") String bind,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "HTTP worker threads, bounds the concurrent CoAP requests") Integer threads,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "max number of upstream servers to keep sessions for") Integer maxSessions,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "CoAP response timeout in milliseconds") Long timeout) throws IOException {
+
+		CoapShellProperties.Proxy settings = this.properties.getProxy();
+		String baseUri = this.coapShellCommands.getBaseUri();
+		CoapSessionPool pool = this.coapShellCommands.newSessionPool((maxSessions != null) ? maxSessions : settings.getMaxSessions());
+
+		this.proxy = new CoapHttpProxy(
+				new InetSocketAddress((bind != null) ? bind : settings.getBindAddress(),
+						(port != null) ? port : settings.getPort()),
+				pool,
+				(request, target) -> (target.startsWith(CoapShellCommands.COAP + ":")
+						|| target.startsWith(CoapShellCommands.COAPS + ":")) ?
+						this.coapShellCommands.newAbsoluteRequest(request, target) :
+						this.coapShellCommands.newRequest(request, target),
+				(threads != null) ? threads : settings.getThreads(),
+				(timeout != null) ? timeout : settings.getTimeout());
+		this.proxy.start();
+		this.proxyBaseUri = baseUri;
+
+		return green(String.format("Proxy http://%s:%d/ -> %s", this.proxy.getAddress().getHostString(),
+				this.proxy.getAddress().getPort(), baseUri));
+	}
+
+	@ShellMethod(key = "proxy stop", value = "Stop the HTTP-to-CoAP proxy")
+	@ShellMethodAvailability("proxyAvailabilityCheck")
+	public String proxyStop() {
+		stop();
+		return green("Proxy stopped");
+	}
+
+	@ShellMethod(key = "proxy status", value = "Show the HTTP-to-CoAP proxy request counters")
+	@ShellMethodAvailability("proxyAvailabilityCheck")
+	public Table proxyStatus() {
+		List<Row> rows = new ArrayList<>();
+		rows.add(row("address", this.proxy.getAddress().getHostString() + ":" + this.proxy.getAddress().getPort()));
+		rows.add(row("uptime [s]", "" + this.proxy.getUptime() / 1000));
+		rows.add(row("upstream sessions", "" + this.proxy.getSessions()));
+		rows.add(row("requests", "" + this.proxy.getRequests()));
+		rows.add(row("proxy failures", "" + this.proxy.getFailures()));
+		for (Map.Entry<Integer, Long> status : this.proxy.getStatusCounts().entrySet()) {
+			rows.add(row("HTTP " + status.getKey(), "" + status.getValue()));
+		}
+
+		LinkedHashMap<String, Object> headers = new LinkedHashMap<>();
+		headers.put("column[0]", "Proxy");
+		headers.put("column[1]", "Value");
+		TableModel model = new BeanListTableModel(rows, headers);
+		TableBuilder tableBuilder = new TableBuilder(model);
+		return tableBuilder.addHeaderAndVerticalsBorders(BorderStyle.fancy_light).build();
+	}
+
+	private Row row(String name, String value) {
+		Row row = new Row();
+		row.getColumn().add(name);
+		row.getColumn().add(value);
+		return row;
+	}
+
+	@PreDestroy
+	public synchronized void stop() {
+		if (this.proxy != null) {
+			this.proxy.stop();
+			this.proxy = null;
+			this.proxyBaseUri = null;
+		}
+	}
+
+	public Availability proxyStartAvailabilityCheck() {
+		Availability connected = this.coapShellCommands.availabilityCheck();
+		if (!connected.isAvailable()) {
+			return connected;
+		}
+		return (this.proxy == null) ? Availability.available() : Availability.unavailable("the proxy is running");
+	}
+
+	public Availability proxyAvailabilityCheck() {
+		return (this.proxy != null) ? Availability.available() : Availability.unavailable("the proxy is not running");
+	}
+
+	/**
+	 * Headless mode: connects to coap.proxy.target and serves the proxy with the coap.proxy.* settings.
+	 */
+	public String startHeadless() throws IOException {
+		CoapShellProperties.Proxy settings = this.properties.getProxy();
+		Assert.hasText(settings.getTarget(), "The headless proxy requires the coap.proxy.target server URI");
+		this.coapShellCommands.connect(URI.create(settings.getTarget()), settings.getIdentity(), settings.getSecret(),
+				null, true);
+		return proxyStart(null, null, null, null, null);
+	}
+}
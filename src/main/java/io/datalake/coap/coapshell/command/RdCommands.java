@@ -0,0 +1,292 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.command;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import io.datalake.coap.coapshell.util.CoapSessionPool;
+import io.datalake.coap.coapshell.util.RdLookupCache;
+import io.datalake.coap.coapshell.util.RequestWindow;
+import io.datalake.coap.coapshell.util.Row;
+import io.datalake.coap.coapshell.util.StreamingTableWriter;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.elements.exception.ConnectorException;
+import org.jline.terminal.Terminal;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.shell.Availability;
+import org.springframework.shell.standard.ShellCommandGroup;
+import org.springframework.shell.standard.ShellComponent;
+import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellMethodAvailability;
+import org.springframework.shell.standard.ShellOption;
+import org.springframework.shell.table.BeanListTableModel;
+import org.springframework.shell.table.BorderStyle;
+import org.springframework.shell.table.Table;
+import org.springframework.shell.table.TableBuilder;
+import org.springframework.shell.table.TableModel;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import static io.datalake.coap.coapshell.util.PrintUtils.green;
+
+/**
+ * https://tools.ietf.org/html/rfc9176[Resource Directory] lookup client. The shell must be connected to the
+ * Resource Directory. The lookup results are cached (see {@link RdLookupCache}) and drive the bulk requests to all
+ * the registered endpoints.
+ *
+ * @author Christian Tzolov
+ */
+@ShellComponent
+@ShellCommandGroup(RdCommands.SHELL_RD_COMMANDS_GROUP)
+public class RdCommands {
+
+	public static final String SHELL_RD_COMMANDS_GROUP = "Resource Directory Commands";
+
+	private static final String RD_LOOKUP_RES = "res";
+	private static final String RD_LOOKUP_EP = "ep";
+
+	@Autowired
+	private CoapShellCommands coapShellCommands;
+
+	@Autowired
+	private RdLookupCache cache;
+
+	@Autowired
+	@Lazy
+	private Terminal terminal;
+
+	/** Lookup interface paths per RD base URI and lookup type. */
+	private final Map<String, String> lookupPaths = new ConcurrentHashMap<>();
+
+	@ShellMethod(key = "rd lookup ep", value = "Lookup the endpoints registered with the Resource Directory")
+	@ShellMethodAvailability("rdAvailabilityCheck")
+	public String lookupEndpoints(
+			@ShellOption(defaultValue = ShellOption.NULL, help = "endpoint name") String ep,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "sector") String d,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "result page (requires --count)") Integer page,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "number of results per page") Integer count,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "additional lookup filters (e.g. 'et=oic.d.sensor')") String query,
+			@ShellOption(defaultValue = "" + CoapShellCommands.DEFAULT_DISCOVERY_BLOCK_SIZE, help = "Block2 size") int blockSize) throws ConnectorException, IOException {
+
+		StreamingTableWriter table = new StreamingTableWriter(this.terminal,
+				"Endpoint [ep]", "Sector [d]", "Base", "Registration", "Type [et]", "Lifetime [lt]");
+		this.coapShellCommands.streamLinks(lookupUri(RD_LOOKUP_EP, query(ep, d, null, page, count, query)), blockSize,
+				link -> {
+					RdLookupCache.RdEndpoint endpoint = this.cache.addEndpoint(link);
+					return table.addRow(endpoint.getName(), endpoint.getSector(), endpoint.getBase(),
+							endpoint.getRegistration(), endpoint.getType(), endpoint.getLifetime());
+				});
+		return String.format("Found %d endpoints. Cache: %s", table.close(), this.cache.stats());
+	}
+
+	@ShellMethod(key = "rd lookup res", value = "Lookup the resources registered with the Resource Directory")
+	@ShellMethodAvailability("rdAvailabilityCheck")
+	public String lookupResources(
+			@ShellOption(defaultValue = ShellOption.NULL, help = "endpoint name") String ep,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "resource type") String rt,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "result page (requires --count)") Integer page,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "number of results per page") Integer count,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "additional lookup filters (e.g. 'ct=60')") String query,
+			@ShellOption(defaultValue = "" + CoapShellCommands.DEFAULT_DISCOVERY_BLOCK_SIZE, help = "Block2 size") int blockSize) throws ConnectorException, IOException {
+
+		StreamingTableWriter table = new StreamingTableWriter(this.terminal,
+				"URI", "Endpoint [ep]", "Resource Type [rt]", "Content Type [ct]", "Observable [obs]");
+		this.coapShellCommands.streamLinks(lookupUri(RD_LOOKUP_RES, query(ep, null, rt, page, count, query)), blockSize,
+				link -> {
+					RdLookupCache.RdResource resource = this.cache.addResource(link, ep);
+					return table.addRow(resource.getUri(), resource.getEndpoint(),
+							String.join(", ", resource.getResourceTypes()), String.join(", ", resource.getContentTypes()),
+							resource.isObservable() ? "observable" : "");
+				});
+		return String.format("Found %d resources. Cache: %s", table.close(), this.cache.stats());
+	}
+
+	@ShellMethod(key = "rd cache", value = "Show (or clear) the Resource Directory lookup cache")
+	public String rdCache(@ShellOption(defaultValue = "false", help = "clear the cache") boolean clear) {
+		if (clear) {
+			this.cache.clear();
+		}
+		return this.cache.stats();
+	}
+
+	@ShellMethod(key = "rd get", value = "GET all resources matching the endpoint and resource type from the lookup cache")
+	@ShellMethodAvailability("rdAvailabilityCheck")
+	public Table rdGet(
+			@ShellOption(defaultValue = ShellOption.NULL, help = "endpoint name") String ep,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "resource type") String rt,
+			@ShellOption(defaultValue = "16", help = "max number of concurrent requests") int window,
+			@ShellOption(defaultValue = "64", help = "max number of servers to keep sessions with") int maxSessions,
+			@ShellOption(defaultValue = "30", help = "timeout in seconds") int timeout) throws ConnectorException, IOException, InterruptedException {
+
+		List<RdLookupCache.RdResource> resources = this.cache.findResources(ep, rt);
+		if (resources.isEmpty()) {
+			// not cached yet, lookup all pages. The links carry no ep attribute unless the RD adds it, the
+			// results of an ep= lookup are tagged with the queried endpoint
+			this.coapShellCommands.streamLinks(lookupUri(RD_LOOKUP_RES, query(ep, null, rt, null, null, null)),
+					CoapShellCommands.DEFAULT_DISCOVERY_BLOCK_SIZE, link -> {
+						this.cache.addResource(link, ep);
+						return true;
+					});
+			resources = this.cache.findResources(ep, rt);
+		}
+		Assert.isTrue(!resources.isEmpty(), "No resources found for ep=" + ep + ", rt=" + rt);
+
+		List<Row> rows = Collections.synchronizedList(new ArrayList<>());
+		RequestWindow requestWindow = new RequestWindow(window);
+		CoapSessionPool pool = this.coapShellCommands.newSessionPool(maxSessions);
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout);
+		boolean completed = true;
+		try {
+			for (RdLookupCache.RdResource resource : resources) {
+				if (!requestWindow.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+					completed = false;
+					break;
+				}
+				Request request = this.coapShellCommands.newAbsoluteRequest(Request.newGet(), resource.getUri());
+				pool.client(resource.getUri()).advanced(new CoapHandler() {
+					@Override
+					public void onLoad(CoapResponse response) {
+						rows.add(resultRow(resource, response));
+						requestWindow.release();
+					}
+
+					@Override
+					public void onError() {
+						rows.add(resultRow(resource, null));
+						requestWindow.release();
+					}
+				}, request);
+			}
+			completed &= requestWindow.awaitCompletion(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+		finally {
+			pool.close();
+		}
+
+		List<Row> sorted;
+		synchronized (rows) {
+			sorted = rows.stream().sorted(Comparator.comparing((Row r) -> r.getColumn().get(0))
+					.thenComparing(r -> r.getColumn().get(1))).collect(Collectors.toList());
+		}
+		this.terminal.writer().println(green(String.format("%d of %d requests completed%s", sorted.size(),
+				resources.size(), completed ? "" : " (timeout)")));
+
+		LinkedHashMap<String, Object> headers = new LinkedHashMap<>();
+		headers.put("column[0]", "Endpoint");
+		headers.put("column[1]", "URI");
+		headers.put("column[2]", "Code");
+		headers.put("column[3]", "Content Type");
+		headers.put("column[4]", "Size [B]");
+		headers.put("column[5]", "RTT [ms]");
+		headers.put("column[6]", "Payload");
+		TableModel model = new BeanListTableModel(sorted, headers);
+		TableBuilder tableBuilder = new TableBuilder(model);
+		return tableBuilder.addHeaderAndVerticalsBorders(BorderStyle.fancy_light).build();
+	}
+
+	private Row resultRow(RdLookupCache.RdResource resource, CoapResponse response) {
+		Row row = new Row();
+		row.getColumn().add(String.valueOf(resource.getEndpoint()));
+		row.getColumn().add(resource.getUri());
+		if (response == null) {
+			row.getColumn().add("ERROR");
+			row.getColumn().add("");
+			row.getColumn().add("");
+			row.getColumn().add("");
+			row.getColumn().add("");
+			return row;
+		}
+		int ct = response.getOptions().getContentFormat();
+		byte[] payload = response.getPayload();
+		Long rtt = response.advanced().getRTT();
+		row.getColumn().add(response.getCode().toString());
+		row.getColumn().add(MediaTypeRegistry.toString(ct));
+		row.getColumn().add("" + ((payload != null) ? payload.length : 0));
+		row.getColumn().add((rtt != null) ? "" + rtt : "");
+		String text = (MediaTypeRegistry.isPrintable(ct) || ct == MediaTypeRegistry.UNDEFINED) ?
+				response.getResponseText() : "(binary)";
+		row.getColumn().add((text != null && text.length() > 40) ? text.substring(0, 39) + "…" : text);
+		return row;
+	}
+
+	/**
+	 * Finds the lookup interface through the /.well-known/core of the Resource Directory. Falls back to the
+	 * /rd-lookup/ paths of the RFC 9176 examples.
+	 */
+	private String lookupUri(String type, String query) throws ConnectorException, IOException {
+		String key = this.coapShellCommands.getBaseUri() + "#" + type;
+		String path = this.lookupPaths.get(key);
+		if (path == null) {
+			List<String> found = new ArrayList<>();
+			try {
+				this.coapShellCommands.streamLinks("/.well-known/core?rt=core.rd-lookup-" + type,
+						CoapShellCommands.DEFAULT_DISCOVERY_BLOCK_SIZE, link -> !found.add(link.getURI()));
+			}
+			catch (IllegalArgumentException e) {
+				// no link-format discovery, use the default path
+			}
+			path = found.isEmpty() ? "/rd-lookup/" + type : found.get(0);
+			if (path.contains("://")) {
+				path = URI.create(path).getRawPath();
+			}
+			this.lookupPaths.put(key, path);
+		}
+		return StringUtils.hasText(query) ? path + "?" + query : path;
+	}
+
+	private String query(String ep, String d, String rt, Integer page, Integer count, String extra) {
+		List<String> params = new ArrayList<>();
+		if (ep != null) {
+			params.add("ep=" + ep);
+		}
+		if (d != null) {
+			params.add("d=" + d);
+		}
+		if (rt != null) {
+			params.add("rt=" + rt);
+		}
+		if (page != null) {
+			Assert.notNull(count, "--page requires --count");
+			params.add("page=" + page);
+		}
+		if (count != null) {
+			params.add("count=" + count);
+		}
+		if (StringUtils.hasText(extra)) {
+			params.add(extra);
+		}
+		return String.join("&", params);
+	}
+
+	public Availability rdAvailabilityCheck() {
+		return this.coapShellCommands.availabilityCheck();
+	}
+}
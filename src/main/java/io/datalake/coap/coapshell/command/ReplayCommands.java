@@ -0,0 +1,286 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.datalake.coap.coapshell.util.CommandHistoryLog;
+import io.datalake.coap.coapshell.util.PayloadCodec;
+import io.datalake.coap.coapshell.util.RequestWindow;
+import io.datalake.coap.coapshell.util.Row;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.jline.terminal.Terminal;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.shell.Availability;
+import org.springframework.shell.standard.ShellCommandGroup;
+import org.springframework.shell.standard.ShellComponent;
+import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellMethodAvailability;
+import org.springframework.shell.standard.ShellOption;
+import org.springframework.shell.table.BeanListTableModel;
+import org.springframework.shell.table.BorderStyle;
+import org.springframework.shell.table.Table;
+import org.springframework.shell.table.TableBuilder;
+import org.springframework.shell.table.TableModel;
+import org.springframework.util.Assert;
+
+import static io.datalake.coap.coapshell.util.PrintUtils.green;
+import static io.datalake.coap.coapshell.util.PrintUtils.red;
+
+/**
+ * Replays a session recorded in the {@link CommandHistoryLog} against the connected server and compares the
+ * response codes, payloads and latencies with the recorded baseline.
+ *
+ * @author Christian Tzolov
+ */
+@ShellComponent
+@ShellCommandGroup(CoapShellCommands.SHELL_COAP_REST_COMMANDS_GROUP)
+public class ReplayCommands {
+
+	public enum ReplayMode {parallel, timed}
+
+	@Autowired
+	private CoapShellCommands coapShellCommands;
+
+	@Autowired
+	private CommandHistoryLog historyLog;
+
+	@Autowired
+	@Lazy
+	private Terminal terminal;
+
+	@ShellMethod(key = "replay sessions", value = "List the sessions recorded in the command history")
+	public Table replaySessions(
+			@ShellOption(defaultValue = ShellOption.NULL, help = "history file (defaults to coap.history-file)") File file) throws IOException {
+
+		File historyFile = historyFile(file);
+		List<Row> rows = new ArrayList<>();
+		for (Map.Entry<String, Integer> session : this.historyLog.sessions(historyFile).entrySet()) {
+			Row row = new Row();
+			row.getColumn().add(session.getKey());
+			row.getColumn().add("" + session.getValue());
+			row.getColumn().add(session.getKey().equals(this.historyLog.getSession()) ? "current" : "");
+			rows.add(row);
+		}
+		LinkedHashMap<String, Object> headers = new LinkedHashMap<>();
+		headers.put("column[0]", "Session");
+		headers.put("column[1]", "Requests");
+		headers.put("column[2]", "");
+		TableModel model = new BeanListTableModel(rows, headers);
+		TableBuilder tableBuilder = new TableBuilder(model);
+		return tableBuilder.addHeaderAndVerticalsBorders(BorderStyle.fancy_light).build();
+	}
+
+	@ShellMethod(key = "replay", value = "Replay a recorded session and flag the latency regressions against the recorded baseline")
+	@ShellMethodAvailability("replayAvailabilityCheck")
+	public Table replay(
+			@ShellOption(defaultValue = ShellOption.NULL, help = "session to replay (defaults to the last recorded session)") String session,
+			@ShellOption(defaultValue = ShellOption.NULL, help = "history file (defaults to coap.history-file)") File file,
+			@ShellOption(defaultValue = "parallel", help = "parallel: as fast as the window allows, timed: with the recorded timing") ReplayMode mode,
+			@ShellOption(defaultValue = "8", help = "max number of concurrent requests (parallel mode)") int window,
+			@ShellOption(defaultValue = "1.0", help = "replay speed factor (timed mode)") double speed,
+			@ShellOption(defaultValue = "20", help = "latency regression threshold in percent") double threshold,
+			@ShellOption(defaultValue = "5", help = "ignore latency increases below this many milliseconds") long minDelta,
+			@ShellOption(defaultValue = "60", help = "replay timeout in seconds") int timeout) throws IOException, InterruptedException {
+
+		Assert.isTrue(speed > 0, "The speed must be positive");
+		List<CommandHistoryLog.Entry> entries = this.historyLog.read(historyFile(file), session);
+		Assert.isTrue(!entries.isEmpty(), "No recorded requests found");
+		long withoutPayload = entries.stream().filter(e -> e.getPayloadSize() > 0 && e.getPayload() == null).count();
+		if (withoutPayload > 0) {
+			this.terminal.writer().println(red(withoutPayload + " requests are replayed without their payload, "
+					+ "it is only recorded with coap.history-payloads=true"));
+		}
+
+		Request[] requests = new Request[entries.size()];
+		long[] rtts = new long[entries.size()];
+		CoapResponse[] responses = new CoapResponse[entries.size()];
+		AtomicBoolean closed = new AtomicBoolean();
+		CountDownLatch done = new CountDownLatch(entries.size());
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout);
+
+		if (mode == ReplayMode.timed) {
+			ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+			try {
+				long first = entries.get(0).getOffset();
+				for (int i = 0; i < entries.size(); i++) {
+					final int index = i;
+					long delay = (long) ((entries.get(i).getOffset() - first) / speed);
+					scheduler.schedule(() -> send(entries.get(index), index, requests, rtts, responses, closed, done, null),
+							delay, TimeUnit.MILLISECONDS);
+				}
+				done.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			}
+			finally {
+				scheduler.shutdownNow();
+			}
+		}
+		else {
+			RequestWindow requestWindow = new RequestWindow(window);
+			for (int i = 0; i < entries.size(); i++) {
+				if (!requestWindow.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+					break;
+				}
+				send(entries.get(i), i, requests, rtts, responses, closed, done, requestWindow);
+			}
+			done.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+
+		synchronized (responses) {
+			// the results are taken at the deadline, the outstanding requests are canceled and their late responses
+			// ignored
+			closed.set(true);
+			for (int i = 0; i < requests.length; i++) {
+				if (requests[i] != null && responses[i] == null) {
+					requests[i].cancel();
+				}
+			}
+		}
+
+		int regressions = 0;
+		int failures = 0;
+		List<Row> rows = new ArrayList<>();
+		for (int i = 0; i < entries.size(); i++) {
+			CommandHistoryLog.Entry entry = entries.get(i);
+			CoapResponse response = responses[i];
+			Row row = new Row();
+			row.getColumn().add(entry.getMethod());
+			row.getColumn().add(entry.getPath());
+			String code = (response != null) ? response.getCode().toString() : "ERROR";
+			row.getColumn().add(code.equals(entry.getCode()) ? code : entry.getCode() + " -> " + code);
+			row.getColumn().add((response == null) ? "" :
+					String.valueOf(entry.getPayloadHash()).equals(String.valueOf(PayloadCodec.sha256(response.getPayload())))
+							? "same" : "changed");
+			row.getColumn().add("" + entry.getRtt());
+			row.getColumn().add((response != null) ? "" + rtts[i] : "");
+
+			String status;
+			if (response == null) {
+				status = red("FAILED");
+				failures++;
+			}
+			else if (!code.equals(entry.getCode())) {
+				status = red("CODE CHANGED");
+				failures++;
+			}
+			else if (entry.getRtt() >= 0 && rtts[i] - entry.getRtt() > minDelta
+					&& rtts[i] > entry.getRtt() * (1 + threshold / 100)) {
+				status = red("REGRESSION");
+				regressions++;
+			}
+			else {
+				status = green("OK");
+			}
+			row.getColumn().add((response != null && entry.getRtt() > 0) ?
+					String.format("%+.0f", 100.0 * (rtts[i] - entry.getRtt()) / entry.getRtt()) : "");
+			row.getColumn().add(status);
+			rows.add(row);
+		}
+
+		String summary = String.format("Replayed %d requests of session %s: %d regressions, %d failures",
+				entries.size(), entries.get(0).getSession(), regressions, failures);
+		this.terminal.writer().println((regressions + failures == 0) ? green(summary) : red(summary));
+
+		LinkedHashMap<String, Object> headers = new LinkedHashMap<>();
+		headers.put("column[0]", "Method");
+		headers.put("column[1]", "Path");
+		headers.put("column[2]", "Code");
+		headers.put("column[3]", "Payload");
+		headers.put("column[4]", "Baseline [ms]");
+		headers.put("column[5]", "Replay [ms]");
+		headers.put("column[6]", "Delta [%]");
+		headers.put("column[7]", "Status");
+		TableModel model = new BeanListTableModel(rows, headers);
+		TableBuilder tableBuilder = new TableBuilder(model);
+		return tableBuilder.addHeaderAndVerticalsBorders(BorderStyle.fancy_light).build();
+	}
+
+	private void send(CommandHistoryLog.Entry entry, int index, Request[] requests, long[] rtts,
+			CoapResponse[] responses, AtomicBoolean closed, CountDownLatch done, RequestWindow requestWindow) {
+
+		Request request = this.coapShellCommands.newRequest(new Request(CoAP.Code.valueOf(entry.getMethod())),
+				entry.getPath());
+		request.setConfirmable(entry.isConfirmable());
+		if (entry.getContentFormat() != MediaTypeRegistry.UNDEFINED) {
+			request.getOptions().setContentFormat(entry.getContentFormat());
+		}
+		if (entry.getAccept() != MediaTypeRegistry.UNDEFINED) {
+			request.getOptions().setAccept(entry.getAccept());
+		}
+		if (entry.getPayload() != null) {
+			request.setPayload(Base64.getDecoder().decode(entry.getPayload()));
+		}
+		synchronized (responses) {
+			if (closed.get()) {
+				return; // scheduled before the deadline, but started after it
+			}
+			requests[index] = request;
+			long start = System.nanoTime();
+			this.coapShellCommands.newClient(entry.getPath()).advanced(new CoapHandler() {
+				@Override
+				public void onLoad(CoapResponse response) {
+					Long rtt = response.advanced().getRTT();
+					synchronized (responses) {
+						if (!closed.get()) {
+							rtts[index] = (rtt != null) ? rtt : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+							responses[index] = response;
+						}
+					}
+					complete();
+				}
+
+				@Override
+				public void onError() {
+					complete();
+				}
+
+				private void complete() {
+					if (requestWindow != null) {
+						requestWindow.release();
+					}
+					done.countDown();
+				}
+			}, request);
+		}
+	}
+
+	private File historyFile(File file) {
+		File historyFile = (file != null) ? file : this.historyLog.getFile();
+		Assert.isTrue(historyFile.exists(), "History file [" + historyFile + "] doesn't exists!");
+		return historyFile;
+	}
+
+	public Availability replayAvailabilityCheck() {
+		return this.coapShellCommands.availabilityCheck();
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.command;
+
+import java.io.File;
+import java.io.IOException;
+
+import io.datalake.coap.coapshell.util.RequestTracer;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.shell.standard.ShellCommandGroup;
+import org.springframework.shell.standard.ShellComponent;
+import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellOption;
+import org.springframework.util.StringUtils;
+
+import static io.datalake.coap.coapshell.util.PrintUtils.green;
+
+/**
+ * Request tracing commands. See {@link RequestTracer}.
+ *
+ * @author Christian Tzolov
+ */
+@ShellComponent
+@ShellCommandGroup(CoapShellCommands.SHELL_COAP_REST_COMMANDS_GROUP)
+public class TraceCommands {
+
+	public enum TraceFormat {chrome, otel}
+
+	@Autowired
+	private RequestTracer tracer;
+
+	@ShellMethod(key = "trace on", value = "Record the wire timings of the following requests")
+	public String traceOn() {
+		this.tracer.setEnabled(true);
+		return green("Tracing on");
+	}
+
+	@ShellMethod(key = "trace off", value = "Stop recording request wire timings")
+	public String traceOff() {
+		this.tracer.setEnabled(false);
+		return green("Tracing off");
+	}
+
+	@ShellMethod(key = "trace show", value = "Show the recorded requests as a timing waterfall")
+	public String traceShow(@ShellOption(defaultValue = "10", help = "number of most recent requests to show") int last) {
+		String waterfall = this.tracer.waterfall(last);
+		return StringUtils.hasText(waterfall) ? waterfall : "No traces recorded. Use `trace on` to start tracing.";
+	}
+
+	@ShellMethod(key = "trace export", value = "Export the recorded requests as Chrome trace or OpenTelemetry JSON")
+	public String traceExport(
+			@ShellOption(help = "output file") File file,
+			@ShellOption(defaultValue = "chrome", help = "chrome (chrome://tracing, Perfetto) or otel (OTLP JSON)") TraceFormat format) throws IOException {
+		if (format == TraceFormat.otel) {
+			this.tracer.exportOpenTelemetry(file);
+		}
+		else {
+			this.tracer.exportChromeTrace(file);
+		}
+		return green("Traces exported to: " + file.getAbsolutePath());
+	}
+
+	@ShellMethod(key = "trace clear", value = "Discard the recorded traces")
+	public String traceClear() {
+		this.tracer.clear();
+		return green("Traces cleared");
+	}
+}
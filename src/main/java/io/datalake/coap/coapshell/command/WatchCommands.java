@@ -0,0 +1,363 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.command;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import io.datalake.coap.coapshell.CoapConnectionEvent;
+import io.datalake.coap.coapshell.provider.ContentTypeValueProvider;
+import io.datalake.coap.coapshell.provider.UriPathValueProvider;
+import io.datalake.coap.coapshell.util.PayloadCodec;
+import io.datalake.coap.coapshell.util.Row;
+import io.datalake.coap.coapshell.util.TimerWheel;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.elements.util.StringUtil;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.shell.Availability;
+import org.springframework.shell.standard.ShellCommandGroup;
+import org.springframework.shell.standard.ShellComponent;
+import org.springframework.shell.standard.ShellMethod;
+import org.springframework.shell.standard.ShellMethodAvailability;
+import org.springframework.shell.standard.ShellOption;
+import org.springframework.shell.table.BeanListTableModel;
+import org.springframework.shell.table.BorderStyle;
+import org.springframework.shell.table.Table;
+import org.springframework.shell.table.TableBuilder;
+import org.springframework.shell.table.TableModel;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+import static io.datalake.coap.coapshell.util.PrintUtils.cyan;
+import static io.datalake.coap.coapshell.util.PrintUtils.green;
+import static io.datalake.coap.coapshell.util.PrintUtils.red;
+
+/**
+ * Polls resources that don't support Observe. Every poll sends the ETag of the last received representation, so
+ * an unchanged resource is answered with 2.03 Valid and no payload. Only the changes of the values are kept (see
+ * {@link PayloadCodec#diff}) and listed with {@code watch show}.
+ *
+ * All watched paths share one {@link TimerWheel}, so the polling cost doesn't depend on the number of paths. The
+ * poll intervals are spread by a random jitter to avoid synchronized request bursts.
+ *
+ * @author Christian Tzolov
+ */
+@ShellComponent
+@ShellCommandGroup(CoapShellCommands.SHELL_COAP_REST_COMMANDS_GROUP)
+public class WatchCommands {
+
+	private static final int MAX_CHANGES = 500;
+
+	@Autowired
+	private CoapShellCommands coapShellCommands;
+
+	private final Map<String, Watch> watches = new LinkedHashMap<>();
+	private final ArrayDeque<String> changes = new ArrayDeque<>();
+	private volatile TimerWheel wheel;
+	private String watchBaseUri;
+
+	/**
+	 * The watches poll over the shell connection, so they are stopped when the connection is closed or replaced.
+	 */
+	@EventListener({ CoapConnectionEvent.Connected.class, CoapConnectionEvent.Disconnected.class })
+	public void handle(CoapConnectionEvent event) {
+		if (this.watchBaseUri != null && !Objects.equals(this.watchBaseUri, event.getStatus().getBaseUri())) {
+			stopAll();
+		}
+	}
+
+	@ShellMethod(key = "watch get", value = "Poll non-observable resources and keep the value changes")
+	@ShellMethodAvailability("watchAvailabilityCheck")
+	public synchronized String watchGet(
+			@ShellOption(help = "comma separated resource paths", valueProvider = UriPathValueProvider.class) String paths,
+			@ShellOption(defaultValue = "10", help = "poll interval in seconds") double interval,
+			@ShellOption(defaultValue = "0.1", help = "random interval spread, as a fraction of the interval") double jitter,
+			@ShellOption(defaultValue = CoapShellCommands.COAP_TEXT_PLAIN, help = "accepted response content-type", valueProvider = ContentTypeValueProvider.class) String accept) {
+
+		Assert.isTrue(interval > 0, "The interval must be positive");
+		Assert.isTrue(jitter >= 0 && jitter < 1, "The jitter must be in [0, 1)");
+
+		if (this.wheel == null) {
+			this.wheel = new TimerWheel(100, 512);
+		}
+		this.watchBaseUri = this.coapShellCommands.getBaseUri();
+
+		List<String> started = new ArrayList<>();
+		for (String path : paths.split(",")) {
+			String trimmed = path.trim();
+			if (StringUtils.hasText(trimmed)) {
+				Watch previous = this.watches.remove(trimmed);
+				if (previous != null) {
+					previous.stop();
+				}
+				Watch watch = new Watch(trimmed, (long) (interval * 1000), jitter, coapContentType(accept));
+				this.watches.put(trimmed, watch);
+				// the first polls are spread over the interval too
+				this.wheel.schedule(() -> poll(watch), (long) (ThreadLocalRandom.current().nextDouble() * watch.intervalMillis),
+						TimeUnit.MILLISECONDS);
+				started.add(trimmed);
+			}
+		}
+		return green("Watching " + started + " every " + interval + "s");
+	}
+
+	@ShellMethod(key = "watch show", value = "List the value changes since the last call")
+	@ShellMethodAvailability("watchingAvailabilityCheck")
+	public String watchShow() {
+		StringBuilder sb = new StringBuilder();
+		synchronized (this.changes) {
+			while (!this.changes.isEmpty()) {
+				sb.append(this.changes.poll()).append(StringUtil.lineSeparator());
+			}
+		}
+		return (sb.length() > 0) ? cyan(sb.toString()) : "No changes";
+	}
+
+	@ShellMethod(key = "watch status", value = "Show the poll, 2.03 (not modified) and change counters per watched path")
+	@ShellMethodAvailability("watchingAvailabilityCheck")
+	public synchronized Table watchStatus() {
+		List<Row> rows = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		for (Watch watch : this.watches.values()) {
+			Row row = new Row();
+			row.getColumn().add(watch.path);
+			row.getColumn().add(String.format("%.1f", watch.intervalMillis / 1000.0));
+			row.getColumn().add("" + watch.polls.get());
+			row.getColumn().add("" + watch.notModified.get());
+			row.getColumn().add("" + watch.changes.get());
+			row.getColumn().add("" + watch.errors.get());
+			row.getColumn().add("" + watch.skipped.get());
+			row.getColumn().add("" + watch.bytes.get());
+			row.getColumn().add((watch.lastChange > 0) ? "" + (now - watch.lastChange) / 1000 : "-");
+			rows.add(row);
+		}
+		LinkedHashMap<String, Object> headers = new LinkedHashMap<>();
+		headers.put("column[0]", "Path");
+		headers.put("column[1]", "Interval [s]");
+		headers.put("column[2]", "Polls");
+		headers.put("column[3]", "2.03 Valid");
+		headers.put("column[4]", "Changes");
+		headers.put("column[5]", "Errors");
+		headers.put("column[6]", "Skipped");
+		headers.put("column[7]", "Payload [B]");
+		headers.put("column[8]", "Last Change [s ago]");
+		TableModel model = new BeanListTableModel(rows, headers);
+		TableBuilder tableBuilder = new TableBuilder(model);
+		return tableBuilder.addHeaderAndVerticalsBorders(BorderStyle.fancy_light).build();
+	}
+
+	@ShellMethod(key = "watch stop", value = "Stop watching the paths (all paths by default)")
+	@ShellMethodAvailability("watchingAvailabilityCheck")
+	public synchronized String watchStop(
+			@ShellOption(defaultValue = ShellOption.NULL, help = "comma separated resource paths") String paths) {
+		if (!StringUtils.hasText(paths)) {
+			int count = this.watches.size();
+			stopAll();
+			return green("Stopped " + count + " watches");
+		}
+		List<String> stopped = new ArrayList<>();
+		for (String path : paths.split(",")) {
+			Watch watch = this.watches.remove(path.trim());
+			if (watch != null) {
+				watch.stop();
+				stopped.add(watch.path);
+			}
+		}
+		if (this.watches.isEmpty()) {
+			stopAll();
+		}
+		return stopped.isEmpty() ? red("Not watched: " + paths) : green("Stopped " + stopped);
+	}
+
+	@PreDestroy
+	public synchronized void stopAll() {
+		this.watches.values().forEach(Watch::stop);
+		this.watches.clear();
+		if (this.wheel != null) {
+			this.wheel.stop();
+			this.wheel = null;
+		}
+		this.watchBaseUri = null;
+	}
+
+	/**
+	 * Runs on the wheel thread: schedules the next poll and sends the request asynchronously. A poll is skipped
+	 * while the previous one is in flight, unless that is older than two intervals and considered lost.
+	 */
+	private void poll(Watch watch) {
+		TimerWheel wheel = this.wheel;
+		if (watch.stopped || wheel == null) {
+			return;
+		}
+		long spread = (long) (watch.intervalMillis * watch.jitter);
+		long next = watch.intervalMillis + ((spread > 0) ? ThreadLocalRandom.current().nextLong(-spread, spread + 1) : 0);
+		watch.timeout = wheel.schedule(() -> poll(watch), Math.max(1, next), TimeUnit.MILLISECONDS);
+
+		if (watch.inFlight.get()) {
+			if (System.currentTimeMillis() - watch.sentAt < 2 * watch.intervalMillis) {
+				watch.skipped.incrementAndGet();
+				return;
+			}
+			watch.pending.cancel();
+			watch.errors.incrementAndGet();
+		}
+
+		Request request = this.coapShellCommands.newRequest(Request.newGet(), watch.path);
+		request.getOptions().setAccept(watch.accept);
+		if (watch.etag != null) {
+			request.getOptions().addETag(watch.etag);
+		}
+		watch.pending = request;
+		watch.sentAt = System.currentTimeMillis();
+		watch.inFlight.set(true);
+		watch.client.advanced(new CoapHandler() {
+			@Override
+			public void onLoad(CoapResponse response) {
+				if (watch.pending == request) {
+					watch.inFlight.set(false);
+					onResponse(watch, response);
+				}
+			}
+
+			@Override
+			public void onError() {
+				if (watch.pending == request) {
+					watch.inFlight.set(false);
+					watch.errors.incrementAndGet();
+				}
+			}
+		}, request);
+	}
+
+	private void onResponse(Watch watch, CoapResponse response) {
+		watch.polls.incrementAndGet();
+		if (response.getCode() == ResponseCode.VALID) {
+			watch.notModified.incrementAndGet();
+			return;
+		}
+		if (!response.isSuccess()) {
+			watch.errors.incrementAndGet();
+			addChange(watch, red(response.getCode().toString()));
+			return;
+		}
+
+		byte[] payload = response.getPayload();
+		int contentFormat = response.getOptions().getContentFormat();
+		watch.bytes.addAndGet(payload.length);
+		watch.etag = (response.getOptions().getETagCount() > 0) ? response.getOptions().getETags().get(0) : null;
+
+		if (watch.payload == null) {
+			addChange(watch, "initial " + PayloadCodec.diff(null, payload, contentFormat).get(0).replace("(none) -> ", ""));
+		}
+		else {
+			for (String change : PayloadCodec.diff(watch.payload, payload, contentFormat)) {
+				addChange(watch, change);
+			}
+		}
+		watch.payload = payload;
+	}
+
+	private void addChange(Watch watch, String change) {
+		watch.changes.incrementAndGet();
+		watch.lastChange = System.currentTimeMillis();
+		String line = new SimpleDateFormat("HH:mm:ss").format(new Date(watch.lastChange)) + " " + watch.path + " " + change;
+		synchronized (this.changes) {
+			if (this.changes.size() >= MAX_CHANGES) {
+				this.changes.poll();
+			}
+			this.changes.add(line);
+		}
+	}
+
+	private int coapContentType(String contentType) {
+		try {
+			return Integer.parseInt(contentType);
+		}
+		catch (NumberFormatException nfe) {
+			return MediaTypeRegistry.parse(contentType);
+		}
+	}
+
+	public Availability watchAvailabilityCheck() {
+		return this.coapShellCommands.availabilityCheck();
+	}
+
+	public Availability watchingAvailabilityCheck() {
+		return !this.watches.isEmpty() ? Availability.available() : Availability.unavailable("no paths are watched");
+	}
+
+	private class Watch {
+		private final String path;
+		private final long intervalMillis;
+		private final double jitter;
+		private final int accept;
+		private final CoapClient client;
+
+		private final AtomicBoolean inFlight = new AtomicBoolean();
+		private final AtomicLong polls = new AtomicLong();
+		private final AtomicLong notModified = new AtomicLong();
+		private final AtomicLong changes = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong skipped = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+
+		private volatile byte[] etag;
+		private volatile byte[] payload;
+		private volatile Request pending;
+		private volatile long sentAt;
+		private volatile long lastChange;
+		private volatile TimerWheel.Timeout timeout;
+		private volatile boolean stopped;
+
+		Watch(String path, long intervalMillis, double jitter, int accept) {
+			this.path = path;
+			this.intervalMillis = intervalMillis;
+			this.jitter = jitter;
+			this.accept = accept;
+			this.client = coapShellCommands.newClient("");
+		}
+
+		void stop() {
+			this.stopped = true;
+			if (this.timeout != null) {
+				this.timeout.cancel();
+			}
+			if (this.pending != null && this.inFlight.get()) {
+				this.pending.cancel();
+			}
+			this.client.shutdown();
+		}
+	}
+}
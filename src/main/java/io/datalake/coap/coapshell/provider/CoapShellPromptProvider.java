@@ -16,6 +16,7 @@
 
 package io.datalake.coap.coapshell.provider;
 
+import io.datalake.coap.coapshell.CoapConnectionEvent;
 import io.datalake.coap.coapshell.CoapConnectionStatus;
 import org.jline.utils.AttributedString;
 import org.jline.utils.AttributedStyle;
@@ -31,12 +32,13 @@ import org.springframework.util.StringUtils;
 @Component
 public class CoapShellPromptProvider implements PromptProvider {
 
-	private CoapConnectionStatus connectionStatus;
+	private volatile CoapConnectionStatus connectionStatus;
 
 	@Override
 	public AttributedString getPrompt() {
-		if (this.connectionStatus != null && StringUtils.hasText(this.connectionStatus.getBaseUri())) {
-			return new AttributedString(this.promptPrefix() + ":>",
+		CoapConnectionStatus status = this.connectionStatus;
+		if (status != null && StringUtils.hasText(status.getBaseUri())) {
+			return new AttributedString(this.promptPrefix(status) + ":>",
 					AttributedStyle.DEFAULT.foreground(AttributedStyle.YELLOW));
 		}
 		else {
@@ -45,18 +47,21 @@ public class CoapShellPromptProvider implements PromptProvider {
 		}
 	}
 
+	/**
+	 * The prompt shows the server, the request mode and the observe state, so it follows all connection changes.
+	 */
 	@EventListener
-	public void handle(CoapConnectionStatus connectionStatus) {
-		this.connectionStatus = connectionStatus;
+	public void handle(CoapConnectionEvent event) {
+		this.connectionStatus = event.getStatus();
 	}
 
-	private String promptPrefix() {
+	private String promptPrefix(CoapConnectionStatus status) {
 		StringBuffer sb = new StringBuffer();
-		sb.append(this.connectionStatus.getBaseUri());
-		if (this.connectionStatus.getMode() != CoapConnectionStatus.RequestMode.con) {
-			sb.append("[").append(this.connectionStatus.getMode().name().toUpperCase()).append("]");
+		sb.append(status.getBaseUri());
+		if (status.getMode() != CoapConnectionStatus.RequestMode.con) {
+			sb.append("[").append(status.getMode().name().toUpperCase()).append("]");
 		}
-		if (this.connectionStatus.isObserveActivated()) {
+		if (status.isObserveActivated()) {
 			sb.append("[OBS]");
 		}
 		return sb.toString();
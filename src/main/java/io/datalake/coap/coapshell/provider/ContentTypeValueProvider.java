@@ -17,6 +17,7 @@ package io.datalake.coap.coapshell.provider;
 
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
 
@@ -36,8 +37,9 @@ public class ContentTypeValueProvider extends ValueProviderSupport {
 	public List<CompletionProposal> complete(MethodParameter parameter,
 			CompletionContext completionContext, String[] hints) {
 
-		return MediaTypeRegistry.getAllMediaTypes().stream()
-				.map(id -> MediaTypeRegistry.toString(id))
+		return Stream.concat(MediaTypeRegistry.getAllMediaTypes().stream().map(id -> MediaTypeRegistry.toString(id)),
+				Stream.of("application/json-patch+json", "application/merge-patch+json"))
+				.distinct()
 				.filter(contentType -> contentType.startsWith(prefix(completionContext)))
 				.map(contentType -> new CompletionProposal(contentType))
 				.collect(Collectors.toList());
@@ -67,6 +67,10 @@ public abstract class StringListValueProvider extends ValueProviderSupport {
 		this.prefixHints.add(hint);
 	}
 
+	public void addPrefixHints(List<String> hints) {
+		this.prefixHints.addAll(hints);
+	}
+
 	public void clearHints() {
 		this.prefixHints.clear();
 	}
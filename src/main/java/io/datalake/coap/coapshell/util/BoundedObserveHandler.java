@@ -0,0 +1,225 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.elements.util.StringUtil;
+
+import org.springframework.util.Assert;
+
+import static io.datalake.coap.coapshell.util.PrintUtils.cyan;
+import static io.datalake.coap.coapshell.util.PrintUtils.red;
+
+/**
+ * Observe handler that keeps the notification processing bounded regardless of the notification rate.
+ *
+ * The {@link #onLoad(CoapResponse)} callback only applies the cheap sampling, rate limiting and coalescing filters
+ * and hands the raw payloads over to bounded queues. A single background thread extracts the numeric values of the
+ * sampled notifications into the {@link TimeSeriesStore}, formats the notifications accepted by all filters and
+ * keeps only the last {@code maxMessages} of them. Notifications that don't fit into the queues are dropped and
+ * counted.
+ *
+ * @author Christian Tzolov
+ */
+public class BoundedObserveHandler implements CoapHandler {
+
+	/**
+	 * Max sampled payloads waiting for the value extraction.
+	 */
+	private static final int VALUE_QUEUE_SIZE = 4096;
+
+	private final String observedUri;
+	private final boolean coalesce;
+	private final int sample;
+	private final long minIntervalNanos;
+	private final int maxMessages;
+	private final TimeSeriesStore timeSeries;
+	private final String valuePointer;
+
+	private final BlockingQueue<CoapResponse> queue;
+	private final BlockingQueue<ValueSample> valueQueue;
+	private final AtomicReference<CoapResponse> latest = new AtomicReference<>();
+	private final ArrayDeque<String> messages = new ArrayDeque<>();
+	private final ScheduledExecutorService executor;
+
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong sampledOut = new AtomicLong();
+	private final AtomicLong rateLimited = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong droppedValues = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private volatile long lastAccepted;
+
+	/**
+	 * @param observedUri - the observed resource URI
+	 * @param coalesceMillis - if positive only the latest notification per interval is kept
+	 * @param sample - keep every N-th notification
+	 * @param maxRate - max accepted notifications per second, 0 for unlimited
+	 * @param queueSize - max number of notifications waiting to be formatted
+	 * @param maxMessages - max number of formatted notifications to retain
+	 * @param timeSeries - store for the numeric notification values, null to not record them
+	 * @param valuePointer - JSON pointer of the recorded value, null for all numeric values
+	 */
+	public BoundedObserveHandler(String observedUri, long coalesceMillis, int sample, double maxRate,
+			int queueSize, int maxMessages, TimeSeriesStore timeSeries, String valuePointer) {
+		Assert.isTrue(sample > 0, "The sample must be positive");
+		Assert.isTrue(maxRate >= 0, "The max rate can't be negative");
+		this.observedUri = observedUri;
+		this.coalesce = coalesceMillis > 0;
+		this.sample = sample;
+		this.minIntervalNanos = (maxRate > 0) ? (long) (TimeUnit.SECONDS.toNanos(1) / maxRate) : 0;
+		this.maxMessages = maxMessages;
+		this.timeSeries = timeSeries;
+		this.valuePointer = valuePointer;
+		this.queue = new ArrayBlockingQueue<>(queueSize);
+		this.valueQueue = (timeSeries != null) ? new ArrayBlockingQueue<>(VALUE_QUEUE_SIZE) : null;
+
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "observe-handler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (this.coalesce) {
+			this.executor.scheduleAtFixedRate(this::flushLatest, coalesceMillis, coalesceMillis, TimeUnit.MILLISECONDS);
+		}
+		this.executor.scheduleWithFixedDelay(this::drain, 100, 100, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void onLoad(CoapResponse response) {
+		long count = this.received.incrementAndGet();
+		if ((count - 1) % this.sample != 0) {
+			this.sampledOut.incrementAndGet();
+			return;
+		}
+		if (this.valueQueue != null) {
+			// the values of all sampled notifications are recorded, the other filters only limit the formatted ones
+			ValueSample value = new ValueSample(System.currentTimeMillis(), response.getPayload(),
+					response.getOptions().getContentFormat());
+			if (!this.valueQueue.offer(value)) {
+				this.droppedValues.incrementAndGet();
+			}
+		}
+		if (this.minIntervalNanos > 0) {
+			long now = System.nanoTime();
+			if (this.lastAccepted != 0 && now - this.lastAccepted < this.minIntervalNanos) {
+				this.rateLimited.incrementAndGet();
+				return;
+			}
+			this.lastAccepted = now;
+		}
+		if (this.coalesce) {
+			if (this.latest.getAndSet(response) != null) {
+				this.coalesced.incrementAndGet();
+			}
+			return;
+		}
+		enqueue(response);
+	}
+
+	@Override
+	public void onError() {
+		this.errors.incrementAndGet();
+		retain(red("OBSERVE Error (" + this.observedUri + "):"));
+	}
+
+	private void flushLatest() {
+		CoapResponse response = this.latest.getAndSet(null);
+		if (response != null) {
+			enqueue(response);
+		}
+	}
+
+	private void enqueue(CoapResponse response) {
+		if (!this.queue.offer(response)) {
+			this.dropped.incrementAndGet();
+		}
+	}
+
+	private void drain() {
+		if (this.valueQueue != null) {
+			ValueSample value;
+			while ((value = this.valueQueue.poll()) != null) {
+				long time = value.timeMillis;
+				PayloadCodec.numericValues(value.payload, value.contentFormat, this.valuePointer)
+						.forEach((name, number) -> this.timeSeries.record(name, time, number));
+			}
+		}
+		CoapResponse response;
+		while ((response = this.queue.poll()) != null) {
+			retain(cyan(PrintUtils.prettyPrint(response, cyan("OBSERVE Response (" + this.observedUri + "):"))));
+		}
+	}
+
+	private void retain(String message) {
+		synchronized (this.messages) {
+			this.messages.addLast(message);
+			while (this.messages.size() > this.maxMessages) {
+				this.messages.removeFirst();
+			}
+		}
+	}
+
+	public String getMessages() {
+		StringBuilder sb = new StringBuilder();
+		synchronized (this.messages) {
+			for (String message : this.messages) {
+				sb.append(message).append(StringUtil.lineSeparator());
+			}
+		}
+		return sb.toString();
+	}
+
+	public String getObservedUri() {
+		return observedUri;
+	}
+
+	public String stats() {
+		return String.format("received: %d, sampled out: %d, rate limited: %d, coalesced: %d, dropped: %d, errors: %d, queued: %d, dropped values: %d",
+				this.received.get(), this.sampledOut.get(), this.rateLimited.get(), this.coalesced.get(),
+				this.dropped.get(), this.errors.get(), this.queue.size(), this.droppedValues.get());
+	}
+
+	public void close() {
+		this.executor.shutdownNow();
+	}
+
+	/**
+	 * Raw payload of a sampled notification, its values are extracted by the worker thread.
+	 */
+	private static class ValueSample {
+		private final long timeMillis;
+		private final byte[] payload;
+		private final int contentFormat;
+
+		ValueSample(long timeMillis, byte[] payload, int contentFormat) {
+			this.timeMillis = timeMillis;
+			this.payload = payload;
+			this.contentFormat = contentFormat;
+		}
+	}
+}
@@ -15,6 +15,8 @@
  */
 package io.datalake.coap.coapshell.util;
 
+import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.cert.Certificate;
 
 import io.datalake.coap.coapshell.CoapShellProperties;
@@ -22,6 +24,8 @@ import org.eclipse.californium.elements.util.SslContextUtil;
 import org.eclipse.californium.scandium.DTLSConnector;
 import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
 import org.eclipse.californium.scandium.dtls.CertificateType;
+import org.eclipse.californium.scandium.dtls.Handshaker;
+import org.eclipse.californium.scandium.dtls.SessionCache;
 import org.eclipse.californium.scandium.dtls.pskstore.AdvancedSinglePskStore;
 import org.eclipse.californium.scandium.dtls.x509.StaticNewAdvancedCertificateVerifier;
 
@@ -37,43 +41,90 @@ public class CoapDtlsSupport {
 
 	private CoapShellProperties properties;
 
+	private CoapTransportProfiles profiles;
+
+	private DtlsSessionStore sessionStore;
+
+	/**
+	 * Key and trust stores, loaded on the first connector creation and reused afterwards.
+	 */
+	private volatile SslContextUtil.Credentials clientCredentials;
+	private volatile Certificate[] trustedCertificates;
+
+	private final DtlsStatistics statistics = new DtlsStatistics();
+
 	@Autowired
-	public CoapDtlsSupport(CoapShellProperties properties) {
+	public CoapDtlsSupport(CoapShellProperties properties, CoapTransportProfiles profiles,
+			DtlsSessionStore sessionStore) {
 		this.properties = properties;
+		this.profiles = profiles;
+		this.sessionStore = sessionStore;
 	}
 
+	/**
+	 * Creates a DTLS connector that resumes the sessions of the identity stored by {@link DtlsSessionStore}. Its
+	 * handshakes are counted by {@link #getStatistics()}.
+	 */
 	public DTLSConnector createConnector(String identity, String preSharedKey) {
+		SessionCache sessionCache = this.properties.isDtlsSessionCacheEnabled() ? this.sessionStore.cache(identity) : null;
+		return createConnector(identity, preSharedKey, null, null, sessionCache, this.statistics);
+	}
+
+	/**
+	 * Creates a DTLS connector with explicit thread pool sizes.
+	 * @param identity - pre-shared key identity
+	 * @param preSharedKey - pre-shared key secret
+	 * @param connectionThreads - threads for the record encryption/decryption and handshakes (0 = one per core),
+	 *                          null for the transport profile setting
+	 * @param receiverThreads - threads receiving from the socket (0 = one per core), null for the transport profile setting
+	 * @return new connector or null if the connector configuration failed. Its sessions are not persisted and its
+	 * handshakes are not counted by the shell statistics
+	 */
+	public DTLSConnector createConnector(String identity, String preSharedKey, Integer connectionThreads,
+			Integer receiverThreads) {
+		return createConnector(identity, preSharedKey, connectionThreads, receiverThreads, null, null);
+	}
+
+	private DTLSConnector createConnector(String identity, String preSharedKey, Integer connectionThreads,
+			Integer receiverThreads, SessionCache sessionCache, DtlsStatistics handshakeStatistics) {
 		DTLSConnector dtlsConnector = null;
 
 		try {
-			// load key store
-			SslContextUtil.Credentials clientCredentials = SslContextUtil.loadCredentials(
-					this.properties.getKeyStoreLocation(), this.properties.getKeyStoreAlias(),
-					this.properties.getKeyStorePassword().toCharArray(),
-					this.properties.getKeyStorePassword().toCharArray());
-
-			Certificate[] trustedCertificates = SslContextUtil.loadTrustedCertificates(
-					this.properties.getTrustStoreLocation(), this.properties.getTrustStoreAlias(),
-					this.properties.getTrustStorePassword().toCharArray());
+			loadStores();
 
 			DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder();
 			if (StringUtils.hasText(identity) && StringUtils.hasText(preSharedKey)) {
 				builder.setAdvancedPskStore(new AdvancedSinglePskStore(identity, preSharedKey.getBytes()));
 			}
 
-			builder.setIdentity(clientCredentials.getPrivateKey(), clientCredentials.getCertificateChain(),
+			builder.setIdentity(this.clientCredentials.getPrivateKey(), this.clientCredentials.getCertificateChain(),
 					CertificateType.RAW_PUBLIC_KEY, CertificateType.X_509);
 
 			builder.setAdvancedCertificateVerifier(StaticNewAdvancedCertificateVerifier.builder()
-					.setTrustedCertificates(trustedCertificates).setTrustAllRPKs().build());
+					.setTrustedCertificates(this.trustedCertificates).setTrustAllRPKs().build());
 
-			builder.setMaxConnections(100);
-			builder.setConnectionThreadCount(1);
+			this.profiles.applyDtls(builder);
+			if (connectionThreads != null) {
+				builder.setConnectionThreadCount(CoapTransportProfiles.threads(connectionThreads));
+			}
+			if (receiverThreads != null) {
+				builder.setReceiverThreadCount(CoapTransportProfiles.threads(receiverThreads));
+			}
 
 			builder.setStaleConnectionThreshold(properties.getStaleConnectionThreshold());
 
 			// Create DTLS endpoint
-			dtlsConnector = new DTLSConnector(builder.build());
+			if (handshakeStatistics != null) {
+				dtlsConnector = new DTLSConnector(builder.build(), sessionCache) {
+					@Override
+					protected void onInitializeHandshaker(Handshaker handshaker) {
+						handshaker.addSessionListener(handshakeStatistics.sessionListener(handshaker));
+					}
+				};
+			}
+			else {
+				dtlsConnector = new DTLSConnector(builder.build(), sessionCache);
+			}
 			dtlsConnector.setRawDataReceiver(raw -> System.out.println("Received response: " + new String(raw.getBytes())));
 		}
 		catch (Exception e) {
@@ -84,4 +135,26 @@ public class CoapDtlsSupport {
 		return dtlsConnector;
 	}
 
+	/**
+	 * @return handshake counters of the shell connectors since the start or the last reset, without the bench
+	 * connectors
+	 */
+	public DtlsStatistics getStatistics() {
+		return statistics;
+	}
+
+	private synchronized void loadStores() throws IOException, GeneralSecurityException {
+		if (this.clientCredentials == null) {
+			this.clientCredentials = SslContextUtil.loadCredentials(
+					this.properties.getKeyStoreLocation(), this.properties.getKeyStoreAlias(),
+					this.properties.getKeyStorePassword().toCharArray(),
+					this.properties.getKeyStorePassword().toCharArray());
+		}
+		if (this.trustedCertificates == null) {
+			this.trustedCertificates = SslContextUtil.loadTrustedCertificates(
+					this.properties.getTrustStoreLocation(), this.properties.getTrustStoreAlias(),
+					this.properties.getTrustStorePassword().toCharArray());
+		}
+	}
+
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.coap.Token;
+import org.eclipse.californium.core.network.serialization.UdpDataParser;
+import org.eclipse.californium.core.network.serialization.UdpDataSerializer;
+import org.eclipse.californium.elements.AddressEndpointContext;
+
+import org.springframework.util.Assert;
+
+/**
+ * Group communication (RFC 7390): sends one Non-confirmable request to a multicast group and collects the unicast
+ * responses of all group members that arrive within the leisure window.
+ *
+ * The exchange runs on its own socket and not through a Californium endpoint, whose matcher completes a request
+ * with the first response. Multicast requests can't be secured with DTLS, so only {@code coap:} groups are
+ * supported, and the request must fit into one datagram (no block-wise transfer).
+ *
+ * @author Christian Tzolov
+ */
+public class CoapGroupClient {
+
+	/**
+	 * RFC 7252 DEFAULT_LEISURE.
+	 */
+	public static final long DEFAULT_LEISURE = 5000;
+
+	private final int hops;
+
+	/**
+	 * @param hops - multicast time-to-live (IPv4) or hop limit (IPv6) of the request
+	 */
+	public CoapGroupClient(int hops) {
+		Assert.isTrue(hops > 0 && hops < 256, "The hops must be in [1, 255]");
+		this.hops = hops;
+	}
+
+	/**
+	 * Sends the request to the group and waits the leisure time for the responses.
+	 * @param request - request without URI, sent as NON
+	 * @param groupUri - coap: URI with a multicast group host and the resource path
+	 * @param leisure - time to collect responses in milliseconds
+	 * @return the responses in their arrival order, one per responder
+	 */
+	public List<GroupResponse> send(Request request, URI groupUri, long leisure) throws IOException {
+		Assert.isTrue("coap".equalsIgnoreCase(groupUri.getScheme()), "Group requests require a coap: URI");
+		InetAddress group = InetAddress.getByName(groupUri.getHost());
+		Assert.isTrue(group.isMulticastAddress(), groupUri.getHost() + " is not a multicast address");
+		InetSocketAddress destination = new InetSocketAddress(group,
+				(groupUri.getPort() > 0) ? groupUri.getPort() : CoAP.DEFAULT_COAP_PORT);
+
+		request.setURI(groupUri);
+		request.setType(CoAP.Type.NON);
+		request.setMID(ThreadLocalRandom.current().nextInt(1 << 16));
+		byte[] token = new byte[8];
+		ThreadLocalRandom.current().nextBytes(token);
+		request.setToken(new Token(token));
+
+		UdpDataSerializer serializer = new UdpDataSerializer();
+		UdpDataParser parser = new UdpDataParser();
+		byte[] bytes = serializer.serializeRequest(request).getBytes();
+
+		List<GroupResponse> responses = new ArrayList<>();
+		Set<InetSocketAddress> responders = new HashSet<>();
+		try (MulticastSocket socket = new MulticastSocket(0)) {
+			socket.setTimeToLive(this.hops);
+			long sent = System.nanoTime();
+			socket.send(new DatagramPacket(bytes, bytes.length, destination));
+
+			long deadline = sent + TimeUnit.MILLISECONDS.toNanos(leisure);
+			byte[] buffer = new byte[2048];
+			DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			long remaining;
+			while ((remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())) > 0) {
+				socket.setSoTimeout((int) remaining);
+				try {
+					socket.receive(packet);
+				}
+				catch (SocketTimeoutException e) {
+					break;
+				}
+				long rtt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sent);
+				InetSocketAddress responder = (InetSocketAddress) packet.getSocketAddress();
+
+				Message message;
+				try {
+					message = parser.parseMessage(Arrays.copyOf(packet.getData(), packet.getLength()));
+				}
+				catch (RuntimeException e) {
+					continue; // not a CoAP message
+				}
+				if (!(message instanceof Response) || !request.getToken().equals(message.getToken())) {
+					continue;
+				}
+				if (message.getType() == CoAP.Type.CON) {
+					// acknowledge, otherwise the responder retransmits its response
+					EmptyMessage ack = new EmptyMessage(CoAP.Type.ACK);
+					ack.setMID(message.getMID());
+					ack.setDestinationContext(new AddressEndpointContext(responder));
+					byte[] ackBytes = serializer.serializeEmptyMessage(ack).getBytes();
+					socket.send(new DatagramPacket(ackBytes, ackBytes.length, responder));
+				}
+				if (responders.add(responder)) {
+					responses.add(new GroupResponse(responder, (Response) message, rtt));
+				}
+			}
+		}
+		return responses;
+	}
+
+	public static class GroupResponse {
+		private final InetSocketAddress responder;
+		private final Response response;
+		private final long rtt;
+
+		GroupResponse(InetSocketAddress responder, Response response, long rtt) {
+			this.responder = responder;
+			this.response = response;
+			this.rtt = rtt;
+		}
+
+		public InetSocketAddress getResponder() {
+			return responder;
+		}
+
+		public Response getResponse() {
+			return response;
+		}
+
+		/**
+		 * @return milliseconds from sending the request to the response, including the responder's leisure delay
+		 */
+		public long getRtt() {
+			return rtt;
+		}
+	}
+}
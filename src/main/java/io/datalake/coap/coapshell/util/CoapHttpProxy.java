@@ -0,0 +1,288 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+
+import org.springframework.util.Assert;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.StringUtils;
+
+/**
+ * HTTP-to-CoAP cross-proxy on the JDK HTTP server. HTTP GET, POST, PUT, PATCH and DELETE requests are sent as CoAP
+ * requests and the CoAP responses are returned with the HTTP status of the same digits
+ * ({@link PrintUtils#httpStatusCode}), the content-format as Content-Type and the ETag and Max-Age options as
+ * ETag and Cache-Control headers.
+ *
+ * The request target is either a path on the default server ({@code http://localhost:8080/sensors/temp}) or an
+ * absolute CoAP URI ({@code http://localhost:8080/coaps://device:5684/sensors/temp}). The requests are sent through
+ * the {@link CoapSessionPool}, so concurrent HTTP clients share one CoAP client and DTLS session per upstream server.
+ * The pool and its endpoints are closed with the proxy.
+ *
+ * @author Christian Tzolov
+ */
+public class CoapHttpProxy {
+
+	private final CoapSessionPool pool;
+	private final BiFunction<Request, String, Request> requestFactory;
+	private final long timeout;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final long started = System.currentTimeMillis();
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final Map<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+
+	/**
+	 * @param address - HTTP listen address
+	 * @param pool - CoAP clients per upstream server
+	 * @param requestFactory - prepares the CoAP request for the target: a path on the default server or an absolute
+	 *                       CoAP URI
+	 * @param threads - number of HTTP worker threads, bounds the concurrent CoAP requests
+	 * @param timeout - CoAP response timeout in milliseconds
+	 */
+	public CoapHttpProxy(InetSocketAddress address, CoapSessionPool pool,
+			BiFunction<Request, String, Request> requestFactory, int threads, long timeout) throws IOException {
+		Assert.isTrue(threads > 0, "The number of threads must be positive");
+		this.pool = pool;
+		this.requestFactory = requestFactory;
+		this.timeout = timeout;
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.server = HttpServer.create(address, 0);
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/", this::handle);
+	}
+
+	public void start() {
+		this.server.start();
+	}
+
+	/**
+	 * Stops the HTTP server and releases the pooled CoAP clients.
+	 */
+	public void stop() {
+		this.server.stop(0);
+		this.executor.shutdownNow();
+		this.pool.close();
+	}
+
+	public InetSocketAddress getAddress() {
+		return this.server.getAddress();
+	}
+
+	public long getUptime() {
+		return System.currentTimeMillis() - this.started;
+	}
+
+	public long getRequests() {
+		return this.requests.get();
+	}
+
+	/**
+	 * @return number of requests answered by the proxy itself: bad requests, timeouts and send errors
+	 */
+	public long getFailures() {
+		return this.failures.get();
+	}
+
+	public int getSessions() {
+		return this.pool.size();
+	}
+
+	/**
+	 * @return number of responses per HTTP status
+	 */
+	public Map<Integer, Long> getStatusCounts() {
+		Map<Integer, Long> counts = new TreeMap<>();
+		this.statusCounts.forEach((status, count) -> counts.put(status, count.sum()));
+		return counts;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		this.requests.incrementAndGet();
+		try {
+			Request request = coapRequest(exchange);
+			if (request == null) {
+				exchange.getResponseHeaders().set("Allow", "GET, POST, PUT, PATCH, DELETE");
+				fail(exchange, 405, "Method not allowed: " + exchange.getRequestMethod());
+				return;
+			}
+			CoapResponse response = send(request);
+			if (response == null) {
+				fail(exchange, 504, "No response from " + request.getURI());
+				return;
+			}
+			respond(exchange, response);
+		}
+		catch (IllegalArgumentException | IllegalStateException e) {
+			fail(exchange, 400, e.getMessage());
+		}
+		catch (Exception e) {
+			if (exchange.getResponseCode() < 0) {
+				fail(exchange, 502, "Failed to proxy the request: " + e.getMessage());
+			}
+			else {
+				// the response is already started, only the body failed
+				this.failures.incrementAndGet();
+			}
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	private Request coapRequest(HttpExchange exchange) throws IOException {
+		Request request;
+		switch (exchange.getRequestMethod().toUpperCase()) {
+		case "GET":
+			request = Request.newGet();
+			break;
+		case "POST":
+			request = Request.newPost();
+			break;
+		case "PUT":
+			request = Request.newPut();
+			break;
+		case "PATCH":
+			request = new Request(CoAP.Code.PATCH);
+			break;
+		case "DELETE":
+			request = Request.newDelete();
+			break;
+		default:
+			return null;
+		}
+
+		String target = exchange.getRequestURI().getRawPath();
+		if (target.startsWith("/coap://") || target.startsWith("/coaps://")) {
+			target = target.substring(1);
+		}
+		if (exchange.getRequestURI().getRawQuery() != null) {
+			target = target + "?" + exchange.getRequestURI().getRawQuery();
+		}
+		this.requestFactory.apply(request, target);
+
+		Headers headers = exchange.getRequestHeaders();
+		int contentFormat = mediaType(headers.getFirst("Content-Type"));
+		if (contentFormat != MediaTypeRegistry.UNDEFINED) {
+			request.getOptions().setContentFormat(contentFormat);
+		}
+		int accept = mediaType(headers.getFirst("Accept"));
+		if (accept != MediaTypeRegistry.UNDEFINED) {
+			request.getOptions().setAccept(accept);
+		}
+		byte[] body = StreamUtils.copyToByteArray(exchange.getRequestBody());
+		if (body.length > 0) {
+			request.setPayload(body);
+		}
+		return request;
+	}
+
+	/**
+	 * @return the CoAP content-format of a single HTTP media type, UNDEFINED for none, wildcards or media type lists
+	 */
+	private static int mediaType(String header) {
+		if (!StringUtils.hasText(header) || header.contains(",") || header.contains("*")) {
+			return MediaTypeRegistry.UNDEFINED;
+		}
+		int parameters = header.indexOf(';');
+		return PayloadCodec.contentFormat((parameters < 0) ? header : header.substring(0, parameters));
+	}
+
+	private CoapResponse send(Request request) throws InterruptedException, ExecutionException {
+		CompletableFuture<CoapResponse> response = new CompletableFuture<>();
+		this.pool.client(request.getURI()).advanced(new CoapHandler() {
+			@Override
+			public void onLoad(CoapResponse coapResponse) {
+				response.complete(coapResponse);
+			}
+
+			@Override
+			public void onError() {
+				response.complete(null);
+			}
+		}, request);
+		try {
+			return response.get(this.timeout, TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e) {
+			request.cancel();
+			return null;
+		}
+	}
+
+	private void respond(HttpExchange exchange, CoapResponse response) throws IOException {
+		OptionSet options = response.getOptions();
+		Headers headers = exchange.getResponseHeaders();
+		if (options.getContentFormat() != MediaTypeRegistry.UNDEFINED) {
+			headers.set("Content-Type", MediaTypeRegistry.toString(options.getContentFormat()));
+		}
+		if (options.getETagCount() > 0) {
+			headers.set("ETag", "\"" + PayloadCodec.toHex(options.getETags().get(0)) + "\"");
+		}
+		if (options.hasMaxAge()) {
+			headers.set("Cache-Control", "max-age=" + options.getMaxAge());
+		}
+		write(exchange, PrintUtils.httpStatusCode(response.getCode()), response.getPayload());
+	}
+
+	private void fail(HttpExchange exchange, int status, String message) throws IOException {
+		this.failures.incrementAndGet();
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		write(exchange, status, String.valueOf(message).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Writes the response. The body is dropped for the statuses that must not have one: 204 (e.g. a CoAP 2.04
+	 * Changed with payload), 205 and 304. The JDK HTTP server rejects a body for 204.
+	 */
+	private void write(HttpExchange exchange, int status, byte[] body) throws IOException {
+		this.statusCounts.computeIfAbsent(status, s -> new LongAdder()).increment();
+		boolean empty = body == null || body.length == 0 || status == 204 || status == 205 || status == 304;
+		exchange.sendResponseHeaders(status, empty ? -1 : body.length);
+		if (!empty) {
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.cose.AlgorithmID;
+import org.eclipse.californium.elements.util.Bytes;
+import org.eclipse.californium.oscore.HashMapCtxDB;
+import org.eclipse.californium.oscore.OSCoreCoapStackFactory;
+import org.eclipse.californium.oscore.OSCoreCtx;
+import org.eclipse.californium.oscore.OSException;
+
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+/**
+ * Creates OSCORE (RFC 8613) protected endpoints from a security context file.
+ *
+ * The context file is a properties file with hex encoded values:
+ * <pre>
+ * master-secret=0102030405060708090a0b0c0d0e0f10
+ * master-salt=9e7ca92223786340
+ * sender-id=
+ * recipient-id=01
+ * id-context=
+ * aead=AES_CCM_16_64_128
+ * hkdf=HKDF_HMAC_SHA_256
+ * replay-window=32
+ * </pre>
+ * Only the master-secret and the recipient-id are required.
+ *
+ * @author Christian Tzolov
+ */
+@Component
+public class CoapOscoreSupport {
+
+	public HashMapCtxDB loadContext(File contextFile, String uri) throws IOException {
+		Properties context = new Properties();
+		try (InputStream in = new FileInputStream(contextFile)) {
+			context.load(in);
+		}
+
+		try {
+			OSCoreCtx ctx = new OSCoreCtx(
+					required(context, "master-secret"),
+					true,
+					AlgorithmID.valueOf(context.getProperty("aead", AlgorithmID.AES_CCM_16_64_128.name())),
+					hex(context, "sender-id", Bytes.EMPTY),
+					required(context, "recipient-id"),
+					AlgorithmID.valueOf(context.getProperty("hkdf", AlgorithmID.HKDF_HMAC_SHA_256.name())),
+					Integer.valueOf(context.getProperty("replay-window", "32")),
+					hex(context, "master-salt", null),
+					hex(context, "id-context", null));
+
+			HashMapCtxDB db = new HashMapCtxDB();
+			db.addContext(uri, ctx);
+			return db;
+		}
+		catch (OSException | IllegalArgumentException e) {
+			throw new IOException("Invalid OSCORE security context [" + contextFile + "]: " + e.getMessage(), e);
+		}
+	}
+
+	public CoapEndpoint createEndpoint(NetworkConfig networkConfig, HashMapCtxDB db) {
+		return new CoapEndpoint.Builder()
+				.setNetworkConfig(networkConfig)
+				.setCoapStackFactory(new OSCoreCoapStackFactory())
+				.setCustomCoapStackArgument(db)
+				.build();
+	}
+
+	private byte[] required(Properties context, String key) {
+		if (!context.containsKey(key)) {
+			throw new IllegalArgumentException("missing required `" + key + "` entry");
+		}
+		return hex(context, key, Bytes.EMPTY);
+	}
+
+	private byte[] hex(Properties context, String key, byte[] defaultValue) {
+		String value = context.getProperty(key);
+		return StringUtils.hasText(value) ? PayloadCodec.fromHex(value) : defaultValue;
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.network.Endpoint;
+
+import org.springframework.util.Assert;
+
+/**
+ * Keeps one {@link CoapClient} per server (scheme and authority) and one endpoint per scheme for requests spread
+ * over many servers.
+ *
+ * The servers reachable over the shell connection scheme use the shell endpoint. The other schemes get an endpoint
+ * of the pool, created on first use by the endpoint factory (transport profile network config, DTLS connector for
+ * coaps) and destroyed with the pool. A DTLS endpoint keeps one session per server in its connector, so the
+ * requests to a server share one handshake. The least recently used clients are released once
+ * {@code maxSessions} servers are reached, the DTLS connector limits and expires the sessions by itself.
+ *
+ * @author Christian Tzolov
+ */
+public class CoapSessionPool {
+
+	private final Endpoint endpoint;
+	private final String endpointScheme;
+	private final Function<String, Endpoint> endpointFactory;
+	private final Map<String, Endpoint> endpoints = new LinkedHashMap<>();
+	private final Map<String, CoapClient> clients;
+
+	/**
+	 * @param endpoint - shell endpoint, null if the shell uses the default endpoint
+	 * @param endpointScheme - URI scheme served by the shell endpoint (e.g. coaps)
+	 * @param endpointFactory - creates the endpoint for another scheme
+	 * @param maxSessions - max number of servers to keep clients for
+	 */
+	public CoapSessionPool(Endpoint endpoint, String endpointScheme, Function<String, Endpoint> endpointFactory,
+			int maxSessions) {
+		Assert.isTrue(maxSessions > 0, "The max sessions must be positive");
+		this.endpoint = endpoint;
+		this.endpointScheme = endpointScheme;
+		this.endpointFactory = endpointFactory;
+		this.clients = new LinkedHashMap<String, CoapClient>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CoapClient> eldest) {
+				if (size() > maxSessions) {
+					eldest.getValue().shutdown();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param uri - absolute resource URI
+	 * @return the client for the server of the URI
+	 */
+	public synchronized CoapClient client(String uri) {
+		URI parsed = URI.create(uri);
+		Assert.hasText(parsed.getScheme(), "Not an absolute URI: " + uri);
+		String scheme = parsed.getScheme().toLowerCase();
+		String key = scheme + "://" + parsed.getRawAuthority();
+		return this.clients.computeIfAbsent(key, k -> new CoapClient(k).setEndpoint(endpoint(scheme)));
+	}
+
+	private Endpoint endpoint(String scheme) {
+		if (this.endpoint != null && scheme.equalsIgnoreCase(this.endpointScheme)) {
+			return this.endpoint;
+		}
+		return this.endpoints.computeIfAbsent(scheme, this.endpointFactory);
+	}
+
+	public synchronized int size() {
+		return this.clients.size();
+	}
+
+	/**
+	 * Releases the clients and destroys the endpoints of the pool. The shell endpoint is owned by the shell
+	 * connection and is not destroyed.
+	 */
+	public synchronized void close() {
+		this.clients.values().forEach(CoapClient::shutdown);
+		this.clients.clear();
+		List<Endpoint> owned = new ArrayList<>(this.endpoints.values());
+		this.endpoints.clear();
+		owned.forEach(Endpoint::destroy);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.io.File;
+import java.util.Set;
+
+import io.datalake.coap.coapshell.CoapShellProperties;
+import io.datalake.coap.coapshell.CoapShellProperties.TransportProfile;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.scandium.config.DtlsConnectorConfig;
+import org.eclipse.californium.scandium.dtls.SingleNodeConnectionIdGenerator;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+/**
+ * Creates the endpoint {@link NetworkConfig} and configures the DTLS connectors from the active transport profile
+ * (see {@link CoapShellProperties#getProfiles()}). Thread counts of 0 stand for one thread per CPU core.
+ *
+ * @author Christian Tzolov
+ */
+@Component
+public class CoapTransportProfiles {
+
+	private static final String STANDARD_CONFIG_FILE = "Californium.properties";
+
+	private final CoapShellProperties properties;
+	private volatile String active;
+
+	@Autowired
+	public CoapTransportProfiles(CoapShellProperties properties) {
+		this.properties = properties;
+		this.active = properties.getProfile();
+		Assert.isTrue(properties.getProfiles().containsKey(this.active), "Unknown transport profile: " + this.active);
+	}
+
+	public String getActiveName() {
+		return active;
+	}
+
+	public TransportProfile getActive() {
+		return get(this.active);
+	}
+
+	public TransportProfile get(String name) {
+		TransportProfile profile = this.properties.getProfiles().get(name);
+		Assert.notNull(profile, "Unknown transport profile: " + name + ". Available: " + names());
+		return profile;
+	}
+
+	public Set<String> names() {
+		return this.properties.getProfiles().keySet();
+	}
+
+	/**
+	 * Makes the profile active for the endpoints and connectors created from now on.
+	 */
+	public void use(String name) {
+		get(name);
+		this.active = name;
+	}
+
+	/**
+	 * @return new network configuration with the standard Californium configuration overridden by the active profile
+	 */
+	public NetworkConfig networkConfig() {
+		TransportProfile profile = getActive();
+		NetworkConfig config = standardConfig();
+		set(config, NetworkConfig.Keys.PROTOCOL_STAGE_THREAD_COUNT, threads(profile.getProtocolStageThreads()));
+		set(config, NetworkConfig.Keys.NETWORK_STAGE_RECEIVER_THREAD_COUNT, threads(profile.getNetworkStageReceiverThreads()));
+		set(config, NetworkConfig.Keys.NETWORK_STAGE_SENDER_THREAD_COUNT, threads(profile.getNetworkStageSenderThreads()));
+		set(config, NetworkConfig.Keys.UDP_CONNECTOR_RECEIVE_BUFFER, profile.getUdpReceiveBufferSize());
+		set(config, NetworkConfig.Keys.UDP_CONNECTOR_SEND_BUFFER, profile.getUdpSendBufferSize());
+		set(config, NetworkConfig.Keys.PREFERRED_BLOCK_SIZE, profile.getPreferredBlockSize());
+		set(config, NetworkConfig.Keys.MAX_MESSAGE_SIZE, profile.getMaxMessageSize());
+		set(config, NetworkConfig.Keys.EXCHANGE_LIFETIME, profile.getExchangeLifetime());
+		set(config, NetworkConfig.Keys.DEDUPLICATOR, profile.getDeduplicator());
+		set(config, NetworkConfig.Keys.TCP_CONNECTION_IDLE_TIMEOUT, profile.getTcpConnectionIdleTimeout());
+		set(config, NetworkConfig.Keys.DTLS_AUTO_RESUME_TIMEOUT, profile.getDtlsAutoResumeTimeout());
+		return config;
+	}
+
+	/**
+	 * Applies the DTLS connection limits, thread pools, socket buffers and Connection ID support of the active profile.
+	 */
+	public void applyDtls(DtlsConnectorConfig.Builder builder) {
+		TransportProfile profile = getActive();
+		if (profile.getDtlsMaxConnections() != null) {
+			builder.setMaxConnections(profile.getDtlsMaxConnections());
+		}
+		if (profile.getDtlsConnectionThreads() != null) {
+			builder.setConnectionThreadCount(threads(profile.getDtlsConnectionThreads()));
+		}
+		if (profile.getDtlsReceiverThreads() != null) {
+			builder.setReceiverThreadCount(threads(profile.getDtlsReceiverThreads()));
+		}
+		if (profile.getUdpReceiveBufferSize() != null) {
+			builder.setSocketReceiveBufferSize(profile.getUdpReceiveBufferSize());
+		}
+		if (profile.getUdpSendBufferSize() != null) {
+			builder.setSocketSendBufferSize(profile.getUdpSendBufferSize());
+		}
+		if (profile.getDtlsConnectionIdLength() != null) {
+			builder.setConnectionIdGenerator(new SingleNodeConnectionIdGenerator(profile.getDtlsConnectionIdLength()));
+		}
+	}
+
+	/**
+	 * @return the thread count with 0 replaced by the number of CPU cores
+	 */
+	public static Integer threads(Integer count) {
+		return (count != null && count == 0) ? Runtime.getRuntime().availableProcessors() : count;
+	}
+
+	/**
+	 * Copy of the configuration {@link NetworkConfig#getStandard()} provides: the Californium defaults overridden by
+	 * the Californium.properties file of the working directory. A copy, so the profile settings don't leak into the
+	 * shared standard instance used by the endpoints created without a configuration.
+	 */
+	private static NetworkConfig standardConfig() {
+		NetworkConfig config = new NetworkConfig();
+		File file = new File(STANDARD_CONFIG_FILE);
+		if (file.exists()) {
+			config.load(file);
+		}
+		return config;
+	}
+
+	private static void set(NetworkConfig config, String key, Object value) {
+		if (value != null) {
+			config.set(key, value);
+		}
+	}
+}
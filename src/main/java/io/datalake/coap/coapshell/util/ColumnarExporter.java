@@ -0,0 +1,332 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.TimeStampMilliTZVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.TimeUnit;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.Schema;
+
+import org.springframework.util.Assert;
+
+/**
+ * Writes tables to CSV or Apache Arrow IPC files in batches of rows. The values of a batch are buffered per column
+ * in primitive arrays and written when the batch is full, so the memory doesn't depend on the number of exported
+ * rows. Arrow files (the Feather V2 format) are read by pandas ({@code pandas.read_feather}), pyarrow and Spark.
+ *
+ * Usage: {@code setXxx(column, value)} for the columns of a row, then {@link #endRow()}. Unset columns are null.
+ *
+ * @author Christian Tzolov
+ */
+public abstract class ColumnarExporter implements Closeable {
+
+	public enum Format {
+		csv, arrow;
+
+		/**
+		 * @return the format of the file extension: .arrow, .feather and .ipc files are Arrow files, all others CSV
+		 */
+		public static Format of(File file) {
+			String name = file.getName().toLowerCase();
+			return (name.endsWith(".arrow") || name.endsWith(".feather") || name.endsWith(".ipc")) ? arrow : csv;
+		}
+	}
+
+	public enum Type {
+		STRING, LONG, DOUBLE, TIMESTAMP
+	}
+
+	public static class Column {
+		private final String name;
+		private final Type type;
+
+		public Column(String name, Type type) {
+			this.name = name;
+			this.type = type;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Type getType() {
+			return type;
+		}
+	}
+
+	protected final Column[] columns;
+	protected final int batchSize;
+	protected final String[][] strings;
+	protected final long[][] longs;
+	protected final double[][] doubles;
+	protected final boolean[][] set;
+	protected int rows;
+	private long written;
+
+	protected ColumnarExporter(List<Column> columns, int batchSize) {
+		Assert.isTrue(batchSize > 0, "The batch size must be positive");
+		this.columns = columns.toArray(new Column[0]);
+		this.batchSize = batchSize;
+		this.strings = new String[this.columns.length][];
+		this.longs = new long[this.columns.length][];
+		this.doubles = new double[this.columns.length][];
+		this.set = new boolean[this.columns.length][batchSize];
+		for (int i = 0; i < this.columns.length; i++) {
+			switch (this.columns[i].getType()) {
+			case STRING:
+				this.strings[i] = new String[batchSize];
+				break;
+			case DOUBLE:
+				this.doubles[i] = new double[batchSize];
+				break;
+			default:
+				this.longs[i] = new long[batchSize];
+			}
+		}
+	}
+
+	public static ColumnarExporter create(File file, Format format, List<Column> columns, int batchSize)
+			throws IOException {
+		return (format == Format.arrow) ? new ArrowExporter(file, columns, batchSize)
+				: new CsvExporter(file, columns, batchSize);
+	}
+
+	public ColumnarExporter setString(int column, String value) {
+		if (value != null) {
+			this.strings[column][this.rows] = value;
+			this.set[column][this.rows] = true;
+		}
+		return this;
+	}
+
+	public ColumnarExporter setLong(int column, long value) {
+		this.longs[column][this.rows] = value;
+		this.set[column][this.rows] = true;
+		return this;
+	}
+
+	public ColumnarExporter setDouble(int column, double value) {
+		if (!Double.isNaN(value)) {
+			this.doubles[column][this.rows] = value;
+			this.set[column][this.rows] = true;
+		}
+		return this;
+	}
+
+	/**
+	 * Completes the row. A full batch is written.
+	 */
+	public void endRow() throws IOException {
+		this.rows++;
+		if (this.rows == this.batchSize) {
+			flush();
+		}
+	}
+
+	/**
+	 * @return number of written rows
+	 */
+	public long getRows() {
+		return this.written + this.rows;
+	}
+
+	private void flush() throws IOException {
+		if (this.rows > 0) {
+			writeBatch();
+			this.written += this.rows;
+			this.rows = 0;
+			for (boolean[] columnSet : this.set) {
+				Arrays.fill(columnSet, false);
+			}
+			for (String[] columnStrings : this.strings) {
+				if (columnStrings != null) {
+					Arrays.fill(columnStrings, null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the first {@link #rows} buffered rows.
+	 */
+	protected abstract void writeBatch() throws IOException;
+
+	protected abstract void finish() throws IOException;
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		}
+		finally {
+			finish();
+		}
+	}
+
+	private static class CsvExporter extends ColumnarExporter {
+		private final Writer writer;
+
+		CsvExporter(File file, List<Column> columns, int batchSize) throws IOException {
+			super(columns, batchSize);
+			this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+			List<String> header = new ArrayList<>();
+			for (Column column : this.columns) {
+				header.add(escape(column.getName()));
+			}
+			this.writer.write(String.join(",", header));
+			this.writer.write("\n");
+		}
+
+		@Override
+		protected void writeBatch() throws IOException {
+			for (int row = 0; row < this.rows; row++) {
+				for (int column = 0; column < this.columns.length; column++) {
+					if (column > 0) {
+						this.writer.write(',');
+					}
+					if (this.set[column][row]) {
+						switch (this.columns[column].getType()) {
+						case STRING:
+							this.writer.write(escape(this.strings[column][row]));
+							break;
+						case DOUBLE:
+							this.writer.write(Double.toString(this.doubles[column][row]));
+							break;
+						case TIMESTAMP:
+							this.writer.write(Instant.ofEpochMilli(this.longs[column][row]).toString());
+							break;
+						default:
+							this.writer.write(Long.toString(this.longs[column][row]));
+						}
+					}
+				}
+				this.writer.write("\n");
+			}
+		}
+
+		private String escape(String value) {
+			if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+				return value;
+			}
+			return "\"" + value.replace("\"", "\"\"") + "\"";
+		}
+
+		@Override
+		protected void finish() throws IOException {
+			this.writer.close();
+		}
+	}
+
+	/**
+	 * Arrow IPC file writer, one record batch per row batch.
+	 */
+	private static class ArrowExporter extends ColumnarExporter {
+		private final BufferAllocator allocator;
+		private final VectorSchemaRoot root;
+		private final FileOutputStream out;
+		private final ArrowFileWriter writer;
+
+		ArrowExporter(File file, List<Column> columns, int batchSize) throws IOException {
+			super(columns, batchSize);
+			List<Field> fields = new ArrayList<>();
+			for (Column column : this.columns) {
+				fields.add(Field.nullable(column.getName(), arrowType(column.getType())));
+			}
+			this.allocator = new RootAllocator(Long.MAX_VALUE);
+			this.root = VectorSchemaRoot.create(new Schema(fields), this.allocator);
+			this.out = new FileOutputStream(file);
+			this.writer = new ArrowFileWriter(this.root, null, this.out.getChannel());
+			this.writer.start();
+		}
+
+		private static ArrowType arrowType(Type type) {
+			switch (type) {
+			case STRING:
+				return ArrowType.Utf8.INSTANCE;
+			case DOUBLE:
+				return new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE);
+			case TIMESTAMP:
+				return new ArrowType.Timestamp(TimeUnit.MILLISECOND, "UTC");
+			default:
+				return new ArrowType.Int(64, true);
+			}
+		}
+
+		@Override
+		protected void writeBatch() throws IOException {
+			this.root.allocateNew();
+			for (int column = 0; column < this.columns.length; column++) {
+				FieldVector vector = this.root.getVector(column);
+				for (int row = 0; row < this.rows; row++) {
+					if (!this.set[column][row]) {
+						continue; // the validity bits of the new batch are cleared
+					}
+					switch (this.columns[column].getType()) {
+					case STRING:
+						((VarCharVector) vector).setSafe(row, this.strings[column][row].getBytes(StandardCharsets.UTF_8));
+						break;
+					case DOUBLE:
+						((Float8Vector) vector).setSafe(row, this.doubles[column][row]);
+						break;
+					case TIMESTAMP:
+						((TimeStampMilliTZVector) vector).setSafe(row, this.longs[column][row]);
+						break;
+					default:
+						((BigIntVector) vector).setSafe(row, this.longs[column][row]);
+					}
+				}
+			}
+			this.root.setRowCount(this.rows);
+			this.writer.writeBatch();
+		}
+
+		@Override
+		protected void finish() throws IOException {
+			try {
+				this.writer.end();
+				this.writer.close();
+			}
+			finally {
+				this.root.close();
+				this.allocator.close();
+				this.out.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.PreDestroy;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.datalake.coap.coapshell.CoapShellProperties;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.Request;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Append-only log of the executed CoAP requests, enabled with coap.history-enabled. Every request is written as
+ * one JSON line with the request (method, path, options, payload size), the response code, payload hash, size and
+ * RTT. The request payload itself is only recorded with coap.history-payloads. The entries of one shell run share a
+ * session id and record their time offset from the session start, so a session can be replayed with the original
+ * timing.
+ *
+ * @author Christian Tzolov
+ */
+@Component
+public class CommandHistoryLog {
+
+	private final ObjectMapper mapper = new ObjectMapper()
+			.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+	private final String session = UUID.randomUUID().toString().substring(0, 8);
+	private final long sessionStart = System.currentTimeMillis();
+	private final CoapShellProperties properties;
+
+	private BufferedWriter writer;
+
+	@Autowired
+	public CommandHistoryLog(CoapShellProperties properties) {
+		this.properties = properties;
+	}
+
+	public String getSession() {
+		return session;
+	}
+
+	public File getFile() {
+		return new File(this.properties.getHistoryFile());
+	}
+
+	/**
+	 * Appends the request and its response to the log. Failures to write the log are reported but don't fail
+	 * the command.
+	 * @param baseUri - connected server URI
+	 * @param path - request path relative to the server URI
+	 * @param request - the sent request
+	 * @param response - the response or null if none was received
+	 */
+	public void record(String baseUri, String path, Request request, CoapResponse response) {
+		if (!this.properties.isHistoryEnabled()) {
+			return;
+		}
+		Entry entry = new Entry();
+		entry.setSession(this.session);
+		entry.setTimestamp(System.currentTimeMillis());
+		entry.setOffset(entry.getTimestamp() - this.sessionStart);
+		entry.setBaseUri(baseUri);
+		entry.setMethod(request.getCode().name());
+		entry.setPath(path);
+		entry.setConfirmable(request.isConfirmable());
+		entry.setContentFormat(request.getOptions().getContentFormat());
+		entry.setAccept(request.getOptions().getAccept());
+		entry.setPayloadSize(request.getPayloadSize());
+		if (request.getPayloadSize() > 0 && this.properties.isHistoryPayloads()) {
+			entry.setPayload(Base64.getEncoder().encodeToString(request.getPayload()));
+		}
+		if (response != null) {
+			entry.setCode(response.getCode().toString());
+			entry.setPayloadHash(PayloadCodec.sha256(response.getPayload()));
+			entry.setSize((response.getPayload() != null) ? response.getPayload().length : 0);
+			Long rtt = response.advanced().getRTT();
+			entry.setRtt((rtt != null) ? rtt : -1);
+		}
+		else {
+			entry.setCode("ERROR");
+			entry.setRtt(-1);
+		}
+		try {
+			append(entry);
+		}
+		catch (IOException e) {
+			System.err.println("Failed to write the command history: " + e.getMessage());
+		}
+	}
+
+	private synchronized void append(Entry entry) throws IOException {
+		if (this.writer == null) {
+			File file = getFile();
+			if (file.getParentFile() != null) {
+				file.getParentFile().mkdirs();
+			}
+			this.writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}
+		this.writer.write(this.mapper.writeValueAsString(entry));
+		this.writer.newLine();
+		this.writer.flush();
+	}
+
+	/**
+	 * @param file - history log file
+	 * @param session - session id, null for the last session in the file
+	 * @return the entries of the session in the recorded order
+	 */
+	public List<Entry> read(File file, String session) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		String selected = (session != null) ? session : lastSession(file);
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.trim().isEmpty()) {
+					Entry entry = this.mapper.readValue(line, Entry.class);
+					if (entry.getSession().equals(selected)) {
+						entries.add(entry);
+					}
+				}
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * @return number of entries per session, in the order of the log
+	 */
+	public Map<String, Integer> sessions(File file) throws IOException {
+		Map<String, Integer> sessions = new LinkedHashMap<>();
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.trim().isEmpty()) {
+					sessions.merge(this.mapper.readValue(line, Entry.class).getSession(), 1, Integer::sum);
+				}
+			}
+		}
+		return sessions;
+	}
+
+	private String lastSession(File file) throws IOException {
+		String last = null;
+		for (String session : sessions(file).keySet()) {
+			last = session;
+		}
+		return last;
+	}
+
+	@PreDestroy
+	public synchronized void close() throws IOException {
+		if (this.writer != null) {
+			this.writer.close();
+			this.writer = null;
+		}
+	}
+
+	public static class Entry {
+		private String session;
+		private long timestamp;
+		private long offset;
+		private String baseUri;
+		private String method;
+		private String path;
+		private boolean confirmable;
+		private int contentFormat;
+		private int accept;
+		private int payloadSize;
+		private String payload;
+		private String code;
+		private String payloadHash;
+		private int size;
+		private long rtt;
+
+		public String getSession() {
+			return session;
+		}
+
+		public void setSession(String session) {
+			this.session = session;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public void setTimestamp(long timestamp) {
+			this.timestamp = timestamp;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public void setOffset(long offset) {
+			this.offset = offset;
+		}
+
+		public String getBaseUri() {
+			return baseUri;
+		}
+
+		public void setBaseUri(String baseUri) {
+			this.baseUri = baseUri;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public void setMethod(String method) {
+			this.method = method;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public void setPath(String path) {
+			this.path = path;
+		}
+
+		public boolean isConfirmable() {
+			return confirmable;
+		}
+
+		public void setConfirmable(boolean confirmable) {
+			this.confirmable = confirmable;
+		}
+
+		public int getContentFormat() {
+			return contentFormat;
+		}
+
+		public void setContentFormat(int contentFormat) {
+			this.contentFormat = contentFormat;
+		}
+
+		public int getAccept() {
+			return accept;
+		}
+
+		public void setAccept(int accept) {
+			this.accept = accept;
+		}
+
+		/**
+		 * @return size of the request payload, also if the payload itself is not recorded
+		 */
+		public int getPayloadSize() {
+			return payloadSize;
+		}
+
+		public void setPayloadSize(int payloadSize) {
+			this.payloadSize = payloadSize;
+		}
+
+		/**
+		 * @return the Base64 request payload, null if there is none or it isn't recorded
+		 */
+		public String getPayload() {
+			return payload;
+		}
+
+		public void setPayload(String payload) {
+			this.payload = payload;
+		}
+
+		public String getCode() {
+			return code;
+		}
+
+		public void setCode(String code) {
+			this.code = code;
+		}
+
+		public String getPayloadHash() {
+			return payloadHash;
+		}
+
+		public void setPayloadHash(String payloadHash) {
+			this.payloadHash = payloadHash;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public void setSize(int size) {
+			this.size = size;
+		}
+
+		public long getRtt() {
+			return rtt;
+		}
+
+		public void setRtt(long rtt) {
+			this.rtt = rtt;
+		}
+	}
+}
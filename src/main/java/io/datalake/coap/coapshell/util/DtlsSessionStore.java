@@ -0,0 +1,630 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import javax.annotation.PreDestroy;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import io.datalake.coap.coapshell.CoapShellProperties;
+import org.eclipse.californium.elements.util.DatagramReader;
+import org.eclipse.californium.elements.util.DatagramWriter;
+import org.eclipse.californium.scandium.dtls.ClientSessionCache;
+import org.eclipse.californium.scandium.dtls.DTLSSession;
+import org.eclipse.californium.scandium.dtls.SessionId;
+import org.eclipse.californium.scandium.dtls.SessionTicket;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+/**
+ * Encrypted file of the established DTLS client sessions, keyed by the PSK identity and the peer address.
+ *
+ * The connectors created by {@link CoapDtlsSupport} restore a connection for every stored session of their identity,
+ * so the first request to a known peer after a restart starts an abbreviated handshake instead of a full one. A
+ * session the peer no longer knows falls back to a full handshake.
+ *
+ * The session tickets contain the master secrets, therefore the file is encrypted with AES-GCM and readable by the
+ * owner only. The key is derived from the configured password (PBKDF2) or, without a password, generated once and
+ * kept in a .key file next to the sessions. Sessions older than the stale connection threshold are dropped.
+ *
+ * The sessions in memory are authoritative, a handshake never waits for the disk. The changes are written behind
+ * them by a background writer, at most once a second and on shutdown. Several shell processes share the file: the
+ * changes are applied to the current file content under a file lock (.lock file) and written atomically, so the
+ * sessions stored by the other processes are kept.
+ *
+ * @author Christian Tzolov
+ */
+@Component
+public class DtlsSessionStore {
+
+	private static final int MAGIC = 0x43534453; // CSDS
+	private static final int VERSION = 1;
+	private static final int MAX_SESSIONS = 1000;
+	private static final int SALT_LENGTH = 16;
+	private static final int IV_LENGTH = 12;
+	private static final int PBKDF2_ITERATIONS = 65536;
+	private static final int KEY_LENGTH = 32;
+
+	private static final long WRITE_DELAY_MILLIS = 1000;
+
+	private final CoapShellProperties properties;
+	private final SecureRandom random = new SecureRandom();
+
+	/**
+	 * The sessions of this process. They are authoritative, the file is written behind them.
+	 */
+	private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+	/**
+	 * Changes of the entries not yet applied to the file, in the order they were made.
+	 */
+	private final List<Consumer<Map<String, Entry>>> pendingChanges = new ArrayList<>();
+
+	/**
+	 * Writes the file behind the handshakes, so a handshake never waits for the file lock or the disk.
+	 */
+	private final ScheduledExecutorService writer;
+
+	/**
+	 * Guards the file, the salt, the key and the unreadable state. Taken after the monitor of the store, never the
+	 * other way around.
+	 */
+	private final Object fileMonitor = new Object();
+
+	private boolean loaded;
+	private boolean writeScheduled;
+	private byte[] salt;
+	private SecretKey key;
+
+	/**
+	 * Set when the file couldn't be decrypted. The file is then neither used nor overwritten.
+	 */
+	private volatile String unreadable;
+
+	@Autowired
+	public DtlsSessionStore(CoapShellProperties properties) {
+		this.properties = properties;
+		this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "dtls-session-store");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public File getFile() {
+		return new File(this.properties.getDtlsSessionCacheFile());
+	}
+
+	/**
+	 * @param identity - PSK identity of the connector, null for certificate based connectors
+	 * @return session cache for a connector, backed by the stored sessions of the identity
+	 */
+	public ClientSessionCache cache(String identity) {
+		return new IdentityCache(StringUtils.hasText(identity) ? identity : "");
+	}
+
+	public synchronized List<Entry> getEntries() {
+		load();
+		return new ArrayList<>(this.entries.values());
+	}
+
+	/**
+	 * @return why the session file can't be used, null if it is readable or doesn't exist
+	 */
+	public synchronized String getUnreadable() {
+		load();
+		return this.unreadable;
+	}
+
+	/**
+	 * Removes all sessions, also an unreadable session file. The next connection to every peer starts with a full
+	 * handshake.
+	 * @return number of removed sessions
+	 */
+	public int clear() {
+		int removed;
+		synchronized (this) {
+			load();
+			removed = this.entries.size();
+			synchronized (this.fileMonitor) {
+				if (this.unreadable != null) {
+					try {
+						Files.deleteIfExists(getFile().toPath());
+					}
+					catch (IOException e) {
+						System.err.println("Failed to remove the DTLS session cache " + getFile() + ": " + e);
+					}
+					this.unreadable = null;
+				}
+			}
+			change(Map::clear);
+		}
+		flush();
+		return removed;
+	}
+
+	/**
+	 * Writes the pending changes before the shell exits.
+	 */
+	@PreDestroy
+	public void close() throws InterruptedException {
+		this.writer.shutdown();
+		flush();
+		this.writer.awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	private synchronized Entry get(String identity, InetSocketAddress peer) {
+		load();
+		return this.entries.get(key(identity, peer));
+	}
+
+	private synchronized List<InetSocketAddress> peers(String identity) {
+		load();
+		return this.entries.values().stream().filter(e -> e.getIdentity().equals(identity))
+				.map(Entry::getPeer).collect(Collectors.toList());
+	}
+
+	private synchronized Entry find(String identity, byte[] sessionId) {
+		load();
+		return find(this.entries, identity, sessionId);
+	}
+
+	private static Entry find(Map<String, Entry> entries, String identity, byte[] sessionId) {
+		for (Entry entry : entries.values()) {
+			if (entry.getIdentity().equals(identity) && Arrays.equals(entry.sessionId, sessionId)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private void put(Entry entry) {
+		change(current -> {
+			String entryKey = key(entry.getIdentity(), entry.getPeer());
+			// re-inserted to keep the map in the order of the last use
+			current.remove(entryKey);
+			current.put(entryKey, entry);
+			trim(current);
+		});
+	}
+
+	private void remove(String identity, byte[] sessionId) {
+		change(current -> {
+			Entry entry = find(current, identity, sessionId);
+			if (entry != null) {
+				current.remove(key(identity, entry.getPeer()));
+			}
+		});
+	}
+
+	private static void trim(Map<String, Entry> sessions) {
+		Iterator<Entry> oldest = sessions.values().iterator();
+		while (sessions.size() > MAX_SESSIONS) {
+			oldest.next();
+			oldest.remove();
+		}
+	}
+
+	private static String key(String identity, InetSocketAddress peer) {
+		return identity + " " + peer.getAddress().getHostAddress() + ":" + peer.getPort();
+	}
+
+	/**
+	 * Reads the file once. Must be called under the monitor of the store.
+	 */
+	private void load() {
+		if (this.loaded) {
+			return;
+		}
+		this.loaded = true;
+		synchronized (this.fileMonitor) {
+			try (FileLock lock = lock()) {
+				read(this.entries);
+			}
+			catch (IOException e) {
+				System.err.println("Failed to read the DTLS session cache " + getFile() + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Applies the change to the sessions in memory and schedules the write of the file.
+	 */
+	private synchronized void change(Consumer<Map<String, Entry>> change) {
+		load();
+		change.accept(this.entries);
+		this.pendingChanges.add(change);
+		if (!this.writeScheduled && !this.writer.isShutdown()) {
+			this.writeScheduled = true;
+			this.writer.schedule(this::flush, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Applies the pending changes to the sessions of the file, under the file lock, so the sessions stored by other
+	 * shell processes in the meantime are kept. The file is replaced atomically.
+	 */
+	private void flush() {
+		List<Consumer<Map<String, Entry>>> changes;
+		synchronized (this) {
+			this.writeScheduled = false;
+			if (this.pendingChanges.isEmpty()) {
+				return;
+			}
+			changes = new ArrayList<>(this.pendingChanges);
+			this.pendingChanges.clear();
+		}
+
+		Map<String, Entry> current = new LinkedHashMap<>();
+		synchronized (this.fileMonitor) {
+			try (FileLock lock = lock()) {
+				if (!read(current)) {
+					return;
+				}
+				changes.forEach(change -> change.accept(current));
+				write(current);
+			}
+			catch (IOException | GeneralSecurityException e) {
+				System.err.println("Failed to write the DTLS session cache " + getFile() + ": " + e);
+				return;
+			}
+		}
+
+		synchronized (this) {
+			// the sessions of the other shell processes become resumable here as well, the changes made during the
+			// write are applied again so a removed session isn't taken back from the file
+			current.forEach(this.entries::putIfAbsent);
+			this.pendingChanges.forEach(change -> change.accept(this.entries));
+			trim(this.entries);
+		}
+	}
+
+	/**
+	 * Locks the session and key files against the other shell processes. Closing the lock closes its channel.
+	 */
+	private FileLock lock() throws IOException {
+		Path lockFile = new File(getFile().getPath() + ".lock").toPath();
+		Path parent = lockFile.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			return channel.lock();
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Replaces the sessions with the ones of the file. Must be called under the file lock.
+	 * @return false if the file can't be decrypted, the sessions are then unchanged
+	 */
+	private boolean read(Map<String, Entry> sessions) throws IOException {
+		File file = getFile();
+		if (!file.exists()) {
+			this.unreadable = null;
+			return true;
+		}
+		byte[] fileSalt = new byte[SALT_LENGTH];
+		byte[] iv = new byte[IV_LENGTH];
+		byte[] encrypted;
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())))) {
+			if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+				throw new IOException("unknown file format");
+			}
+			in.readFully(fileSalt);
+			in.readFully(iv);
+			encrypted = new byte[in.readInt()];
+			in.readFully(encrypted);
+		}
+
+		byte[] plain;
+		try {
+			SecretKey fileKey = Arrays.equals(fileSalt, this.salt) ? this.key : deriveKey(fileSalt);
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.DECRYPT_MODE, fileKey, new GCMParameterSpec(128, iv));
+			plain = cipher.doFinal(encrypted);
+			this.salt = fileSalt;
+			this.key = fileKey;
+		}
+		catch (GeneralSecurityException e) {
+			if (this.unreadable == null) {
+				this.unreadable = "can't be decrypted, the coap.dtls-session-cache-password or the .key file changed ("
+						+ e + ")";
+				System.err.println("The DTLS session cache " + file + " " + this.unreadable + ". Its sessions are not "
+						+ "resumed and the file is kept, run `dtls sessions clear` to start a new cache.");
+			}
+			return false;
+		}
+		this.unreadable = null;
+		sessions.clear();
+		readEntries(plain, sessions);
+		return true;
+	}
+
+	private void readEntries(byte[] plain, Map<String, Entry> sessions) throws IOException {
+		long expired = System.currentTimeMillis() - this.properties.getStaleConnectionThreshold() * 1000L;
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain))) {
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String identity = in.readUTF();
+				InetAddress address = InetAddress.getByAddress(readBytes(in));
+				InetSocketAddress peer = new InetSocketAddress(address, in.readUnsignedShort());
+				long time = in.readLong();
+				byte[] sessionId = readBytes(in);
+				byte[] ticket = readBytes(in);
+				if (time > expired) {
+					sessions.put(key(identity, peer), new Entry(identity, peer, time, sessionId, ticket));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the sessions. Must be called under the file lock.
+	 */
+	private void write(Map<String, Entry> sessions) throws IOException, GeneralSecurityException {
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(plain)) {
+			out.writeInt(sessions.size());
+			for (Entry entry : sessions.values()) {
+				out.writeUTF(entry.getIdentity());
+				writeBytes(out, entry.getPeer().getAddress().getAddress());
+				out.writeShort(entry.getPeer().getPort());
+				out.writeLong(entry.getTime());
+				writeBytes(out, entry.sessionId);
+				writeBytes(out, entry.ticket);
+			}
+		}
+
+		if (this.key == null) {
+			this.salt = new byte[SALT_LENGTH];
+			this.random.nextBytes(this.salt);
+			this.key = deriveKey(this.salt);
+		}
+		byte[] iv = new byte[IV_LENGTH];
+		this.random.nextBytes(iv);
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(128, iv));
+		byte[] encrypted = cipher.doFinal(plain.toByteArray());
+
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(content)) {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.write(this.salt);
+			out.write(iv);
+			out.writeInt(encrypted.length);
+			out.write(encrypted);
+		}
+		writePrivate(getFile().toPath(), content.toByteArray());
+	}
+
+	/**
+	 * Derives the key from the password, or reads the key file. A missing key file is created exclusively, a
+	 * concurrently starting shell process reads the key created by the other one.
+	 */
+	private SecretKey deriveKey(byte[] keySalt) throws IOException, GeneralSecurityException {
+		String password = this.properties.getDtlsSessionCachePassword();
+		if (StringUtils.hasText(password)) {
+			SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+			byte[] derived = factory.generateSecret(
+					new PBEKeySpec(password.toCharArray(), keySalt, PBKDF2_ITERATIONS, 256)).getEncoded();
+			return new SecretKeySpec(derived, "AES");
+		}
+		Path keyFile = new File(getFile().getPath() + ".key").toPath();
+		if (!Files.exists(keyFile)) {
+			byte[] generated = new byte[KEY_LENGTH];
+			this.random.nextBytes(generated);
+			try {
+				createPrivate(keyFile, generated);
+			}
+			catch (FileAlreadyExistsException e) {
+				// created by another shell process
+			}
+		}
+		byte[] keyBytes = Files.readAllBytes(keyFile);
+		if (keyBytes.length != KEY_LENGTH) {
+			throw new IOException("Invalid DTLS session cache key file " + keyFile);
+		}
+		return new SecretKeySpec(keyBytes, "AES");
+	}
+
+	/**
+	 * Writes the file with owner only permissions through a temporary file, so a crash doesn't leave a partial file.
+	 */
+	private static void writePrivate(Path path, byte[] content) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.deleteIfExists(tmp);
+		createPrivate(tmp, content);
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Creates a new file with owner only permissions.
+	 * @throws FileAlreadyExistsException if the file exists
+	 */
+	private static void createPrivate(Path path, byte[] content) throws IOException {
+		Path parent = path.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		Set<OpenOption> options = EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		SeekableByteChannel channel;
+		try {
+			channel = Files.newByteChannel(path, options,
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}
+		catch (UnsupportedOperationException e) {
+			channel = Files.newByteChannel(path, options); // no POSIX file system
+		}
+		try (SeekableByteChannel out = channel) {
+			ByteBuffer buffer = ByteBuffer.wrap(content);
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readUnsignedShort()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	public static class Entry {
+		private final String identity;
+		private final InetSocketAddress peer;
+		private final long time;
+		private final byte[] sessionId;
+		private final byte[] ticket;
+
+		Entry(String identity, InetSocketAddress peer, long time, byte[] sessionId, byte[] ticket) {
+			this.identity = identity;
+			this.peer = peer;
+			this.time = time;
+			this.sessionId = sessionId;
+			this.ticket = ticket;
+		}
+
+		/**
+		 * @return PSK identity, empty for certificate based sessions
+		 */
+		public String getIdentity() {
+			return identity;
+		}
+
+		public InetSocketAddress getPeer() {
+			return peer;
+		}
+
+		/**
+		 * @return time the session was established [ms]
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		public String getSessionId() {
+			return PayloadCodec.toHex(sessionId);
+		}
+
+		SessionTicket ticket() {
+			return SessionTicket.decode(new DatagramReader(this.ticket));
+		}
+	}
+
+	/**
+	 * The sessions of one identity, as seen by a connector.
+	 */
+	private class IdentityCache implements ClientSessionCache {
+		private final String identity;
+
+		IdentityCache(String identity) {
+			this.identity = identity;
+		}
+
+		@Override
+		public Iterator<InetSocketAddress> iterator() {
+			return peers(this.identity).iterator();
+		}
+
+		@Override
+		public SessionTicket getSessionTicket(InetSocketAddress peer) {
+			Entry entry = DtlsSessionStore.this.get(this.identity, peer);
+			return (entry != null) ? entry.ticket() : null;
+		}
+
+		@Override
+		public SessionId getSessionIdentity(InetSocketAddress peer) {
+			Entry entry = DtlsSessionStore.this.get(this.identity, peer);
+			return (entry != null) ? new SessionId(entry.sessionId) : null;
+		}
+
+		@Override
+		public void put(DTLSSession session) {
+			SessionTicket ticket = session.getSessionTicket();
+			SessionId sessionId = session.getSessionIdentifier();
+			if (ticket == null || session.getPeer() == null || sessionId == null || sessionId.isEmpty()) {
+				return; // sessions without id can't be resumed
+			}
+			DatagramWriter writer = new DatagramWriter();
+			ticket.encode(writer);
+			DtlsSessionStore.this.put(new Entry(this.identity, session.getPeer(), System.currentTimeMillis(),
+					sessionId.getBytes(), writer.toByteArray()));
+		}
+
+		@Override
+		public SessionTicket get(SessionId id) {
+			Entry entry = find(this.identity, id.getBytes());
+			return (entry != null) ? entry.ticket() : null;
+		}
+
+		@Override
+		public void remove(SessionId id) {
+			DtlsSessionStore.this.remove(this.identity, id.getBytes());
+		}
+	}
+}
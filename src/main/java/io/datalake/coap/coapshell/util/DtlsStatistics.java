@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.californium.scandium.dtls.ConnectionId;
+import org.eclipse.californium.scandium.dtls.DTLSSession;
+import org.eclipse.californium.scandium.dtls.Handshaker;
+import org.eclipse.californium.scandium.dtls.ResumingClientHandshaker;
+import org.eclipse.californium.scandium.dtls.SessionAdapter;
+import org.eclipse.californium.scandium.dtls.SessionListener;
+
+/**
+ * Handshake counters of the shell DTLS connectors created by {@link CoapDtlsSupport}. The bench connectors are not
+ * counted, their handshakes would hide the ones of the interactive connections.
+ *
+ * Scandium 2.6 implements the Connection ID extension of draft-ietf-tls-dtls-connection-id (code point 53), not the
+ * final RFC 9146 one (code point 54), so only servers that still accept the draft extension negotiate a CID.
+ * A session with a Connection ID carries the peer's CID in every record, so the peer keeps the session
+ * when the NAT in front of the shell maps it to a new address or port. The rebinding itself is only visible to the
+ * peer: on the shell side an absorbed address change is a request that completes without a new handshake.
+ *
+ * @author Christian Tzolov
+ */
+public class DtlsStatistics {
+
+	private final AtomicLong fullHandshakes = new AtomicLong();
+	private final AtomicLong resumptions = new AtomicLong();
+	private final AtomicLong failedHandshakes = new AtomicLong();
+	private final AtomicLong retransmittedFlights = new AtomicLong();
+	private final AtomicLong connectionIdSessions = new AtomicLong();
+
+	/**
+	 * @return listener that counts the outcome of the handshake
+	 */
+	SessionListener sessionListener(Handshaker handshaker) {
+		final boolean resumption = handshaker instanceof ResumingClientHandshaker;
+		return new SessionAdapter() {
+
+			@Override
+			public void sessionEstablished(Handshaker handshaker, DTLSSession establishedSession) {
+				(resumption ? resumptions : fullHandshakes).incrementAndGet();
+				ConnectionId connectionId = establishedSession.getWriteConnectionId();
+				if (connectionId != null && !connectionId.isEmpty()) {
+					connectionIdSessions.incrementAndGet();
+				}
+			}
+
+			@Override
+			public void handshakeFailed(Handshaker handshaker, Throwable error) {
+				failedHandshakes.incrementAndGet();
+			}
+
+			@Override
+			public void handshakeFlightRetransmitted(Handshaker handshaker, int flight) {
+				retransmittedFlights.incrementAndGet();
+			}
+		};
+	}
+
+	public void reset() {
+		this.fullHandshakes.set(0);
+		this.resumptions.set(0);
+		this.failedHandshakes.set(0);
+		this.retransmittedFlights.set(0);
+		this.connectionIdSessions.set(0);
+	}
+
+	public long getFullHandshakes() {
+		return fullHandshakes.get();
+	}
+
+	/**
+	 * @return abbreviated handshakes resuming an earlier session
+	 */
+	public long getResumptions() {
+		return resumptions.get();
+	}
+
+	public long getFailedHandshakes() {
+		return failedHandshakes.get();
+	}
+
+	public long getRetransmittedFlights() {
+		return retransmittedFlights.get();
+	}
+
+	/**
+	 * @return established sessions in which the peer assigned a Connection ID
+	 */
+	public long getConnectionIdSessions() {
+		return connectionIdSessions.get();
+	}
+}
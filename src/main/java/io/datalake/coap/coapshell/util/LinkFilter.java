@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.util.List;
+
+import org.eclipse.californium.core.WebLink;
+
+import org.springframework.util.StringUtils;
+
+/**
+ * Client side evaluation of the https://tools.ietf.org/html/rfc6690#section-4.1[link-format query filter]
+ * ({@code attr=value}, {@code attr=prefix*} or just {@code attr}). The same filter is sent to the server as
+ * discovery query, but not all servers implement the filtering, so the returned links are checked again.
+ *
+ * @author Christian Tzolov
+ */
+public class LinkFilter {
+
+	private final String name;
+	private final String value;
+	private final boolean prefix;
+
+	public LinkFilter(String filter) {
+		int eq = filter.indexOf('=');
+		this.name = (eq < 0) ? filter.trim() : filter.substring(0, eq).trim();
+		String v = (eq < 0) ? null : filter.substring(eq + 1).trim();
+		this.prefix = v != null && v.endsWith("*");
+		this.value = this.prefix ? v.substring(0, v.length() - 1) : v;
+	}
+
+	public boolean matches(WebLink link) {
+		if (this.name.equals("href")) {
+			return this.value == null || matches(link.getURI());
+		}
+		if (!link.getAttributes().containsAttribute(this.name)) {
+			return false;
+		}
+		if (this.value == null) {
+			return true;
+		}
+		List<String> values = link.getAttributes().getAttributeValues(this.name);
+		for (String v : values) {
+			// space separated attribute values (e.g. rt="a b") match individually
+			for (String token : StringUtils.delimitedListToStringArray(v, " ")) {
+				if (matches(token)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean matches(String candidate) {
+		return this.prefix ? candidate.startsWith(this.value) : candidate.equals(this.value);
+	}
+
+	public String toQuery() {
+		return (this.value == null) ? this.name : this.name + "=" + this.value + (this.prefix ? "*" : "");
+	}
+}
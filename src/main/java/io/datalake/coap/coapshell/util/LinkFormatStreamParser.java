@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Predicate;
+
+import org.eclipse.californium.core.WebLink;
+import org.eclipse.californium.core.coap.LinkFormat;
+
+/**
+ * Incremental https://tools.ietf.org/html/rfc6690[link-format] parser. The document is fed in arbitrary chunks
+ * (e.g. Block2 payloads) and every link is emitted as soon as its closing separator is seen, so only the current
+ * chunk and the incomplete last link are kept in memory.
+ *
+ * The link separators and the quotes are ASCII, so the document is split on the raw bytes and UTF-8 sequences
+ * broken across chunks are decoded only once the link is complete.
+ *
+ * @author Christian Tzolov
+ */
+public class LinkFormatStreamParser {
+
+	private final Predicate<WebLink> consumer;
+	private final ByteArrayOutputStream link = new ByteArrayOutputStream(256);
+
+	private boolean inUri;
+	private boolean inQuotes;
+	private boolean stopped;
+	private int count;
+
+	/**
+	 * @param consumer - receives the parsed links, returns false to stop the parsing
+	 */
+	public LinkFormatStreamParser(Predicate<WebLink> consumer) {
+		this.consumer = consumer;
+	}
+
+	/**
+	 * @param chunk - next part of the link-format document
+	 * @return false if the consumer has stopped the parsing
+	 */
+	public boolean feed(byte[] chunk) {
+		if (chunk == null) {
+			return !this.stopped;
+		}
+		int start = 0;
+		for (int i = 0; i < chunk.length && !this.stopped; i++) {
+			byte b = chunk[i];
+			if (this.inQuotes) {
+				this.inQuotes = b != '"';
+			}
+			else if (this.inUri) {
+				this.inUri = b != '>';
+			}
+			else if (b == '"') {
+				this.inQuotes = true;
+			}
+			else if (b == '<') {
+				this.inUri = true;
+			}
+			else if (b == ',') {
+				this.link.write(chunk, start, i - start);
+				emit();
+				start = i + 1;
+			}
+		}
+		if (!this.stopped) {
+			this.link.write(chunk, start, chunk.length - start);
+		}
+		return !this.stopped;
+	}
+
+	/**
+	 * Emits the last link of the document.
+	 * @return number of emitted links
+	 */
+	public int finish() {
+		if (!this.stopped) {
+			emit();
+		}
+		return this.count;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	private void emit() {
+		String text = new String(this.link.toByteArray(), StandardCharsets.UTF_8).trim();
+		this.link.reset();
+		if (text.isEmpty()) {
+			return;
+		}
+		for (WebLink webLink : LinkFormat.parse(text)) {
+			this.count++;
+			if (!this.consumer.test(webLink)) {
+				this.stopped = true;
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+
+/**
+ * Watches an observe relation and recovers it when the notifications stop.
+ *
+ * A relation is considered stale when no notification arrives within the Max-Age of the last notification (plus a
+ * grace period), within the optional max gap, or when the observe request fails. Stale relations are first
+ * re-registered. If re-registering doesn't help after {@code maxReregistrations} attempts the endpoint is
+ * rebuilt (e.g. new DTLS session) and the resource is observed again. The attempts are spaced with an exponential
+ * backoff with jitter.
+ *
+ * After an attempt the relation stays {@code recovering} until a notification arrives. An attempt that fails, or
+ * that isn't followed by a notification within the Max-Age (or max gap), counts as failed and the next one follows.
+ *
+ * @author Christian Tzolov
+ */
+public class ObserveHealthMonitor implements CoapHandler {
+
+	public enum State {healthy, stale, recovering}
+
+	private static final long GRACE_PERIOD_MS = 2000;
+	private static final long BASE_BACKOFF_MS = 1000;
+	private static final long MAX_BACKOFF_MS = 60000;
+
+	private final CoapHandler delegate;
+	private final long maxGapMillis;
+	private final boolean recovery;
+	private final int maxReregistrations;
+	private final Consumer<ObserveHealthMonitor> reregister;
+	private final Consumer<ObserveHealthMonitor> reconnect;
+	private final ScheduledExecutorService executor;
+
+	private volatile State state = State.healthy;
+	private volatile long lastNotification = System.currentTimeMillis();
+	private volatile long lastActivity = System.currentTimeMillis();
+	private volatile long maxAgeMillis = OptionNumberRegistry.Defaults.MAX_AGE * 1000;
+	private final AtomicInteger attempt = new AtomicInteger();
+	private final AtomicInteger failures = new AtomicInteger();
+	private final AtomicLong reregistrations = new AtomicLong();
+	private final AtomicLong reconnects = new AtomicLong();
+
+	/**
+	 * @param delegate - handler to forward the notifications to
+	 * @param maxGapMillis - max time between notifications, 0 to rely on the Max-Age only
+	 * @param recovery - if false stale relations are only reported
+	 * @param maxReregistrations - failed re-registrations before the endpoint is rebuilt
+	 * @param reregister - re-registers the observe relation of the monitor, called with this monitor
+	 * @param reconnect - rebuilds the endpoint and observes the resource again, called with this monitor
+	 */
+	public ObserveHealthMonitor(CoapHandler delegate, long maxGapMillis, boolean recovery, int maxReregistrations,
+			Consumer<ObserveHealthMonitor> reregister, Consumer<ObserveHealthMonitor> reconnect) {
+		this.delegate = delegate;
+		this.maxGapMillis = maxGapMillis;
+		this.recovery = recovery;
+		this.maxReregistrations = maxReregistrations;
+		this.reregister = reregister;
+		this.reconnect = reconnect;
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "observe-health");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.executor.scheduleWithFixedDelay(this::check, 1, 1, TimeUnit.SECONDS);
+	}
+
+	@Override
+	public void onLoad(CoapResponse response) {
+		this.lastNotification = System.currentTimeMillis();
+		this.lastActivity = this.lastNotification;
+		Long maxAge = response.getOptions().getMaxAge();
+		this.maxAgeMillis = TimeUnit.SECONDS.toMillis((maxAge != null) ? maxAge : OptionNumberRegistry.Defaults.MAX_AGE);
+		this.attempt.set(0);
+		this.failures.set(0);
+		this.state = State.healthy;
+		this.delegate.onLoad(response);
+	}
+
+	@Override
+	public void onError() {
+		this.delegate.onError();
+		markStale();
+	}
+
+	/**
+	 * Detects the silence of a healthy relation and of a relation that didn't deliver after a recovery attempt.
+	 */
+	private void check() {
+		if (this.state == State.stale) {
+			return; // recovery already scheduled
+		}
+		long silence = System.currentTimeMillis() - this.lastActivity;
+		if (silence > this.maxAgeMillis + GRACE_PERIOD_MS || (this.maxGapMillis > 0 && silence > this.maxGapMillis)) {
+			markStale();
+		}
+	}
+
+	private synchronized void markStale() {
+		if (this.state != State.stale) {
+			if (this.state == State.recovering) {
+				this.failures.incrementAndGet();
+			}
+			this.state = State.stale;
+			scheduleRecovery();
+		}
+	}
+
+	private void scheduleRecovery() {
+		if (!this.recovery) {
+			return;
+		}
+		int n = this.failures.get();
+		long backoff = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(n, 16));
+		// equal jitter: half of the backoff is fixed, the other half is random
+		long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+		this.executor.schedule(this::recover, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void recover() {
+		synchronized (this) {
+			if (this.state != State.stale) {
+				return; // a notification arrived in the meantime
+			}
+			// give the new registration one Max-Age (or max gap) to deliver before the next attempt
+			this.lastActivity = System.currentTimeMillis();
+			this.state = State.recovering;
+		}
+		int n = this.attempt.incrementAndGet();
+		try {
+			if (n <= this.maxReregistrations) {
+				this.reregistrations.incrementAndGet();
+				this.reregister.accept(this);
+			}
+			else {
+				this.reconnects.incrementAndGet();
+				this.attempt.set(0);
+				this.reconnect.accept(this);
+			}
+		}
+		catch (RuntimeException e) {
+			markStale();
+		}
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public String stats() {
+		return String.format("state: %s, last notification: %ds ago, max-age: %ds, re-registrations: %d, reconnects: %d, failed recoveries: %d",
+				this.state, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - this.lastNotification),
+				TimeUnit.MILLISECONDS.toSeconds(this.maxAgeMillis), this.reregistrations.get(), this.reconnects.get(),
+				this.failures.get());
+	}
+
+	public void close() {
+		this.executor.shutdownNow();
+	}
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+
+/**
+ * Encodes JSON command line payloads into the CoAP wire formats (JSON, CBOR, SenML JSON/CBOR) and decodes
+ * the binary ones back into readable JSON.
+ *
+ * SenML CBOR uses the integer labels defined in RFC 8428 (section 6), so it can't be a plain JSON to CBOR
+ * conversion.
+ *
+ * @author Christian Tzolov
+ */
+public class PayloadCodec {
+
+	/**
+	 * RFC 8132 patch formats, not all Californium versions register them in the {@link MediaTypeRegistry}.
+	 */
+	public static final int APPLICATION_JSON_PATCH_JSON = 51;
+	public static final int APPLICATION_MERGE_PATCH_JSON = 52;
+
+	private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+	private static final ObjectMapper CBOR_MAPPER = new ObjectMapper(new CBORFactory());
+
+	private static final Map<String, Integer> SENML_LABELS = new HashMap<>();
+	private static final Map<Integer, String> SENML_NAMES = new HashMap<>();
+
+	static {
+		senmlLabel("bver", -1);
+		senmlLabel("bn", -2);
+		senmlLabel("bt", -3);
+		senmlLabel("bu", -4);
+		senmlLabel("bv", -5);
+		senmlLabel("bs", -6);
+		senmlLabel("n", 0);
+		senmlLabel("u", 1);
+		senmlLabel("v", 2);
+		senmlLabel("vs", 3);
+		senmlLabel("vb", 4);
+		senmlLabel("s", 5);
+		senmlLabel("t", 6);
+		senmlLabel("ut", 7);
+		senmlLabel("vd", 8);
+	}
+
+	private static void senmlLabel(String name, int label) {
+		SENML_LABELS.put(name, label);
+		SENML_NAMES.put(label, name);
+	}
+
+	public static boolean isCbor(int contentFormat) {
+		return contentFormat == MediaTypeRegistry.APPLICATION_CBOR
+				|| contentFormat == MediaTypeRegistry.APPLICATION_SENML_CBOR;
+	}
+
+	public static boolean isJson(int contentFormat) {
+		return contentFormat == MediaTypeRegistry.APPLICATION_JSON
+				|| contentFormat == MediaTypeRegistry.APPLICATION_SENML_JSON
+				|| contentFormat == APPLICATION_JSON_PATCH_JSON
+				|| contentFormat == APPLICATION_MERGE_PATCH_JSON;
+	}
+
+	/**
+	 * Resolves a content format name or number, including the RFC 8132 patch formats.
+	 * @return the CoAP content format or {@link MediaTypeRegistry#UNDEFINED}
+	 */
+	public static int contentFormat(String contentType) {
+		try {
+			return Integer.parseInt(contentType.trim());
+		}
+		catch (NumberFormatException nfe) {
+			if ("application/json-patch+json".equalsIgnoreCase(contentType.trim())) {
+				return APPLICATION_JSON_PATCH_JSON;
+			}
+			else if ("application/merge-patch+json".equalsIgnoreCase(contentType.trim())) {
+				return APPLICATION_MERGE_PATCH_JSON;
+			}
+			return MediaTypeRegistry.parse(contentType.trim());
+		}
+	}
+
+	public static boolean isSenml(int contentFormat) {
+		return contentFormat == MediaTypeRegistry.APPLICATION_SENML_JSON
+				|| contentFormat == MediaTypeRegistry.APPLICATION_SENML_CBOR;
+	}
+
+	/**
+	 * Converts the command line payload into the bytes sent on the wire for the given content format.
+	 * CBOR based formats expect the payload to be JSON text. All other formats are sent as UTF-8 text.
+	 * @param payload - payload text as provided on the command line
+	 * @param contentFormat - CoAP content format of the request payload
+	 * @return the encoded payload
+	 * @throws IOException if the payload is not valid JSON for a JSON/CBOR content format
+	 */
+	public static byte[] encode(String payload, int contentFormat) throws IOException {
+		if (!isCbor(contentFormat) && !isSenml(contentFormat)) {
+			return payload.getBytes(StandardCharsets.UTF_8);
+		}
+
+		JsonNode json = JSON_MAPPER.readTree(payload);
+		if (isSenml(contentFormat) && !json.isArray()) {
+			throw new IOException("SenML payload must be a JSON array of records");
+		}
+
+		if (contentFormat == MediaTypeRegistry.APPLICATION_SENML_CBOR) {
+			return encodeSenmlCbor((ArrayNode) json);
+		}
+		else if (contentFormat == MediaTypeRegistry.APPLICATION_CBOR) {
+			return CBOR_MAPPER.writeValueAsBytes(json);
+		}
+		return JSON_MAPPER.writeValueAsBytes(json);
+	}
+
+	/**
+	 * Converts CBOR, SenML CBOR and JSON payloads into a pretty printed JSON text.
+	 * @param payload - raw payload bytes
+	 * @param contentFormat - CoAP content format of the payload
+	 * @return pretty JSON text or null if the payload can not be decoded
+	 */
+	public static String decode(byte[] payload, int contentFormat) {
+		JsonNode json = toJson(payload, contentFormat);
+		if (json == null) {
+			return null;
+		}
+		try {
+			return JSON_MAPPER.writerWithDefaultPrettyPrinter().writeValueAsString(json);
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the JSON tree of CBOR, SenML CBOR and JSON payloads, null for other formats or invalid payloads
+	 */
+	public static JsonNode toJson(byte[] payload, int contentFormat) {
+		try {
+			if (contentFormat == MediaTypeRegistry.APPLICATION_SENML_CBOR) {
+				return decodeSenmlCbor(CBOR_MAPPER.readTree(payload));
+			}
+			else if (isCbor(contentFormat)) {
+				return CBOR_MAPPER.readTree(payload);
+			}
+			else if (isJson(contentFormat)) {
+				return JSON_MAPPER.readTree(payload);
+			}
+			return null;
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Lists the changes between two payloads of the same content format. JSON and CBOR payloads are compared field
+	 * by field ("/a/0/b: 1 -> 2"), other payloads as a whole.
+	 * @return one line per change, empty if the payloads are equal
+	 */
+	public static List<String> diff(byte[] before, byte[] after, int contentFormat) {
+		List<String> changes = new ArrayList<>();
+		JsonNode beforeJson = (before != null) ? toJson(before, contentFormat) : null;
+		JsonNode afterJson = (after != null) ? toJson(after, contentFormat) : null;
+		if (beforeJson != null && afterJson != null) {
+			Map<String, String> beforeFields = new LinkedHashMap<>();
+			Map<String, String> afterFields = new LinkedHashMap<>();
+			flatten("", beforeJson, beforeFields);
+			flatten("", afterJson, afterFields);
+			for (Map.Entry<String, String> field : afterFields.entrySet()) {
+				String previous = beforeFields.get(field.getKey());
+				if (!field.getValue().equals(previous)) {
+					changes.add(field.getKey() + ": " + ((previous != null) ? previous : "(none)") + " -> " + field.getValue());
+				}
+			}
+			for (String removed : beforeFields.keySet()) {
+				if (!afterFields.containsKey(removed)) {
+					changes.add(removed + ": " + beforeFields.get(removed) + " -> (none)");
+				}
+			}
+		}
+		else if (!Arrays.equals(before, after)) {
+			changes.add(text(before, contentFormat) + " -> " + text(after, contentFormat));
+		}
+		return changes;
+	}
+
+	/**
+	 * Extracts the numeric values of a payload, keyed by series name: the resolved record names (base name +
+	 * name) of SenML payloads, the JSON pointers of the numeric JSON and CBOR fields and "value" for a number
+	 * in plain text.
+	 * @param pointer - JSON pointer of the only field to extract (e.g. "/temp"), null for all numeric fields
+	 * @return the values in payload order, empty if the payload has no numeric values
+	 */
+	public static Map<String, Double> numericValues(byte[] payload, int contentFormat, String pointer) {
+		Map<String, Double> values = new LinkedHashMap<>();
+		JsonNode json = toJson(payload, contentFormat);
+		if (json == null) {
+			if (contentFormat == MediaTypeRegistry.UNDEFINED || MediaTypeRegistry.isPrintable(contentFormat)) {
+				try {
+					values.put("value", Double.parseDouble(new String(payload, StandardCharsets.UTF_8).trim()));
+				}
+				catch (NumberFormatException e) {
+					// not a number
+				}
+			}
+			return values;
+		}
+		if (isSenml(contentFormat) && json.isArray()) {
+			String baseName = "";
+			double baseValue = 0;
+			for (JsonNode record : json) {
+				baseName = record.path("bn").asText(baseName);
+				baseValue = record.path("bv").asDouble(baseValue);
+				JsonNode value = record.get("v");
+				if (value != null && value.isNumber()) {
+					values.put(baseName + record.path("n").asText(""), baseValue + value.asDouble());
+				}
+			}
+			return values;
+		}
+		if (pointer != null) {
+			JsonNode value = json.at(pointer);
+			if (value.isNumber()) {
+				values.put(pointer, value.asDouble());
+			}
+			return values;
+		}
+		Map<String, String> fields = new LinkedHashMap<>();
+		flatten("", json, fields);
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			JsonNode value = json.at(field.getKey().equals("/") ? "" : field.getKey());
+			if (value.isNumber()) {
+				values.put(field.getKey(), value.asDouble());
+			}
+		}
+		return values;
+	}
+
+	private static void flatten(String path, JsonNode node, Map<String, String> fields) {
+		if (node.isObject()) {
+			node.fields().forEachRemaining(field -> flatten(path + "/" + field.getKey(), field.getValue(), fields));
+		}
+		else if (node.isArray()) {
+			for (int i = 0; i < node.size(); i++) {
+				flatten(path + "/" + i, node.get(i), fields);
+			}
+		}
+		else {
+			fields.put(path.isEmpty() ? "/" : path, node.toString());
+		}
+	}
+
+	private static String text(byte[] payload, int contentFormat) {
+		if (payload == null) {
+			return "(none)";
+		}
+		String text = (contentFormat == MediaTypeRegistry.UNDEFINED || MediaTypeRegistry.isPrintable(contentFormat)) ?
+				new String(payload, StandardCharsets.UTF_8) : "0x" + toHex(payload);
+		return (text.length() > 80) ? text.substring(0, 77) + "..." : text;
+	}
+
+	/**
+	 * Parses a hex string into bytes. Whitespaces, ':' and '-' separators and a leading "0x" are ignored.
+	 * @param hex - hex encoded payload
+	 * @return decoded bytes
+	 */
+	public static byte[] fromHex(String hex) {
+		String digits = hex.trim().replaceFirst("^0[xX]", "").replaceAll("[\\s:-]", "");
+		if (digits.length() % 2 != 0) {
+			throw new IllegalArgumentException("Hex payload must have an even number of digits");
+		}
+		byte[] bytes = new byte[digits.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int high = Character.digit(digits.charAt(2 * i), 16);
+			int low = Character.digit(digits.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0) {
+				throw new IllegalArgumentException("Invalid hex digit in payload: " + digits.substring(2 * i, 2 * i + 2));
+			}
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return bytes;
+	}
+
+	public static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = Character.forDigit((bytes[i] >> 4) & 0x0F, 16);
+			hex[2 * i + 1] = Character.forDigit(bytes[i] & 0x0F, 16);
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * @return hex encoded SHA-256 digest of the payload, null for no payload
+	 */
+	public static String sha256(byte[] payload) {
+		if (payload == null) {
+			return null;
+		}
+		try {
+			return toHex(MessageDigest.getInstance("SHA-256").digest(payload));
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] encodeSenmlCbor(ArrayNode records) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (JsonGenerator generator = CBOR_MAPPER.getFactory().createGenerator(out)) {
+			generator.writeStartArray();
+			for (JsonNode record : records) {
+				if (!record.isObject()) {
+					throw new IOException("SenML record must be a JSON object: " + record);
+				}
+				generator.writeStartObject();
+				Iterator<Map.Entry<String, JsonNode>> fields = record.fields();
+				while (fields.hasNext()) {
+					Map.Entry<String, JsonNode> field = fields.next();
+					Integer label = SENML_LABELS.get(field.getKey());
+					if (label != null) {
+						generator.writeFieldId(label);
+					}
+					else {
+						// extension labels are sent as text
+						generator.writeFieldName(field.getKey());
+					}
+					generator.writeTree(field.getValue());
+				}
+				generator.writeEndObject();
+			}
+			generator.writeEndArray();
+		}
+		return out.toByteArray();
+	}
+
+	private static JsonNode decodeSenmlCbor(JsonNode cbor) {
+		if (!cbor.isArray()) {
+			return cbor;
+		}
+		ArrayNode records = JSON_MAPPER.createArrayNode();
+		for (JsonNode record : cbor) {
+			ObjectNode named = JSON_MAPPER.createObjectNode();
+			Iterator<Map.Entry<String, JsonNode>> fields = record.fields();
+			while (fields.hasNext()) {
+				Map.Entry<String, JsonNode> field = fields.next();
+				named.set(senmlName(field.getKey()), field.getValue());
+			}
+			records.add(named);
+		}
+		return records;
+	}
+
+	private static String senmlName(String key) {
+		try {
+			String name = SENML_NAMES.get(Integer.valueOf(key));
+			return (name != null) ? name : key;
+		}
+		catch (NumberFormatException e) {
+			return key;
+		}
+	}
+}
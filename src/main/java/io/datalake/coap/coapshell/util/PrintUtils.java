@@ -17,6 +17,7 @@ package io.datalake.coap.coapshell.util;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.Base64;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -28,6 +29,7 @@ import javax.xml.transform.stream.StreamResult;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.elements.util.StringUtil;
@@ -43,6 +45,14 @@ import org.springframework.util.StringUtils;
  * @author Christian Tzolov
  */
 public class PrintUtils {
+
+	/**
+	 * Response payload rendering modes. The {@code auto} mode picks the rendering from the response content format.
+	 */
+	public enum PayloadRendering {auto, text, hex, base64}
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
 	/**
 	 * Formats a {@link Response} into a readable String representation.
 	 *
@@ -50,6 +60,17 @@ public class PrintUtils {
 	 * @return the pretty print
 	 */
 	public static String prettyPrint(CoapResponse coapResponse, String header) {
+		return prettyPrint(coapResponse, header, PayloadRendering.auto);
+	}
+
+	/**
+	 * Formats a {@link Response} into a readable String representation.
+	 *
+	 * @param coapResponse
+	 * @param rendering how to render the response payload
+	 * @return the pretty print
+	 */
+	public static String prettyPrint(CoapResponse coapResponse, String header, PayloadRendering rendering) {
 
 		if (coapResponse == null) {
 			return red("NULL response!");
@@ -57,9 +78,11 @@ public class PrintUtils {
 
 		Response r = coapResponse.advanced();
 
-		int httpStatusCode = Integer.valueOf(r.getCode().codeClass) * 100 + Integer.valueOf(r.getCode().codeDetail);
+		int httpStatusCode = httpStatusCode(r.getCode());
 		HttpStatus httpStatus = HttpStatus.resolve(httpStatusCode);
-		String status = colorText(String.format("%s-%s", httpStatusCode, httpStatus.getReasonPhrase()), httpStatus.isError() ? AnsiColor.RED : AnsiColor.CYAN);
+		String status = (httpStatus != null) ?
+				colorText(String.format("%s-%s", httpStatusCode, httpStatus.getReasonPhrase()), httpStatus.isError() ? AnsiColor.RED : AnsiColor.CYAN) :
+				colorText(String.format("%s-%s", httpStatusCode, r.getCode().name()), (r.getCode().codeClass == 2) ? AnsiColor.CYAN : AnsiColor.RED);
 
 
 		String rtt = (r.getRTT() != null) ? "" + r.getRTT() : "";
@@ -73,16 +96,78 @@ public class PrintUtils {
 		sb.append(String.format("Options: %s", r.getOptions().toString())).append(StringUtil.lineSeparator());
 		sb.append(String.format("Status : %s, Payload: %dB", status, r.getPayloadSize())).append(StringUtil.lineSeparator());
 		sb.append(green("................................... Payload ....................................")).append(StringUtil.lineSeparator());
-		if (r.getPayloadSize() > 0 && MediaTypeRegistry.isPrintable(r.getOptions().getContentFormat())) {
-			sb.append(prettyPayload(r)).append(StringUtil.lineSeparator());
+		if (r.getPayloadSize() > 0) {
+			appendPayload(sb, r, rendering);
 		}
 		sb.append(green("--------------------------------------------------------------------------------"));
 
 		return sb.toString();
 	}
 
+	/**
+	 * Maps the CoAP response code to the HTTP status code with the same digits (e.g. 2.05 to 205, 4.04 to 404).
+	 */
+	public static int httpStatusCode(CoAP.ResponseCode code) {
+		return code.codeClass * 100 + code.codeDetail;
+	}
+
+	private static void appendPayload(StringBuilder sb, Response r, PayloadRendering rendering) {
+		int contentFormat = r.getOptions().getContentFormat();
+		if (rendering == PayloadRendering.hex) {
+			hexDump(sb, r.getPayload());
+		}
+		else if (rendering == PayloadRendering.base64) {
+			sb.append(Base64.getMimeEncoder().encodeToString(r.getPayload())).append(StringUtil.lineSeparator());
+		}
+		else if (rendering == PayloadRendering.text) {
+			sb.append(r.getPayloadString()).append(StringUtil.lineSeparator());
+		}
+		else if (PayloadCodec.isCbor(contentFormat)) {
+			String json = PayloadCodec.decode(r.getPayload(), contentFormat);
+			sb.append((json != null) ? cyan(json) : red("Invalid CBOR payload!")).append(StringUtil.lineSeparator());
+		}
+		else if (MediaTypeRegistry.isPrintable(contentFormat)) {
+			sb.append(prettyPayload(r)).append(StringUtil.lineSeparator());
+		}
+		else {
+			hexDump(sb, r.getPayload());
+		}
+	}
+
+	/**
+	 * Appends a classic 16 bytes per line hex dump (offset, hex bytes, ASCII) of the payload.
+	 * Works directly on the payload bytes, no intermediate String is created.
+	 */
+	public static void hexDump(StringBuilder sb, byte[] payload) {
+		for (int offset = 0; offset < payload.length; offset += 16) {
+			int lineEnd = Math.min(offset + 16, payload.length);
+			sb.append(String.format("%08x  ", offset));
+			for (int i = offset; i < offset + 16; i++) {
+				if (i < lineEnd) {
+					sb.append(HEX_DIGITS[(payload[i] >> 4) & 0x0F]).append(HEX_DIGITS[payload[i] & 0x0F]).append(' ');
+				}
+				else {
+					sb.append("   ");
+				}
+				if (i - offset == 7) {
+					sb.append(' ');
+				}
+			}
+			sb.append(" |");
+			for (int i = offset; i < lineEnd; i++) {
+				char c = (char) (payload[i] & 0xFF);
+				sb.append((c >= 0x20 && c < 0x7F) ? c : '.');
+			}
+			sb.append('|').append(StringUtil.lineSeparator());
+		}
+	}
+
 	public static String prettyPayload(Response r) {
-		if (r.getOptions().toString().contains(MimeTypeUtils.APPLICATION_JSON_VALUE)) {
+		if (PayloadCodec.isSenml(r.getOptions().getContentFormat())) {
+			String json = PayloadCodec.decode(r.getPayload(), r.getOptions().getContentFormat());
+			return cyan((json != null) ? json : r.getPayloadString());
+		}
+		else if (r.getOptions().toString().contains(MimeTypeUtils.APPLICATION_JSON_VALUE)) {
 			return cyan(prettyJson(r.getPayloadString()));
 		}
 		else if (r.getOptions().toString().contains(MimeTypeUtils.APPLICATION_XML_VALUE)) {
@@ -136,6 +221,21 @@ public class PrintUtils {
 		}
 	}
 
+	private static final char[] SPARKS = { '\u2581', '\u2582', '\u2583', '\u2584', '\u2585', '\u2586', '\u2587', '\u2588' };
+
+	/**
+	 * Renders the values as a line of block characters, scaled between the min and the max value.
+	 */
+	public static String sparkline(double[] values, double min, double max) {
+		StringBuilder sb = new StringBuilder(values.length);
+		double range = max - min;
+		for (double value : values) {
+			int level = (range > 0) ? (int) ((value - min) / range * (SPARKS.length - 1)) : SPARKS.length / 2;
+			sb.append(SPARKS[Math.max(0, Math.min(SPARKS.length - 1, level))]);
+		}
+		return sb.toString();
+	}
+
 	public static String cyan(String text) {
 		return colorText(text, AnsiColor.CYAN);
 	}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.eclipse.californium.core.WebLink;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Local cache of the https://tools.ietf.org/html/rfc9176[Resource Directory] lookup results, indexed by endpoint
+ * name and by resource type.
+ *
+ * The resource lookup links carry absolute URIs but usually no endpoint name. The endpoint of a resource is taken
+ * from its {@code ep} attribute if present, otherwise it is resolved from the cached endpoint base URIs.
+ *
+ * @author Christian Tzolov
+ */
+@Component
+public class RdLookupCache {
+
+	private final Map<String, RdEndpoint> endpoints = new LinkedHashMap<>();
+	private final Map<String, RdEndpoint> endpointsByBase = new LinkedHashMap<>();
+	private final Map<String, RdResource> resources = new LinkedHashMap<>();
+	private final Map<String, Set<RdResource>> resourcesByType = new LinkedHashMap<>();
+	private final Map<String, Set<RdResource>> resourcesByEndpoint = new LinkedHashMap<>();
+	private long updated;
+
+	public synchronized RdEndpoint addEndpoint(WebLink link) {
+		RdEndpoint endpoint = new RdEndpoint(attribute(link, "ep"), attribute(link, "d"),
+				(attribute(link, "base") != null) ? attribute(link, "base") : link.getURI(), link.getURI(),
+				attribute(link, "et"), attribute(link, "lt"));
+		this.endpoints.put(endpoint.getName(), endpoint);
+		this.endpointsByBase.put(authority(endpoint.getBase()), endpoint);
+		this.updated = System.currentTimeMillis();
+		return endpoint;
+	}
+
+	public RdResource addResource(WebLink link) {
+		return addResource(link, null);
+	}
+
+	/**
+	 * @param link - resource lookup link
+	 * @param queriedEndpoint - endpoint name of the lookup filter (ep=), so all results belong to it, or null
+	 * @return the cached resource
+	 */
+	public synchronized RdResource addResource(WebLink link, String queriedEndpoint) {
+		String ep = (attribute(link, "ep") != null) ? attribute(link, "ep") : queriedEndpoint;
+		if (ep == null) {
+			RdEndpoint endpoint = this.endpointsByBase.get(authority(
+					(attribute(link, "anchor") != null) ? attribute(link, "anchor") : link.getURI()));
+			ep = (endpoint != null) ? endpoint.getName() : null;
+		}
+		RdResource resource = new RdResource(link.getURI(), ep, link.getAttributes().getResourceTypes(),
+				link.getAttributes().getContentTypes(), link.getAttributes().hasObservable());
+
+		remove(this.resources.put(resource.getUri(), resource));
+		for (String rt : resource.getResourceTypes()) {
+			this.resourcesByType.computeIfAbsent(rt, k -> new LinkedHashSet<>()).add(resource);
+		}
+		this.resourcesByEndpoint.computeIfAbsent(String.valueOf(ep), k -> new LinkedHashSet<>()).add(resource);
+		this.updated = System.currentTimeMillis();
+		return resource;
+	}
+
+	private void remove(RdResource replaced) {
+		if (replaced != null) {
+			this.resourcesByType.values().forEach(set -> set.remove(replaced));
+			this.resourcesByEndpoint.values().forEach(set -> set.remove(replaced));
+		}
+	}
+
+	public synchronized List<RdEndpoint> findEndpoints(String name) {
+		if (name == null) {
+			return new ArrayList<>(this.endpoints.values());
+		}
+		RdEndpoint endpoint = this.endpoints.get(name);
+		return (endpoint != null) ? Collections.singletonList(endpoint) : Collections.emptyList();
+	}
+
+	/**
+	 * @param endpointName - endpoint name or null for any
+	 * @param resourceType - resource type or null for any
+	 * @return the cached resources matching both criteria
+	 */
+	public synchronized List<RdResource> findResources(String endpointName, String resourceType) {
+		Collection<RdResource> candidates = (resourceType != null) ?
+				this.resourcesByType.getOrDefault(resourceType, Collections.emptySet()) : this.resources.values();
+		if (endpointName == null) {
+			return new ArrayList<>(candidates);
+		}
+		Set<RdResource> ofEndpoint = this.resourcesByEndpoint.getOrDefault(endpointName, Collections.emptySet());
+		return candidates.stream().filter(ofEndpoint::contains).collect(Collectors.toList());
+	}
+
+	public synchronized void clear() {
+		this.endpoints.clear();
+		this.endpointsByBase.clear();
+		this.resources.clear();
+		this.resourcesByType.clear();
+		this.resourcesByEndpoint.clear();
+		this.updated = 0;
+	}
+
+	public synchronized boolean isEmpty() {
+		return this.endpoints.isEmpty() && this.resources.isEmpty();
+	}
+
+	public synchronized String stats() {
+		return String.format("endpoints: %d, resources: %d, resource types: %d, updated: %s", this.endpoints.size(),
+				this.resources.size(), this.resourcesByType.size(), (this.updated > 0) ?
+						TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - this.updated) + "s ago" : "never");
+	}
+
+	private static String attribute(WebLink link, String name) {
+		List<String> values = link.getAttributes().getAttributeValues(name);
+		return (values == null || values.isEmpty()) ? null : values.get(0);
+	}
+
+	private static String authority(String uri) {
+		try {
+			URI parsed = URI.create(uri);
+			return (parsed.getRawAuthority() != null) ? parsed.getRawAuthority() : uri;
+		}
+		catch (IllegalArgumentException e) {
+			return uri;
+		}
+	}
+
+	public static class RdEndpoint {
+		private final String name;
+		private final String sector;
+		private final String base;
+		private final String registration;
+		private final String type;
+		private final String lifetime;
+
+		RdEndpoint(String name, String sector, String base, String registration, String type, String lifetime) {
+			this.name = name;
+			this.sector = sector;
+			this.base = base;
+			this.registration = registration;
+			this.type = type;
+			this.lifetime = lifetime;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getSector() {
+			return sector;
+		}
+
+		public String getBase() {
+			return base;
+		}
+
+		public String getRegistration() {
+			return registration;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getLifetime() {
+			return lifetime;
+		}
+	}
+
+	public static class RdResource {
+		private final String uri;
+		private final String endpoint;
+		private final List<String> resourceTypes;
+		private final List<String> contentTypes;
+		private final boolean observable;
+
+		RdResource(String uri, String endpoint, List<String> resourceTypes, List<String> contentTypes, boolean observable) {
+			this.uri = uri;
+			this.endpoint = endpoint;
+			this.resourceTypes = resourceTypes;
+			this.contentTypes = contentTypes;
+			this.observable = observable;
+		}
+
+		public String getUri() {
+			return uri;
+		}
+
+		public String getEndpoint() {
+			return endpoint;
+		}
+
+		public List<String> getResourceTypes() {
+			return resourceTypes;
+		}
+
+		public List<String> getContentTypes() {
+			return contentTypes;
+		}
+
+		public boolean isObservable() {
+			return observable;
+		}
+	}
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.coap.Token;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptorAdapter;
+import org.eclipse.californium.elements.EndpointContext;
+import org.eclipse.californium.elements.util.StringUtil;
+
+import org.springframework.stereotype.Component;
+
+import static io.datalake.coap.coapshell.util.PrintUtils.cyan;
+import static io.datalake.coap.coapshell.util.PrintUtils.green;
+import static io.datalake.coap.coapshell.util.PrintUtils.red;
+
+/**
+ * Records per exchange wire timings: DTLS handshake, queue time, transmissions and retransmissions, the RTT of
+ * every Block1/Block2 block and the total time.
+ *
+ * The exchange level events come from a {@link org.eclipse.californium.core.coap.MessageObserver} attached to the
+ * request. The block transfers are driven by Californium's blockwise layer with separate block requests, so their
+ * timings are captured with an endpoint interceptor that matches the block requests and responses by token.
+ *
+ * The traces are keyed by the request instance and by the tokens of the block requests, so concurrent requests to
+ * the same URI keep separate timelines. A block request that the blockwise layer created with a new token is
+ * attributed by URI only when a single trace of that URI is active, otherwise its block timing isn't recorded.
+ *
+ * @author Christian Tzolov
+ */
+@Component
+public class RequestTracer {
+
+	private static final int MAX_TRACES = 200;
+	private static final int WATERFALL_WIDTH = 50;
+
+	private volatile boolean enabled;
+
+	private final Deque<Trace> traces = new ArrayDeque<>();
+	private final Map<Request, Trace> activeTraces = new ConcurrentHashMap<>();
+	private final Map<Token, Trace> tokenTraces = new ConcurrentHashMap<>();
+	private final Map<Token, BlockSend> pendingBlocks = new ConcurrentHashMap<>();
+	private final Set<Endpoint> instrumentedEndpoints = Collections.newSetFromMap(new WeakHashMap<>());
+	private final AtomicLong traceIds = new AtomicLong();
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Traces the request if tracing is enabled. The trace starts when the request is handed to the endpoint, a
+	 * request that is built but never sent leaves no trace.
+	 * @param request - request to trace
+	 * @param endpoint - endpoint the request is going to be sent through
+	 */
+	public void attach(Request request, Endpoint endpoint) {
+		if (!this.enabled) {
+			return;
+		}
+		instrument(endpoint);
+
+		request.addMessageObserver(new MessageObserverAdapter() {
+			private volatile Trace trace;
+			private long connecting = -1;
+			private long lastSent = -1;
+
+			@Override
+			public void onReadyToSend() {
+				if (this.trace == null) {
+					this.trace = start(request);
+				}
+			}
+
+			@Override
+			public void onConnecting() {
+				this.connecting = System.nanoTime();
+			}
+
+			@Override
+			public void onDtlsRetransmission(int flight) {
+				if (this.trace != null) {
+					this.trace.instant("DTLS flight " + flight + " retransmission");
+				}
+			}
+
+			@Override
+			public void onContextEstablished(EndpointContext endpointContext) {
+				if (this.trace != null && this.connecting > 0) {
+					this.trace.span("DTLS handshake", this.connecting, System.nanoTime());
+					this.connecting = -1;
+				}
+			}
+
+			@Override
+			public void onSent(boolean retransmission) {
+				if (this.trace == null) {
+					return;
+				}
+				long now = System.nanoTime();
+				if (this.lastSent < 0) {
+					this.trace.span("queue", this.trace.startNanos, now);
+				}
+				else {
+					this.trace.instant("retransmission");
+				}
+				this.lastSent = now;
+			}
+
+			@Override
+			public void onResponse(Response response) {
+				finish("response " + response.getCode());
+			}
+
+			@Override
+			public void onTimeout() {
+				finish("timeout");
+			}
+
+			@Override
+			public void onCancel() {
+				finish("canceled");
+			}
+
+			@Override
+			public void onSendError(Throwable error) {
+				finish("send error: " + error.getMessage());
+			}
+
+			@Override
+			public void onReject() {
+				finish("rejected");
+			}
+
+			private void finish(String outcome) {
+				if (this.trace != null) {
+					this.trace.finish(outcome);
+					complete(request, this.trace);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts the trace of the request handed to the endpoint.
+	 */
+	private Trace start(Request request) {
+		Trace trace = new Trace(this.traceIds.incrementAndGet(), request.getCode() + " " + request.getURI(),
+				request.getURI());
+		this.activeTraces.put(request, trace);
+		synchronized (this.traces) {
+			this.traces.addLast(trace);
+			while (this.traces.size() > MAX_TRACES) {
+				this.traces.removeFirst();
+			}
+		}
+		return trace;
+	}
+
+	/**
+	 * Removes the finished trace and its pending blocks.
+	 */
+	private void complete(Request request, Trace trace) {
+		this.activeTraces.remove(request, trace);
+		for (Token token : trace.tokens()) {
+			this.tokenTraces.remove(token, trace);
+			this.pendingBlocks.remove(token);
+		}
+	}
+
+	/**
+	 * @return the trace of the request: by token for the block requests, by instance for the traced request itself,
+	 * by URI for a block request with a new token if that's unambiguous
+	 */
+	private Trace find(Request request) {
+		Trace trace = this.tokenTraces.get(request.getToken());
+		if (trace == null) {
+			trace = this.activeTraces.get(request);
+		}
+		if (trace == null && (request.getOptions().hasBlock1() || request.getOptions().hasBlock2())) {
+			for (Trace active : this.activeTraces.values()) {
+				if (active.uri.equals(request.getURI())) {
+					if (trace != null) {
+						return null; // concurrent transfers of the same URI
+					}
+					trace = active;
+				}
+			}
+		}
+		if (trace == null || trace.endNanos >= 0) {
+			return null;
+		}
+		if (this.tokenTraces.putIfAbsent(request.getToken(), trace) == null) {
+			trace.addToken(request.getToken());
+		}
+		return trace;
+	}
+
+	private void instrument(Endpoint endpoint) {
+		synchronized (this.instrumentedEndpoints) {
+			if (endpoint == null || !this.instrumentedEndpoints.add(endpoint)) {
+				return;
+			}
+		}
+		endpoint.addInterceptor(new MessageInterceptorAdapter() {
+			@Override
+			public void sendRequest(Request request) {
+				Trace trace = (request.getToken() != null) ? find(request) : null;
+				if (trace != null) {
+					String name = request.getOptions().hasBlock1() ? "block1 #" + request.getOptions().getBlock1().getNum()
+							: request.getOptions().hasBlock2() ? "block2 #" + request.getOptions().getBlock2().getNum()
+							: "exchange";
+					pendingBlocks.put(request.getToken(), new BlockSend(trace, name, System.nanoTime()));
+				}
+			}
+
+			@Override
+			public void receiveResponse(Response response) {
+				BlockSend send = pendingBlocks.remove(response.getToken());
+				if (send != null) {
+					long now = System.nanoTime();
+					if (send.trace.firstByteNanos < 0) {
+						send.trace.firstByteNanos = now;
+					}
+					String name = (send.name.equals("exchange") && response.getOptions().hasBlock2()) ?
+							"block2 #" + response.getOptions().getBlock2().getNum() : send.name;
+					send.trace.span(name, send.sentNanos, now);
+				}
+			}
+		});
+	}
+
+	public List<Trace> getTraces(int last) {
+		synchronized (this.traces) {
+			List<Trace> all = new ArrayList<>(this.traces);
+			return all.subList(Math.max(0, all.size() - last), all.size());
+		}
+	}
+
+	public void clear() {
+		synchronized (this.traces) {
+			this.traces.clear();
+		}
+		this.pendingBlocks.clear();
+	}
+
+	/**
+	 * Renders the traces as a terminal waterfall. Each bar is scaled to the total time of its trace.
+	 */
+	public String waterfall(int last) {
+		StringBuilder sb = new StringBuilder();
+		for (Trace trace : getTraces(last)) {
+			long total = Math.max(1, trace.durationNanos());
+			sb.append(green(String.format("#%d %s: %s, total %.1fms, first byte %s", trace.id, trace.name,
+					(trace.outcome != null) ? trace.outcome : "in progress", millis(total),
+					(trace.firstByteNanos > 0) ? String.format("%.1fms", millis(trace.firstByteNanos - trace.startNanos)) : "-")))
+					.append(StringUtil.lineSeparator());
+			for (Span span : trace.getSpans()) {
+				long offset = span.startNanos - trace.startNanos;
+				int from = (int) (WATERFALL_WIDTH * offset / total);
+				int width = Math.max(1, (int) (WATERFALL_WIDTH * (span.endNanos - span.startNanos) / total));
+				StringBuilder bar = new StringBuilder();
+				for (int i = 0; i < WATERFALL_WIDTH; i++) {
+					bar.append((i >= from && i < from + width) ? (span.isInstant() ? '|' : '█') : ' ');
+				}
+				String label = String.format("  %-32s %9.1fms %9.1fms ", span.name, millis(offset),
+						millis(span.endNanos - span.startNanos));
+				sb.append(label).append(span.isInstant() ? red(bar.toString()) : cyan(bar.toString()))
+						.append(StringUtil.lineSeparator());
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Exports the traces in the Chrome trace event format (chrome://tracing, Perfetto).
+	 */
+	public void exportChromeTrace(File file) throws IOException {
+		List<Map<String, Object>> events = new ArrayList<>();
+		for (Trace trace : getTraces(MAX_TRACES)) {
+			events.add(chromeEvent(trace, trace.name, trace.startNanos, trace.startNanos + trace.durationNanos()));
+			for (Span span : trace.getSpans()) {
+				events.add(chromeEvent(trace, span.name, span.startNanos, span.endNanos));
+			}
+		}
+		Map<String, Object> root = new LinkedHashMap<>();
+		root.put("traceEvents", events);
+		root.put("displayTimeUnit", "ms");
+		new ObjectMapper().writeValue(file, root);
+	}
+
+	private Map<String, Object> chromeEvent(Trace trace, String name, long startNanos, long endNanos) {
+		Map<String, Object> event = new LinkedHashMap<>();
+		event.put("name", name);
+		event.put("cat", "coap");
+		event.put("ph", (startNanos == endNanos) ? "i" : "X");
+		event.put("ts", trace.epochMicros(startNanos));
+		if (startNanos != endNanos) {
+			event.put("dur", TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos));
+		}
+		else {
+			event.put("s", "t");
+		}
+		event.put("pid", 1);
+		event.put("tid", trace.id);
+		return event;
+	}
+
+	/**
+	 * Exports the traces as OpenTelemetry (OTLP/JSON) spans. Each exchange is a root span with child spans for the
+	 * handshake, queue and block timings.
+	 */
+	public void exportOpenTelemetry(File file) throws IOException {
+		List<Map<String, Object>> spans = new ArrayList<>();
+		for (Trace trace : getTraces(MAX_TRACES)) {
+			String traceId = String.format("%032x", trace.id);
+			String rootSpanId = String.format("%016x", trace.id << 16);
+			spans.add(otelSpan(trace, traceId, rootSpanId, null, trace.name, trace.startNanos,
+					trace.startNanos + trace.durationNanos()));
+			int n = 1;
+			for (Span span : trace.getSpans()) {
+				spans.add(otelSpan(trace, traceId, String.format("%016x", (trace.id << 16) + n++), rootSpanId,
+						span.name, span.startNanos, span.endNanos));
+			}
+		}
+
+		Map<String, Object> serviceName = new LinkedHashMap<>();
+		serviceName.put("key", "service.name");
+		serviceName.put("value", Collections.singletonMap("stringValue", "coap-shell"));
+		Map<String, Object> scopeSpans = new LinkedHashMap<>();
+		scopeSpans.put("scope", Collections.singletonMap("name", "coap-shell"));
+		scopeSpans.put("spans", spans);
+		Map<String, Object> resourceSpans = new LinkedHashMap<>();
+		resourceSpans.put("resource", Collections.singletonMap("attributes", Collections.singletonList(serviceName)));
+		resourceSpans.put("scopeSpans", Collections.singletonList(scopeSpans));
+		new ObjectMapper().writeValue(file, Collections.singletonMap("resourceSpans",
+				Collections.singletonList(resourceSpans)));
+	}
+
+	private Map<String, Object> otelSpan(Trace trace, String traceId, String spanId, String parentSpanId,
+			String name, long startNanos, long endNanos) {
+		Map<String, Object> span = new LinkedHashMap<>();
+		span.put("traceId", traceId);
+		span.put("spanId", spanId);
+		if (parentSpanId != null) {
+			span.put("parentSpanId", parentSpanId);
+		}
+		span.put("name", name);
+		span.put("kind", 3); // SPAN_KIND_CLIENT
+		span.put("startTimeUnixNano", String.valueOf(trace.epochMicros(startNanos) * 1000));
+		span.put("endTimeUnixNano", String.valueOf(trace.epochMicros(endNanos) * 1000));
+		return span;
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1_000_000.0;
+	}
+
+	private static class BlockSend {
+		private final Trace trace;
+		private final String name;
+		private final long sentNanos;
+
+		BlockSend(Trace trace, String name, long sentNanos) {
+			this.trace = trace;
+			this.name = name;
+			this.sentNanos = sentNanos;
+		}
+	}
+
+	public static class Trace {
+		private final long id;
+		private final String name;
+		private final long startNanos = System.nanoTime();
+		private final long startEpochMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+		private final String uri;
+		private final List<Span> spans = new ArrayList<>();
+		private final List<Token> tokens = new ArrayList<>();
+		private volatile long firstByteNanos = -1;
+		private volatile long endNanos = -1;
+		private volatile String outcome;
+
+		Trace(long id, String name, String uri) {
+			this.id = id;
+			this.name = name;
+			this.uri = uri;
+		}
+
+		void addToken(Token token) {
+			synchronized (this.tokens) {
+				this.tokens.add(token);
+			}
+		}
+
+		List<Token> tokens() {
+			synchronized (this.tokens) {
+				return new ArrayList<>(this.tokens);
+			}
+		}
+
+		void span(String spanName, long from, long to) {
+			synchronized (this.spans) {
+				this.spans.add(new Span(spanName, from, to));
+			}
+		}
+
+		void instant(String spanName) {
+			long now = System.nanoTime();
+			span(spanName, now, now);
+		}
+
+		void finish(String outcome) {
+			if (this.endNanos < 0) {
+				this.endNanos = System.nanoTime();
+				this.outcome = outcome;
+			}
+		}
+
+		long durationNanos() {
+			return ((this.endNanos > 0) ? this.endNanos : System.nanoTime()) - this.startNanos;
+		}
+
+		long epochMicros(long nanos) {
+			return this.startEpochMicros + TimeUnit.NANOSECONDS.toMicros(nanos - this.startNanos);
+		}
+
+		List<Span> getSpans() {
+			synchronized (this.spans) {
+				return new ArrayList<>(this.spans);
+			}
+		}
+	}
+
+	private static class Span {
+		private final String name;
+		private final long startNanos;
+		private final long endNanos;
+
+		Span(String name, long startNanos, long endNanos) {
+			this.name = name;
+			this.startNanos = startNanos;
+			this.endNanos = endNanos;
+		}
+
+		boolean isInstant() {
+			return this.startNanos == this.endNanos;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.util.Assert;
+
+/**
+ * Bounds the number of asynchronous CoAP requests in flight. A request slot is taken with {@link #acquire()}
+ * before the request is sent and given back with {@link #release()} from the response (or error) handler.
+ *
+ * @author Christian Tzolov
+ */
+public class RequestWindow {
+
+	private final int size;
+	private final Semaphore slots;
+
+	public RequestWindow(int size) {
+		Assert.isTrue(size > 0, "The request window size must be positive");
+		this.size = size;
+		this.slots = new Semaphore(size);
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public void acquire() throws InterruptedException {
+		this.slots.acquire();
+	}
+
+	/**
+	 * @return false if no request slot was freed within the timeout
+	 */
+	public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+		return this.slots.tryAcquire(timeout, unit);
+	}
+
+	public void release() {
+		this.slots.release();
+	}
+
+	public int inFlight() {
+		return this.size - this.slots.availablePermits();
+	}
+
+	/**
+	 * Blocks until all in flight requests are completed or the timeout expires.
+	 * @return true if all requests completed
+	 */
+	public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+		if (this.slots.tryAcquire(this.size, timeout, unit)) {
+			this.slots.release(this.size);
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Snapshot of all resources of a CoAP server, as collected by the {@code crawl} command.
+ *
+ * @author Christian Tzolov
+ */
+public class ResourceSnapshot {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+	private String baseUri;
+	private long timestamp;
+	private List<Entry> entries = new ArrayList<>();
+
+	public static ResourceSnapshot read(File file) throws IOException {
+		return MAPPER.readValue(file, ResourceSnapshot.class);
+	}
+
+	/**
+	 * Reads the entries of a snapshot file one by one, without loading the whole snapshot.
+	 * @return the number of entries
+	 */
+	public static long stream(File file, EntryConsumer consumer) throws IOException {
+		String baseUri = null;
+		long timestamp = 0;
+		long count = 0;
+		try (JsonParser parser = MAPPER.getFactory().createParser(file)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Not a snapshot file: " + file);
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if ("baseUri".equals(field)) {
+					baseUri = parser.getValueAsString();
+				}
+				else if ("timestamp".equals(field)) {
+					timestamp = parser.getLongValue();
+				}
+				else if ("entries".equals(field) && parser.currentToken() == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						consumer.accept(baseUri, timestamp, parser.readValueAs(Entry.class));
+						count++;
+					}
+				}
+				else {
+					parser.skipChildren();
+				}
+			}
+		}
+		return count;
+	}
+
+	@FunctionalInterface
+	public interface EntryConsumer {
+		void accept(String baseUri, long timestamp, Entry entry) throws IOException;
+	}
+
+	public void write(File file) throws IOException {
+		MAPPER.writeValue(file, this);
+	}
+
+	public String getBaseUri() {
+		return baseUri;
+	}
+
+	public void setBaseUri(String baseUri) {
+		this.baseUri = baseUri;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	public void setEntries(List<Entry> entries) {
+		this.entries = entries;
+	}
+
+	/**
+	 * Single resource state: response code, content format, ETag, SHA-256 payload hash, payload size and RTT.
+	 */
+	public static class Entry {
+		private String path;
+		private String code;
+		private int contentFormat;
+		private String etag;
+		private String payloadHash;
+		private int size;
+		private long rtt;
+
+		public String getPath() {
+			return path;
+		}
+
+		public void setPath(String path) {
+			this.path = path;
+		}
+
+		public String getCode() {
+			return code;
+		}
+
+		public void setCode(String code) {
+			this.code = code;
+		}
+
+		public int getContentFormat() {
+			return contentFormat;
+		}
+
+		public void setContentFormat(int contentFormat) {
+			this.contentFormat = contentFormat;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public void setEtag(String etag) {
+			this.etag = etag;
+		}
+
+		public String getPayloadHash() {
+			return payloadHash;
+		}
+
+		public void setPayloadHash(String payloadHash) {
+			this.payloadHash = payloadHash;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public void setSize(int size) {
+			this.size = size;
+		}
+
+		public long getRtt() {
+			return rtt;
+		}
+
+		public void setRtt(long rtt) {
+			this.rtt = rtt;
+		}
+	}
+}
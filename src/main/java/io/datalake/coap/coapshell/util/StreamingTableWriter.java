@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jline.terminal.Attributes;
+import org.jline.terminal.Terminal;
+
+import org.springframework.util.Assert;
+
+/**
+ * Writes table rows to the terminal as they are produced, instead of building the whole table in memory first.
+ *
+ * The column widths are fixed from the headers and the first {@code sampleSize} rows. Longer values of the later
+ * rows are truncated. Once the sample is complete every row is written and flushed immediately. On interactive
+ * terminals the output pauses after each screen page: Enter (or Space) continues, q stops. Producers should check
+ * the {@link #addRow(List)} result and stop producing rows when the user has quit.
+ *
+ * The borders mimic the {@code BorderStyle.fancy_light} tables of the other commands.
+ *
+ * @author Christian Tzolov
+ */
+public class StreamingTableWriter {
+
+	public static final int DEFAULT_SAMPLE_SIZE = 100;
+	private static final int MAX_COLUMN_WIDTH = 60;
+
+	private final Terminal terminal;
+	private final PrintWriter writer;
+	private final String[] headers;
+	private final int sampleSize;
+	private final boolean paging;
+
+	private final List<String[]> sample = new ArrayList<>();
+	private int[] widths;
+	private int rowCount;
+	private int pageLines;
+	private boolean stopped;
+
+	public StreamingTableWriter(Terminal terminal, String... headers) {
+		this(terminal, DEFAULT_SAMPLE_SIZE, true, headers);
+	}
+
+	/**
+	 * @param terminal - terminal to write the rows to
+	 * @param sampleSize - number of rows used to compute the column widths
+	 * @param paging - pause after every page on interactive terminals
+	 * @param headers - column headers
+	 */
+	public StreamingTableWriter(Terminal terminal, int sampleSize, boolean paging, String... headers) {
+		Assert.isTrue(sampleSize > 0, "The sample size must be positive");
+		this.terminal = terminal;
+		this.writer = terminal.writer();
+		this.headers = headers;
+		this.sampleSize = sampleSize;
+		this.paging = paging && !Terminal.TYPE_DUMB.equals(terminal.getType())
+				&& !Terminal.TYPE_DUMB_COLOR.equals(terminal.getType()) && terminal.getHeight() > 3;
+	}
+
+	/**
+	 * @param row - column values
+	 * @return false if the user has stopped the output and no more rows are accepted
+	 */
+	public boolean addRow(List<String> row) {
+		return addRow(row.toArray(new String[0]));
+	}
+
+	public boolean addRow(String... row) {
+		if (this.stopped) {
+			return false;
+		}
+		String[] values = Arrays.copyOf(row, this.headers.length);
+		this.rowCount++;
+		if (this.widths == null) {
+			this.sample.add(values);
+			if (this.sample.size() >= this.sampleSize) {
+				flushSample();
+			}
+			return true;
+		}
+		writeLine(formatRow(values));
+		return !this.stopped;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * Writes the remaining sampled rows (if any) and the bottom border.
+	 * @return number of rows accepted
+	 */
+	public int close() {
+		if (this.widths == null) {
+			flushSample();
+		}
+		this.writer.println(border('└', '┴', '┘'));
+		this.writer.flush();
+		return this.rowCount;
+	}
+
+	private void flushSample() {
+		this.widths = new int[this.headers.length];
+		for (int i = 0; i < this.headers.length; i++) {
+			this.widths[i] = this.headers[i].length();
+		}
+		for (String[] row : this.sample) {
+			for (int i = 0; i < row.length; i++) {
+				this.widths[i] = Math.min(MAX_COLUMN_WIDTH, Math.max(this.widths[i], length(row[i])));
+			}
+		}
+
+		this.writer.println(border('┌', '┬', '┐'));
+		this.writer.println(formatRow(this.headers));
+		this.writer.println(border('├', '┼', '┤'));
+		this.pageLines = 3;
+		for (String[] row : this.sample) {
+			if (this.stopped) {
+				break;
+			}
+			writeLine(formatRow(row));
+		}
+		this.sample.clear();
+	}
+
+	private void writeLine(String line) {
+		this.writer.println(line);
+		this.writer.flush();
+		this.pageLines++;
+		if (this.paging && this.pageLines >= this.terminal.getHeight() - 1) {
+			this.pageLines = 0;
+			this.stopped = !morePrompt();
+		}
+	}
+
+	private boolean morePrompt() {
+		this.writer.print(PrintUtils.cyan("-- More -- (Enter: next page, q: quit)"));
+		this.writer.flush();
+		Attributes attributes = this.terminal.enterRawMode();
+		try {
+			int c = this.terminal.reader().read();
+			return c != 'q' && c != 'Q' && c != -1;
+		}
+		catch (IOException e) {
+			return false;
+		}
+		finally {
+			this.terminal.setAttributes(attributes);
+			this.writer.print("\r\033[K");
+			this.writer.flush();
+		}
+	}
+
+	private String formatRow(String[] row) {
+		StringBuilder sb = new StringBuilder("│");
+		for (int i = 0; i < this.widths.length; i++) {
+			String value = (row[i] != null) ? row[i] : "";
+			if (value.length() > this.widths[i]) {
+				value = value.substring(0, Math.max(0, this.widths[i] - 1)) + "…";
+			}
+			sb.append(value);
+			for (int p = value.length(); p < this.widths[i]; p++) {
+				sb.append(' ');
+			}
+			sb.append('│');
+		}
+		return sb.toString();
+	}
+
+	private String border(char left, char middle, char right) {
+		StringBuilder sb = new StringBuilder().append(left);
+		for (int i = 0; i < this.widths.length; i++) {
+			for (int w = 0; w < this.widths[i]; w++) {
+				sb.append('─');
+			}
+			sb.append((i < this.widths.length - 1) ? middle : right);
+		}
+		return sb.toString();
+	}
+
+	private static int length(String value) {
+		return (value != null) ? value.length() : 0;
+	}
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.util.Assert;
+
+/**
+ * In-memory store of numeric time series, e.g. the values of observe notifications.
+ *
+ * Every series keeps its latest raw samples in primitive ring arrays and downsamples all samples into per second
+ * and per minute buckets (min, max, sum and count), so the memory of a series is bounded, no matter how long it is
+ * recorded, and no sample is boxed. The arrays start small and double until they reach their capacity, so a short
+ * or slow series only takes a few KB. With the default capacities a full series takes about 440 KB: 16384 raw
+ * samples (~27 minutes at 10 Hz), one hour of seconds and one day of minutes.
+ *
+ * @author Christian Tzolov
+ */
+public class TimeSeriesStore {
+
+	public static final int DEFAULT_RAW_CAPACITY = 16384;
+
+	/**
+	 * Initial size of the ring arrays, grown up to their capacity.
+	 */
+	private static final int INITIAL_CAPACITY = 256;
+
+	/**
+	 * Bucket width and capacity of the downsampled resolutions.
+	 */
+	private static final long[] RESOLUTION_MILLIS = { 1000, 60_000 };
+	private static final int[] RESOLUTION_CAPACITY = { 3600, 1440 };
+
+	private final int rawCapacity;
+	private final int maxSeries;
+	private final Map<String, Series> series = new LinkedHashMap<>();
+
+	/**
+	 * @param rawCapacity - number of raw samples kept per series
+	 * @param maxSeries - max number of series, the values of further series are ignored
+	 */
+	public TimeSeriesStore(int rawCapacity, int maxSeries) {
+		Assert.isTrue(rawCapacity > 0, "The raw capacity must be positive");
+		this.rawCapacity = rawCapacity;
+		this.maxSeries = maxSeries;
+	}
+
+	/**
+	 * @return false if the value is ignored because the store already holds maxSeries other series
+	 */
+	public boolean record(String name, long timeMillis, double value) {
+		Series target;
+		synchronized (this.series) {
+			target = this.series.get(name);
+			if (target == null) {
+				if (this.series.size() >= this.maxSeries) {
+					return false;
+				}
+				target = new Series(name, this.rawCapacity);
+				this.series.put(name, target);
+			}
+		}
+		target.add(timeMillis, value);
+		return true;
+	}
+
+	public List<String> names() {
+		synchronized (this.series) {
+			return new ArrayList<>(this.series.keySet());
+		}
+	}
+
+	/**
+	 * @return the series or null if there are no values recorded for the name
+	 */
+	public Series get(String name) {
+		synchronized (this.series) {
+			return this.series.get(name);
+		}
+	}
+
+	/**
+	 * @return the downsampled resolution for the name: 1s or 1m, -1 for raw or unknown names
+	 */
+	public static int resolution(String name) {
+		switch (name) {
+		case "1s":
+			return 0;
+		case "1m":
+			return 1;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the percentile (0 - 100) of the sorted values
+	 */
+	public static double percentile(double[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return Double.NaN;
+		}
+		return sorted[(int) Math.round((sorted.length - 1) * percentile / 100)];
+	}
+
+	/**
+	 * @return the size of a ring array that is full: doubled up to the capacity
+	 */
+	private static int grownSize(int size, int capacity) {
+		return (int) Math.min(capacity, 2L * size);
+	}
+
+	public static class Series {
+		private final String name;
+		private final int capacity;
+		private long[] times;
+		private double[] values;
+		private final Level[] levels;
+		private int head = -1;
+		private long count;
+
+		Series(String name, int capacity) {
+			this.name = name;
+			this.capacity = capacity;
+			this.times = new long[Math.min(INITIAL_CAPACITY, capacity)];
+			this.values = new double[this.times.length];
+			this.levels = new Level[RESOLUTION_MILLIS.length];
+			for (int i = 0; i < this.levels.length; i++) {
+				this.levels[i] = new Level(RESOLUTION_MILLIS[i], RESOLUTION_CAPACITY[i]);
+			}
+		}
+
+		synchronized void add(long timeMillis, double value) {
+			if (this.head + 1 == this.times.length && this.times.length < this.capacity) {
+				// not wrapped yet, the samples stay in place
+				int size = grownSize(this.times.length, this.capacity);
+				this.times = Arrays.copyOf(this.times, size);
+				this.values = Arrays.copyOf(this.values, size);
+			}
+			this.head = (this.head + 1) % this.times.length;
+			this.times[this.head] = timeMillis;
+			this.values[this.head] = value;
+			this.count++;
+			for (Level level : this.levels) {
+				level.add(timeMillis, value);
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return number of recorded samples, including the ones no longer kept as raw samples
+		 */
+		public synchronized long getCount() {
+			return this.count;
+		}
+
+		public synchronized double getLast() {
+			return (this.head < 0) ? Double.NaN : this.values[this.head];
+		}
+
+		public synchronized long getLastTime() {
+			return (this.head < 0) ? 0 : this.times[this.head];
+		}
+
+		/**
+		 * @return the sorted raw values recorded since the time, for statistics and percentiles
+		 */
+		public synchronized double[] sortedValues(long sinceMillis) {
+			int size = (int) Math.min(this.count, this.times.length);
+			double[] selected = new double[size];
+			int n = 0;
+			for (int i = 0; i < size; i++) {
+				int index = Math.floorMod(this.head - i, this.times.length);
+				if (this.times[index] < sinceMillis) {
+					break;
+				}
+				selected[n++] = this.values[index];
+			}
+			double[] sorted = Arrays.copyOf(selected, n);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+
+		/**
+		 * @param resolution - 0 for seconds, 1 for minutes, -1 for the raw samples
+		 * @param maxPoints - max number of latest points
+		 * @return the points in time order. Raw samples have the same min, max and avg
+		 */
+		public synchronized Points points(int resolution, int maxPoints) {
+			if (resolution < 0) {
+				int size = (int) Math.min(Math.min(this.count, this.times.length), maxPoints);
+				Points points = new Points(size);
+				for (int i = 0; i < size; i++) {
+					int index = Math.floorMod(this.head - size + 1 + i, this.times.length);
+					points.set(i, this.times[index], this.values[index], this.values[index], this.values[index]);
+				}
+				return points;
+			}
+			return this.levels[resolution].points(maxPoints);
+		}
+	}
+
+	/**
+	 * Downsampled buckets of one resolution, in ring arrays.
+	 */
+	private static class Level {
+		private final long width;
+		private final int capacity;
+		private long[] start;
+		private double[] min;
+		private double[] max;
+		private double[] sum;
+		private int[] count;
+		private int head = -1;
+		private int size;
+
+		Level(long width, int capacity) {
+			this.width = width;
+			this.capacity = capacity;
+			int initial = Math.min(INITIAL_CAPACITY, capacity);
+			this.start = new long[initial];
+			this.min = new double[initial];
+			this.max = new double[initial];
+			this.sum = new double[initial];
+			this.count = new int[initial];
+		}
+
+		void add(long timeMillis, double value) {
+			long bucket = timeMillis - Math.floorMod(timeMillis, this.width);
+			// a late sample of an older bucket is kept in the current one
+			if (this.head < 0 || bucket > this.start[this.head]) {
+				if (this.head + 1 == this.start.length && this.start.length < this.capacity) {
+					grow();
+				}
+				this.head = (this.head + 1) % this.start.length;
+				this.size = Math.min(this.size + 1, this.start.length);
+				this.start[this.head] = bucket;
+				this.min[this.head] = value;
+				this.max[this.head] = value;
+				this.sum[this.head] = 0;
+				this.count[this.head] = 0;
+			}
+			this.min[this.head] = Math.min(this.min[this.head], value);
+			this.max[this.head] = Math.max(this.max[this.head], value);
+			this.sum[this.head] += value;
+			this.count[this.head]++;
+		}
+
+		private void grow() {
+			int grown = grownSize(this.start.length, this.capacity);
+			this.start = Arrays.copyOf(this.start, grown);
+			this.min = Arrays.copyOf(this.min, grown);
+			this.max = Arrays.copyOf(this.max, grown);
+			this.sum = Arrays.copyOf(this.sum, grown);
+			this.count = Arrays.copyOf(this.count, grown);
+		}
+
+		Points points(int maxPoints) {
+			int size = Math.min(this.size, maxPoints);
+			Points points = new Points(size);
+			for (int i = 0; i < size; i++) {
+				int index = Math.floorMod(this.head - size + 1 + i, this.start.length);
+				points.set(i, this.start[index], this.min[index], this.max[index],
+						this.sum[index] / this.count[index]);
+			}
+			return points;
+		}
+	}
+
+	/**
+	 * Copy of a range of points, independent of the store updates.
+	 */
+	public static class Points {
+		private final long[] times;
+		private final double[] min;
+		private final double[] max;
+		private final double[] avg;
+
+		Points(int size) {
+			this.times = new long[size];
+			this.min = new double[size];
+			this.max = new double[size];
+			this.avg = new double[size];
+		}
+
+		void set(int i, long time, double min, double max, double avg) {
+			this.times[i] = time;
+			this.min[i] = min;
+			this.max[i] = max;
+			this.avg[i] = avg;
+		}
+
+		public int size() {
+			return this.times.length;
+		}
+
+		public long[] getTimes() {
+			return times;
+		}
+
+		public double[] getMin() {
+			return min;
+		}
+
+		public double[] getMax() {
+			return max;
+		}
+
+		public double[] getAvg() {
+			return avg;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.util.Assert;
+
+/**
+ * Hashed timer wheel for many periodic, coarse grained tasks. A single thread advances the wheel every tick and
+ * runs the tasks of the current slot, so the scheduling cost doesn't grow with the number of tasks the way one
+ * timer per task does. Tasks run on the wheel thread and must not block (e.g. only send asynchronous requests).
+ *
+ * @author Christian Tzolov
+ */
+public class TimerWheel {
+
+	private static final Logger logger = LoggerFactory.getLogger(TimerWheel.class);
+
+	private final long tickMillis;
+	private final List<Timeout>[] slots;
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	private final ScheduledExecutorService ticker;
+	private long tick;
+
+	/**
+	 * @param tickMillis - wheel resolution in milliseconds
+	 * @param wheelSize - number of slots. Delays longer than tickMillis * wheelSize take extra wheel rounds
+	 */
+	@SuppressWarnings("unchecked")
+	public TimerWheel(long tickMillis, int wheelSize) {
+		Assert.isTrue(tickMillis > 0, "The tick must be positive");
+		Assert.isTrue(wheelSize > 0, "The wheel size must be positive");
+		this.tickMillis = tickMillis;
+		this.slots = new List[wheelSize];
+		for (int i = 0; i < wheelSize; i++) {
+			this.slots[i] = new ArrayList<>();
+		}
+		this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "timer-wheel");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.ticker.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs the task once after the delay, rounded up to the next tick.
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, Math.max(1, (unit.toMillis(delay) + this.tickMillis - 1) / this.tickMillis));
+		this.pending.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the wheel. The not yet expired tasks are dropped.
+	 */
+	public void stop() {
+		this.ticker.shutdownNow();
+	}
+
+	private void advance() {
+		// new timeouts are added by the wheel thread only, so the slots need no locking
+		Timeout added;
+		while ((added = this.pending.poll()) != null) {
+			long deadline = this.tick + added.ticks;
+			added.rounds = (added.ticks - 1) / this.slots.length;
+			this.slots[(int) (deadline % this.slots.length)].add(added);
+		}
+
+		this.tick++;
+		Iterator<Timeout> expired = this.slots[(int) (this.tick % this.slots.length)].iterator();
+		while (expired.hasNext()) {
+			Timeout timeout = expired.next();
+			if (timeout.canceled) {
+				expired.remove();
+			}
+			else if (timeout.rounds > 0) {
+				timeout.rounds--;
+			}
+			else {
+				expired.remove();
+				try {
+					timeout.task.run();
+				}
+				catch (RuntimeException e) {
+					logger.warn("Timer task failed", e);
+				}
+			}
+		}
+	}
+
+	public static class Timeout {
+		private final Runnable task;
+		private final long ticks;
+		private long rounds;
+		private volatile boolean canceled;
+
+		Timeout(Runnable task, long ticks) {
+			this.task = task;
+			this.ticks = ticks;
+		}
+
+		public void cancel() {
+			this.canceled = true;
+		}
+	}
+}
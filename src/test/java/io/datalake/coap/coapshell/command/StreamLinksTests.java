@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.command;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.interceptors.MessageInterceptorAdapter;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Christian Tzolov
+ */
+public class StreamLinksTests {
+
+	private static final int LINKS = 400;
+
+	private CoapServer server;
+	private CoapEndpoint clientEndpoint;
+	private String uri;
+
+	@BeforeEach
+	public void setUp() {
+		StringBuilder document = new StringBuilder();
+		for (int i = 0; i < LINKS; i++) {
+			document.append((i > 0) ? "," : "").append("</sensors/temp").append(i).append(">;rt=\"temperature\"");
+		}
+		assertThat(document.length()).isGreaterThan(8192); // larger than the default MAX_RESOURCE_BODY_SIZE
+
+		NetworkConfig serverConfig = NetworkConfig.createStandardWithoutFile();
+		this.server = new CoapServer(serverConfig);
+		this.server.addEndpoint(new CoapEndpoint.Builder().setNetworkConfig(serverConfig)
+				.setInetSocketAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)).build());
+		this.server.add(new CoapResource("links") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond(ResponseCode.CONTENT, document.toString(), MediaTypeRegistry.APPLICATION_LINK_FORMAT);
+			}
+		});
+		this.server.start();
+		this.uri = "coap://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+				+ this.server.getEndpoints().get(0).getAddress().getPort() + "/links";
+
+		NetworkConfig clientConfig = NetworkConfig.createStandardWithoutFile();
+		clientConfig.setInt(NetworkConfig.Keys.MAX_RESOURCE_BODY_SIZE, 0);
+		this.clientEndpoint = new CoapEndpoint.Builder().setNetworkConfig(clientConfig).build();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		this.clientEndpoint.destroy();
+		this.server.destroy();
+	}
+
+	@Test
+	public void linksArriveBlockByBlock() throws Exception {
+		AtomicInteger responses = new AtomicInteger();
+		this.clientEndpoint.addInterceptor(new MessageInterceptorAdapter() {
+			@Override
+			public void receiveResponse(Response response) {
+				responses.incrementAndGet();
+				assertThat(response.getPayloadSize()).isLessThanOrEqualTo(256);
+			}
+		});
+		CoapClient client = new CoapClient(this.uri).setEndpoint(this.clientEndpoint);
+
+		List<String> links = new ArrayList<>();
+		AtomicInteger responsesAtFirstLink = new AtomicInteger(-1);
+		int parsed = CoapShellCommands.streamLinks(client, () -> {
+			Request request = Request.newGet();
+			request.setURI(this.uri);
+			return request;
+		}, 256, link -> {
+			responsesAtFirstLink.compareAndSet(-1, responses.get());
+			links.add(link.getURI());
+			return true;
+		});
+		client.shutdown();
+
+		assertThat(parsed).isEqualTo(LINKS);
+		assertThat(links).hasSize(LINKS).startsWith("/sensors/temp0").endsWith("/sensors/temp" + (LINKS - 1));
+		assertThat(responses.get()).isGreaterThan(8192 / 256);
+		assertThat(responsesAtFirstLink.get()).isEqualTo(1);
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.datalake.coap.coapshell.util;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import org.springframework.util.StreamUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Christian Tzolov
+ */
+public class CoapHttpProxyTests {
+
+	private CoapServer server;
+	private CoapHttpProxy proxy;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		NetworkConfig config = NetworkConfig.createStandardWithoutFile();
+		this.server = new CoapServer(config);
+		this.server.addEndpoint(new CoapEndpoint.Builder().setNetworkConfig(config)
+				.setInetSocketAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)).build());
+		this.server.add(new CoapResource("changed") {
+			@Override
+			public void handlePOST(CoapExchange exchange) {
+				exchange.respond(ResponseCode.CHANGED, "updated");
+			}
+		});
+		this.server.start();
+		String coapServer = "coap://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+				+ this.server.getEndpoints().get(0).getAddress().getPort();
+
+		CoapSessionPool pool = new CoapSessionPool(null, "coap",
+				scheme -> new CoapEndpoint.Builder().setNetworkConfig(config).build(), 4);
+		this.proxy = new CoapHttpProxy(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), pool,
+				(request, target) -> {
+					request.setURI(coapServer + target);
+					return request;
+				}, 2, 5000);
+		this.proxy.start();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		this.proxy.stop();
+		this.server.destroy();
+	}
+
+	@Test
+	public void changedWithPayloadIsNoContentWithoutBody() throws Exception {
+		URL url = new URL("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+				+ this.proxy.getAddress().getPort() + "/changed");
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write("on".getBytes(StandardCharsets.UTF_8));
+		}
+
+		assertThat(connection.getResponseCode()).isEqualTo(204);
+		try (InputStream in = connection.getInputStream()) {
+			assertThat(StreamUtils.copyToByteArray(in)).isEmpty();
+		}
+		connection.disconnect();
+
+		assertThat(this.proxy.getRequests()).isEqualTo(1);
+		assertThat(this.proxy.getFailures()).isZero();
+		assertThat(this.proxy.getStatusCounts()).containsOnlyKeys(204);
+	}
+}